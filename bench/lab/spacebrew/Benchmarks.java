@@ -0,0 +1,35 @@
+package lab.spacebrew;
+
+/**
+ * Runs all the benchmarks, one after the other: encoding, decoding, wire
+ * encodings, dispatch, round trips through an in-process echo server, and
+ * sends from 1 to 16 threads; then the send queue stress check and the
+ * publish filter check (see SendQueueCheck and RouteFilterCheck).
+ * <br>Each benchmark prints the time and the bytes allocated per message, so
+ * that changes to the hot paths can be compared with numbers (run it before and
+ * after, on the same machine).
+ * <br>Run with: <code>java -cp bin:lib/* lab.spacebrew.Benchmarks</code>
+ * (each benchmark can also be run alone).
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("# encode");
+		EncodeBenchmark.main(args);
+		System.out.println("# decode");
+		DecodeBenchmark.main(args);
+		System.out.println("# wire");
+		WireBenchmark.main(args);
+		System.out.println("# dispatch");
+		DispatchBenchmark.main(args);
+		System.out.println("# round trip");
+		RoundTripBenchmark.run(9876);
+		System.out.println("# send scaling");
+		SendScalingBenchmark.run(9878);
+		System.out.println("# send queue");
+		SendQueueCheck.run();
+		System.out.println("# publish filters");
+		RouteFilterCheck.run();
+		System.exit(0); // see RoundTripBenchmark
+	}
+}
@@ -0,0 +1,94 @@
+package lab.spacebrew;
+
+import org.json.JSONObject;
+
+/**
+ * Micro-benchmark of inbound message decoding, for each type of route: the
+ * JSONObject tree <code>Spacebrew.onMessage</code> used to build vs. the
+ * single-pass FrameDecoder.
+ * <br>For each case it prints the time and the bytes allocated per message
+ * (see EncodeBenchmark).
+ * <br>Run with: <code>java -cp bin:lib/* lab.spacebrew.DecodeBenchmark</code>
+ */
+public class DecodeBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final String[] ranges = frames("range", "a range publisher");
+		final String[] booleans = frames("boolean", "a Boolean publisher");
+		final String[] strings = frames("string", "a string publisher");
+		final String[] customs = frames("point", "a custom publisher");
+		final FrameDecoder decoder = new FrameDecoder();
+
+		EncodeBenchmark.Case rangeJson = new EncodeBenchmark.Case() {
+			@Override public int run(int i) { return json(ranges[i & 1023]).getInt("value"); }
+		};
+		EncodeBenchmark.Case rangeDecoder = new EncodeBenchmark.Case() {
+			@Override public int run(int i) {
+				decoder.decode(ranges[i & 1023]);
+				return decoder.name().length() + decoder.typeCode() + decoder.rangeValue();
+			}
+		};
+		EncodeBenchmark.Case booleanJson = new EncodeBenchmark.Case() {
+			@Override public int run(int i) { return json(booleans[i & 1023]).getBoolean("value") ? 1 : 0; }
+		};
+		EncodeBenchmark.Case booleanDecoder = new EncodeBenchmark.Case() {
+			@Override public int run(int i) {
+				decoder.decode(booleans[i & 1023]);
+				return decoder.name().length() + decoder.typeCode() + (decoder.booleanValue() ? 1 : 0);
+			}
+		};
+		EncodeBenchmark.Case stringJson = new EncodeBenchmark.Case() {
+			@Override public int run(int i) { return json(strings[i & 1023]).getString("value").length(); }
+		};
+		EncodeBenchmark.Case stringDecoder = new EncodeBenchmark.Case() {
+			@Override public int run(int i) {
+				decoder.decode(strings[i & 1023]);
+				return decoder.name().length() + decoder.typeCode() + decoder.stringValue().length();
+			}
+		};
+		EncodeBenchmark.Case customJson = new EncodeBenchmark.Case() {
+			@Override public int run(int i) { return json(customs[i & 1023]).getString("value").length(); }
+		};
+		EncodeBenchmark.Case customDecoder = new EncodeBenchmark.Case() {
+			@Override public int run(int i) {
+				decoder.decode(customs[i & 1023]);
+				return decoder.name().length() + decoder.type().length() + decoder.value().length();
+			}
+		};
+
+		EncodeBenchmark.warmUp(rangeJson, rangeDecoder, booleanJson, booleanDecoder, stringJson, stringDecoder, customJson, customDecoder);
+		EncodeBenchmark.measure("range, JSONObject", rangeJson);
+		EncodeBenchmark.measure("range, decoder", rangeDecoder);
+		EncodeBenchmark.measure("boolean, JSONObject", booleanJson);
+		EncodeBenchmark.measure("boolean, decoder", booleanDecoder);
+		EncodeBenchmark.measure("string, JSONObject", stringJson);
+		EncodeBenchmark.measure("string, decoder", stringDecoder);
+		EncodeBenchmark.measure("custom, JSONObject", customJson);
+		EncodeBenchmark.measure("custom, decoder", customDecoder);
+	}
+
+	/**
+	 * What onMessage(String) used to do before looking up the route.
+	 */
+	static JSONObject json(String frame) {
+		JSONObject m = new JSONObject(frame).getJSONObject("message");
+		m.getString("name");
+		m.getString("type");
+		return m;
+	}
+
+	/**
+	 * Frames of a route, as the server forwards them, with varied values.
+	 */
+	static String[] frames(String type, String name) {
+		FrameTemplate t = new FrameTemplate("mypublisher", name, type);
+		String[] frames = new String[1024];
+		for(int i = 0; i < frames.length; i++) {
+			if(type.equals("range")) { frames[i] = t.encode(i * 37).toString(); }
+			else if(type.equals("boolean")) { frames[i] = t.encode((i & 1) == 0).toString(); }
+			else if(type.equals("string")) { frames[i] = t.encode("hello " + i).toString(); }
+			else { frames[i] = t.encode("{\"x\":" + i + ",\"y\":" + (i * 3) + "}").toString(); }
+		}
+		return frames;
+	}
+}
@@ -0,0 +1,106 @@
+package lab.spacebrew;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+
+/**
+ * Micro-benchmark of inbound dispatch: a frame handed to
+ * <code>Spacebrew.onMessage</code>, decoded, resolved to its route among 1, 100
+ * or 10000 subscribed routes, and delivered to the callback (on the calling
+ * thread, as the websocket thread does).
+ * <br>Routes are subscribed with typed callbacks and by method name (compiled
+ * callbacks); the reflective dispatch of the former onMessage (a JSONObject,
+ * a map of Methods and Method.invoke) is measured for comparison.
+ * <br>For each case it prints the time and the bytes allocated per message
+ * (see EncodeBenchmark).
+ * <br>Run with: <code>java -cp bin:lib/* lab.spacebrew.DispatchBenchmark</code>
+ */
+public class DispatchBenchmark implements SpacebrewClient {
+
+	private static final int[] ROUTES = { 1, 100, 10000 };
+
+	static long sink;
+
+	public void onRoute(int value) { sink += value; }
+
+	public static void main(String[] args) throws Exception {
+		EncodeBenchmark.Case[] typed = new EncodeBenchmark.Case[ROUTES.length];
+		EncodeBenchmark.Case[] named = new EncodeBenchmark.Case[ROUTES.length];
+		EncodeBenchmark.Case[] reflective = new EncodeBenchmark.Case[ROUTES.length];
+		for(int i = 0; i < ROUTES.length; i++) {
+			typed[i] = dispatch(ROUTES[i], false);
+			named[i] = dispatch(ROUTES[i], true);
+			reflective[i] = reflective(ROUTES[i]);
+		}
+
+		EncodeBenchmark.warmUp(typed);
+		EncodeBenchmark.warmUp(named);
+		EncodeBenchmark.warmUp(reflective);
+		for(int i = 0; i < ROUTES.length; i++) {
+			EncodeBenchmark.measure(ROUTES[i] + " routes, typed", typed[i]);
+			EncodeBenchmark.measure(ROUTES[i] + " routes, by name", named[i]);
+			EncodeBenchmark.measure(ROUTES[i] + " routes, reflective", reflective[i]);
+		}
+	}
+
+	/**
+	 * A client (not connected) subscribing to a number of range routes, each message going to another route.
+	 * @param byName {boolean} true to subscribe with addSubscribe(name, type, methodName)
+	 */
+	static EncodeBenchmark.Case dispatch(int routes, boolean byName) {
+		final Spacebrew sb = new Spacebrew(new DispatchBenchmark());
+		RangeCallback callback = new RangeCallback() {
+			@Override public void accept(int value) { sink += value; }
+		};
+		sb.beginRoutes();
+		for(int i = 0; i < routes; i++) {
+			if(byName) { sb.addSubscribe("route " + i, "range", "onRoute"); }
+			else { sb.subscribeRange("route " + i, callback); }
+		}
+		sb.commitRoutes();
+		final String[] frames = frames(routes);
+		return new EncodeBenchmark.Case() {
+			@Override public int run(int i) {
+				sb.onMessage(frames[i % frames.length]);
+				return 0;
+			}
+		};
+	}
+
+	/**
+	 * What onMessage(String) used to do for a range message, with its route registered by method name.
+	 */
+	static EncodeBenchmark.Case reflective(int routes) throws Exception {
+		final DispatchBenchmark client = new DispatchBenchmark();
+		final HashMap<String, HashMap<String, Method>> callbacks = new HashMap<String, HashMap<String, Method>>();
+		Method method = client.getClass().getMethod("onRoute", int.class);
+		for(int i = 0; i < routes; i++) {
+			HashMap<String, Method> m = new HashMap<String, Method>();
+			m.put("range", method);
+			callbacks.put("route " + i, m);
+		}
+		final String[] frames = frames(routes);
+		return new EncodeBenchmark.Case() {
+			@Override public int run(int i) throws Exception {
+				org.json.JSONObject m = DecodeBenchmark.json(frames[i % frames.length]);
+				String name = m.getString("name");
+				String type = m.getString("type");
+				if(callbacks.containsKey(name) && callbacks.get(name).containsKey(type)) {
+					callbacks.get(name).get(type).invoke(client, m.getInt("value"));
+				}
+				return 0;
+			}
+		};
+	}
+
+	/**
+	 * One frame per route (at most 1024 distinct values per route).
+	 */
+	static String[] frames(int routes) {
+		String[] frames = new String[Math.max(routes, 1024)];
+		for(int i = 0; i < frames.length; i++) {
+			frames[i] = new FrameTemplate("mypublisher", "route " + (i % routes), "range").encode(i).toString();
+		}
+		return frames;
+	}
+}
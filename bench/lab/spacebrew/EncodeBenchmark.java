@@ -0,0 +1,80 @@
+package lab.spacebrew;
+
+import java.lang.management.ManagementFactory;
+
+import org.json.JSONObject;
+
+/**
+ * Micro-benchmark of outbound message encoding: the JSONObject based encoding
+ * <code>Spacebrew.send</code> used to do vs. the per-route FrameTemplate.
+ * <br>For each case it prints the time and the bytes allocated per message
+ * (measured on the calling thread, after warm-up).
+ * <br>Run with: <code>java -cp bin:lib/* lab.spacebrew.EncodeBenchmark</code>
+ */
+public class EncodeBenchmark {
+
+	private static final int WARMUP = 200000, ITERATIONS = 2000000;
+
+	interface Case { int run(int i) throws Exception; }
+
+	public static void main(String[] args) throws Exception {
+		final FrameTemplate range = new FrameTemplate("mypublisher", "a range publisher", "range");
+		final FrameTemplate bool = new FrameTemplate("mypublisher", "a Boolean publisher", "boolean");
+
+		measure("range, JSONObject", new Case() {
+			@Override public int run(int i) throws Exception { return json("a range publisher", "range", Integer.toString(i)); }
+		});
+		measure("range, template", new Case() {
+			@Override public int run(int i) { return range.encode(i).bytes().remaining(); }
+		});
+		measure("boolean, JSONObject", new Case() {
+			@Override public int run(int i) throws Exception { return json("a Boolean publisher", "boolean", Boolean.toString((i & 1) == 0)); }
+		});
+		measure("boolean, template", new Case() {
+			@Override public int run(int i) { return bool.encode((i & 1) == 0).bytes().remaining(); }
+		});
+	}
+
+	/**
+	 * What send(String, String, String) used to do, plus the UTF-8 encoding done by the websocket.
+	 */
+	static int json(String messageName, String type, String value) throws Exception {
+		JSONObject m = new JSONObject();
+		m.put("clientName", "mypublisher");
+		m.put("name", messageName);
+		m.put("type", type);
+		m.put("value", value);
+		JSONObject sM = new JSONObject();
+		sM.put("message", m);
+		return sM.toString().getBytes("UTF-8").length;
+	}
+
+	/**
+	 * Run cases before measuring any, so that they are all measured with the
+	 * same (megamorphic) call to Case.run, whatever their order.
+	 */
+	static void warmUp(Case... cases) throws Exception {
+		long sink = 0;
+		for(Case c : cases) {
+			for(int i = 0; i < WARMUP; i++) { sink += c.run(i); }
+		}
+		if(sink == 42) { System.out.println(); }
+	}
+
+	static void measure(String name, Case c) throws Exception {
+		long sink = 0;
+		for(int i = 0; i < WARMUP; i++) { sink += c.run(i); }
+		long bytes0 = allocatedBytes();
+		long t0 = System.nanoTime();
+		for(int i = 0; i < ITERATIONS; i++) { sink += c.run(i); }
+		long t1 = System.nanoTime();
+		long bytes1 = allocatedBytes();
+		System.out.println(String.format("%-22s %8.1f ns/msg %8.1f B/msg  (%d)",
+				name, (t1 - t0) / (double)ITERATIONS, (bytes1 - bytes0) / (double)ITERATIONS, sink));
+	}
+
+	static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
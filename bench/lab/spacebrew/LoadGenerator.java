@@ -0,0 +1,391 @@
+package lab.spacebrew;
+
+import java.io.FileWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.json.JSONObject;
+
+/**
+ * Load generator: N publisher clients and M subscriber clients against a
+ * server (an embedded SpacebrewServer, unless <code>-host</code> is given),
+ * each publisher sending on R routes at a fixed rate, each subscriber
+ * subscribing to all of them (so every message is delivered M times).
+ * <br>Messages carry the time they were scheduled at (range: microseconds,
+ * string: nanoseconds, from the start of the run), so the end-to-end latency
+ * is measured on delivery, including the time a late publisher spent catching
+ * up (publishers don't skip messages, so a stall shows in the latency instead
+ * of hiding it).
+ * <br>It reports the sustained throughput, the latency percentiles, the
+ * messages lost, the reconnections (with <code>-drop</code>, the embedded
+ * server closes all connections during the run), the heap and the GC activity, on the
+ * console and as one JSON object per run appended to the output file, so that
+ * runs can be compared.
+ * <br>Run with: <code>java -cp bin:lib/* lab.spacebrew.LoadGenerator [options]</code>
+ * <br>Options (defaults): <code>-publishers 4 -subscribers 4 -routes 4 -type range|string (range)
+ * -rate 1000</code> (messages/s per route) <code>-seconds 10 -warmup 2 -compact
+ * -drop 0</code> (seconds into the run; 0: don't) <code>-host</code> (server
+ * address; default: embedded) <code>-port 9877 -out load.jsonl</code>
+ */
+public class LoadGenerator implements SpacebrewClient {
+
+	private static final long DRAIN = 1000000000L; // ns to wait for messages in flight after the run
+
+	// options
+	private int publishers = 4, subscribers = 4, routes = 4, rate = 1000, seconds = 10, warmup = 2, drop = 0, port = 9877;
+	private String type = "range", host = null, out = "load.jsonl";
+	private boolean compact = false;
+
+	private SpacebrewServer server;
+	private Spacebrew[] pubs, subs;
+	private PublishRoute[][] pubRoutes;
+	private long base, measureFrom, measureTo; // nanoTime of the start, and of the measured window
+	private final AtomicLong sent = new AtomicLong(), received = new AtomicLong();
+	private final Latencies latencies = new Latencies();
+	private volatile boolean stopping = false;
+	private long outageMillis = -1;
+
+	/**
+	 * Latencies, in log-linear buckets: 32 sub-buckets per power of 2 of ns
+	 * (about 3% precision), so that p999 is meaningful.
+	 */
+	static final class Latencies {
+		private static final int SUB = 5, BUCKETS = (64 - SUB) << SUB;
+		private final long[] counts = new long[BUCKETS];
+		private long count, sum, max;
+
+		synchronized void record(long ns) {
+			if(ns < 0) { ns = 0; }
+			counts[bucket(ns)]++;
+			count++;
+			sum += ns;
+			if(ns > max) { max = ns; }
+		}
+
+		private static int bucket(long ns) {
+			if(ns < (2 << SUB)) { return (int)ns; }
+			int shift = 64 - Long.numberOfLeadingZeros(ns) - SUB - 1;
+			return ((shift + 1) << SUB) + (int)(ns >>> shift) - (1 << SUB);
+		}
+
+		private static long upperBound(int bucket) {
+			if(bucket < (2 << SUB)) { return bucket; }
+			int shift = (bucket >>> SUB) - 1;
+			return ((long)((bucket & ((1 << SUB) - 1)) + (1 << SUB) + 1) << shift) - 1;
+		}
+
+		synchronized long count() { return count; }
+
+		synchronized double mean() { return (count == 0) ? 0 : sum / (double)count; }
+
+		synchronized long max() { return max; }
+
+		/**
+		 * @return {long} upper bound of the bucket of the percentile, in ns
+		 */
+		synchronized long percentile(double p) {
+			long rank = (long)Math.ceil(count * p), seen = 0;
+			for(int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if(seen >= rank && seen > 0) { return Math.min(upperBound(i), max); }
+			}
+			return max;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator load = new LoadGenerator();
+		load.options(args);
+		try {
+			load.run();
+		} finally {
+			if(load.server != null) { load.server.stop(); }
+		}
+		System.exit(0); // see RoundTripBenchmark
+	}
+
+	private void options(String[] args) {
+		for(int i = 0; i < args.length; i++) {
+			String o = args[i];
+			if(o.equals("-compact")) { compact = true; continue; }
+			if(i + 1 == args.length) { throw new IllegalArgumentException("missing value of " + o); }
+			String v = args[++i];
+			if(o.equals("-publishers")) { publishers = Integer.parseInt(v); }
+			else if(o.equals("-subscribers")) { subscribers = Integer.parseInt(v); }
+			else if(o.equals("-routes")) { routes = Integer.parseInt(v); }
+			else if(o.equals("-rate")) { rate = Integer.parseInt(v); }
+			else if(o.equals("-seconds")) { seconds = Integer.parseInt(v); }
+			else if(o.equals("-warmup")) { warmup = Integer.parseInt(v); }
+			else if(o.equals("-drop")) { drop = Integer.parseInt(v); }
+			else if(o.equals("-port")) { port = Integer.parseInt(v); }
+			else if(o.equals("-host")) { host = v; }
+			else if(o.equals("-out")) { out = v; }
+			else if(o.equals("-type")) {
+				if(!v.equals("range") && !v.equals("string")) { throw new IllegalArgumentException("type must be range or string (the value carries the send time)"); }
+				type = v;
+			}
+			else { throw new IllegalArgumentException("unknown option " + o); }
+		}
+		if(drop > 0 && host != null) { throw new IllegalArgumentException("-drop only applies to the embedded server"); }
+	}
+
+	private void run() throws Exception {
+		if(host == null) {
+			server = new SpacebrewServer(port);
+			server.start();
+		}
+		base = System.nanoTime();
+		connect();
+		addRoutes();
+		Thread.sleep(200); // routes reach the server before the first message
+
+		long start = System.nanoTime();
+		measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+		measureTo = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+		Thread[] threads = new Thread[publishers];
+		for(int i = 0; i < publishers; i++) {
+			final int p = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override public void run() { publish(p); }
+			}, "load publisher " + i);
+			threads[i].start();
+		}
+
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		while(System.nanoTime() < measureFrom) { Thread.sleep(10); }
+		long gcCount0 = gcCount(), gcTime0 = gcTime(), bytes0 = RoundTripBenchmark.allocatedBytes();
+		long heapMax = 0;
+		boolean dropped = false;
+		while(System.nanoTime() < measureTo) {
+			heapMax = Math.max(heapMax, memory.getHeapMemoryUsage().getUsed());
+			if(drop > 0 && !dropped && System.nanoTime() >= measureFrom + TimeUnit.SECONDS.toNanos(drop)) {
+				dropped = true;
+				dropConnections();
+			}
+			Thread.sleep(100);
+		}
+		for(Thread t : threads) { t.join(); }
+		long gcCount1 = gcCount(), gcTime1 = gcTime(), bytes1 = RoundTripBenchmark.allocatedBytes();
+		long heapUsed = memory.getHeapMemoryUsage().getUsed();
+		Thread.sleep(TimeUnit.NANOSECONDS.toMillis(DRAIN));
+		stopping = true;
+
+		long reconnects = 0, reconnectMax = 0;
+		for(Spacebrew sb : pubs) { reconnects += sb.getReconnectCount(); reconnectMax = Math.max(reconnectMax, sb.getMaxReconnectMillis()); }
+		for(Spacebrew sb : subs) { reconnects += sb.getReconnectCount(); reconnectMax = Math.max(reconnectMax, sb.getMaxReconnectMillis()); }
+		for(Spacebrew sb : pubs) { sb.close(); }
+		for(Spacebrew sb : subs) { sb.close(); }
+
+		long expected = sent.get() * subscribers;
+		JSONObject r = new JSONObject();
+		r.put("date", new Date().toString());
+		r.put("server", (host == null) ? "embedded" : host + ":" + port);
+		r.put("publishers", publishers);
+		r.put("subscribers", subscribers);
+		r.put("routes", routes);
+		r.put("type", type);
+		r.put("compact", compact);
+		r.put("rate", rate);
+		r.put("seconds", seconds);
+		r.put("sent", sent.get());
+		r.put("received", received.get());
+		r.put("lost", expected - received.get());
+		r.put("sentPerSecond", sent.get() / (double)seconds);
+		r.put("receivedPerSecond", received.get() / (double)seconds);
+		r.put("latencyMeanMicros", latencies.mean() / 1000);
+		r.put("latencyP50Micros", latencies.percentile(0.5) / 1000.0);
+		r.put("latencyP99Micros", latencies.percentile(0.99) / 1000.0);
+		r.put("latencyP999Micros", latencies.percentile(0.999) / 1000.0);
+		r.put("latencyMaxMicros", latencies.max() / 1000.0);
+		r.put("drops", dropped ? 1 : 0);
+		r.put("outageMillis", outageMillis);
+		r.put("reconnects", reconnects);
+		r.put("reconnectMaxMillis", reconnectMax);
+		r.put("heapUsedMaxBytes", heapMax);
+		r.put("heapUsedBytes", heapUsed);
+		r.put("gcCount", gcCount1 - gcCount0);
+		r.put("gcMillis", gcTime1 - gcTime0);
+		r.put("allocatedBytesPerMessage", (bytes1 - bytes0) / (double)Math.max(1, received.get()));
+
+		System.out.println(String.format("%d publishers x %d routes x %d msg/s -> %d subscribers, %s%s: %.0f msg/s sent, %.0f msg/s received, %d lost",
+				publishers, routes, rate, subscribers, type, compact ? ", compact" : "", sent.get() / (double)seconds, received.get() / (double)seconds, expected - received.get()));
+		System.out.println(String.format("latency: %.1f us mean %.1f us p50 %.1f us p99 %.1f us p999 %.1f us max",
+				latencies.mean() / 1000, latencies.percentile(0.5) / 1000.0, latencies.percentile(0.99) / 1000.0, latencies.percentile(0.999) / 1000.0, latencies.max() / 1000.0));
+		System.out.println(String.format("reconnects: %d (max %d ms, outage %d ms), heap: %d MB max, GC: %d (%d ms), %.0f B allocated per message received",
+				reconnects, reconnectMax, outageMillis, heapMax >> 20, gcCount1 - gcCount0, gcTime1 - gcTime0, (bytes1 - bytes0) / (double)Math.max(1, received.get())));
+		Writer w = new FileWriter(out, true);
+		try {
+			w.write(r.toString() + "\n");
+		} finally {
+			w.close();
+		}
+		System.out.println("appended to " + out);
+	}
+
+	/**
+	 * Connect the clients, and wait for them to be connected.
+	 */
+	private void connect() throws Exception {
+		String hostname = (host == null) ? "127.0.0.1" : host;
+		pubs = new Spacebrew[publishers];
+		pubRoutes = new PublishRoute[publishers][routes];
+		for(int i = 0; i < publishers; i++) {
+			Spacebrew sb = pubs[i] = new Spacebrew(this);
+			for(int r = 0; r < routes; r++) { pubRoutes[i][r] = sb.addPublish("load" + r, type, type.equals("range") ? "0" : ""); }
+			sb.setCompact(compact);
+			sb.setReconnectBackoff(50, 1000);
+			sb.connect(hostname, port, "load publisher " + i, "load generator");
+		}
+		subs = new Spacebrew[subscribers];
+		for(int i = 0; i < subscribers; i++) {
+			Spacebrew sb = subs[i] = new Spacebrew(this);
+			for(int r = 0; r < routes; r++) {
+				if(type.equals("range")) {
+					sb.subscribeRange("load" + r, new RangeCallback() {
+						@Override public void accept(int value) { delivered(System.nanoTime(), base + value * 1000L); }
+					});
+				} else {
+					sb.subscribeString("load" + r, new StringCallback() {
+						@Override public void accept(String value) { delivered(System.nanoTime(), base + Long.parseLong(value)); }
+					});
+				}
+			}
+			sb.setCompact(compact);
+			sb.setReconnectBackoff(50, 1000);
+			sb.connect(hostname, port, "load subscriber " + i, "load generator");
+		}
+		awaitConnected(10000);
+	}
+
+	private boolean awaitConnected(long millis) throws InterruptedException {
+		long until = System.currentTimeMillis() + millis;
+		while(System.currentTimeMillis() < until) {
+			boolean all = true;
+			for(Spacebrew sb : pubs) { all &= sb.connected() && sb.isCompact() == compact; }
+			for(Spacebrew sb : subs) { all &= sb.connected() && sb.isCompact() == compact; }
+			if(all) { return true; }
+			Thread.sleep(10);
+		}
+		throw new IllegalStateException("clients not connected after " + millis + " ms");
+	}
+
+	/**
+	 * Route each route of each publisher to the route of the same name of each
+	 * subscriber: directly on the embedded server, with route messages otherwise.
+	 */
+	private void addRoutes() throws Exception {
+		if(host == null) {
+			for(int p = 0; p < publishers; p++) {
+				for(int s = 0; s < subscribers; s++) {
+					for(int r = 0; r < routes; r++) { server.addRoute("load publisher " + p, "load" + r, "load subscriber " + s, "load" + r, type); }
+				}
+			}
+			return;
+		}
+		final CountDownLatch open = new CountDownLatch(1);
+		WebSocketClient admin = new WebSocketClient(new URI("ws://" + host + ":" + port)) {
+			@Override public void onOpen(ServerHandshake handshake) { open.countDown(); }
+
+			@Override public void onMessage(String message) {}
+
+			@Override public void onClose(int code, String reason, boolean remote) {}
+
+			@Override public void onError(Exception e) { System.err.println("[load] " + e); }
+		};
+		admin.connect();
+		if(!open.await(10, TimeUnit.SECONDS)) { throw new IllegalStateException("can't connect to " + host + ":" + port); }
+		InetSocketAddress local = admin.getConnection().getLocalSocketAddress(); // the address the server sees the clients from
+		String address = local.getAddress().getHostAddress();
+		for(int p = 0; p < publishers; p++) {
+			for(int s = 0; s < subscribers; s++) {
+				for(int r = 0; r < routes; r++) { admin.send(routeMessage("load publisher " + p, "load subscriber " + s, "load" + r, address)); }
+			}
+		}
+		admin.close();
+	}
+
+	private String routeMessage(String publisher, String subscriber, String name, String address) {
+		JSONObject route = new JSONObject();
+		route.put("type", "add");
+		route.put("publisher", endpoint(publisher, name, address));
+		route.put("subscriber", endpoint(subscriber, name, address));
+		JSONObject m = new JSONObject();
+		m.put("route", route);
+		return m.toString();
+	}
+
+	private JSONObject endpoint(String client, String name, String address) {
+		JSONObject e = new JSONObject();
+		e.put("clientName", client);
+		e.put("name", name);
+		e.put("type", type);
+		e.put("remoteAddress", address);
+		return e;
+	}
+
+	/**
+	 * Have the embedded server close all connections, and wait for every
+	 * client to have reconnected.
+	 */
+	private void dropConnections() throws InterruptedException {
+		long t = System.nanoTime();
+		long[] before = new long[publishers + subscribers];
+		for(int i = 0; i < before.length; i++) { before[i] = client(i).getReconnectCount(); }
+		server.closeConnections();
+		for(int i = 0; i < before.length; i++) {
+			while(client(i).getReconnectCount() == before[i] || !client(i).connected()) { Thread.sleep(1); }
+		}
+		outageMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t);
+	}
+
+	private Spacebrew client(int i) { return (i < publishers) ? pubs[i] : subs[i - publishers]; }
+
+	/**
+	 * Publish on the routes of a publisher, in turn, on schedule.
+	 */
+	private void publish(int p) {
+		PublishRoute[] r = pubRoutes[p];
+		boolean range = type.equals("range");
+		double interval = 1e9 / ((double)rate * routes);
+		long start = System.nanoTime() + (long)(interval * p / publishers); // publishers interleaved
+		for(long k = 0; ; k++) {
+			long at = start + (long)(k * interval);
+			if(at >= measureTo) { return; }
+			long wait = at - System.nanoTime();
+			if(wait > 0) { LockSupport.parkNanos(wait); }
+			PublishRoute route = r[(int)(k % routes)];
+			if(range) { route.send((int)((at - base) / 1000)); }
+			else { route.send(Long.toString(at - base)); }
+			if(at >= measureFrom) { sent.incrementAndGet(); }
+		}
+	}
+
+	private void delivered(long now, long sentAt) {
+		if(stopping || sentAt < measureFrom || sentAt >= measureTo) { return; }
+		received.incrementAndGet();
+		latencies.record(now - sentAt);
+	}
+
+	private static long gcCount() {
+		long n = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) { n += Math.max(0, gc.getCollectionCount()); }
+		return n;
+	}
+
+	private static long gcTime() {
+		long n = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) { n += Math.max(0, gc.getCollectionTime()); }
+		return n;
+	}
+}
@@ -0,0 +1,132 @@
+package lab.spacebrew;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+/**
+ * End-to-end benchmark: a client sends on a route and waits for the message to
+ * come back on its subscription to the same route, through an in-process
+ * websocket server echoing every message (one message in flight at a time).
+ * <br>For JSON and compact frames, it prints the round trip time (mean and
+ * percentiles), the round trips per second, and the bytes allocated per round
+ * trip by all threads (client, server and websocket threads).
+ * <br>Run with: <code>java -cp bin:lib/* lab.spacebrew.RoundTripBenchmark [port]</code>
+ */
+public class RoundTripBenchmark implements SpacebrewClient {
+
+	private static final int WARMUP = 20000, ROUND_TRIPS = 100000;
+
+	private static volatile int echoed;
+	private static volatile Thread waiting;
+
+	/**
+	 * Echoes messages to their sender; acknowledges the compact mode.
+	 */
+	static final class EchoServer extends WebSocketServer {
+		EchoServer(int port) { super(new InetSocketAddress(port)); }
+
+		@Override public void onMessage(WebSocket c, String message) {
+			if(!message.startsWith("{\"config\"")) { c.send(message); }
+			else if(message.contains("\"compact\":1")) { c.send("{\"compact\":1}"); }
+		}
+
+		@Override public void onMessage(WebSocket c, ByteBuffer message) { c.send(message); }
+
+		@Override public void onOpen(WebSocket c, ClientHandshake handshake) {}
+
+		@Override public void onClose(WebSocket c, int code, String reason, boolean remote) {}
+
+		@Override public void onError(WebSocket c, Exception e) { System.err.println("[echo] " + e); }
+	}
+
+	public static void main(String[] args) throws Exception {
+		run((args.length > 0) ? Integer.parseInt(args[0]) : 9876);
+		System.exit(0); // the stopped server leaves a (non-daemon) worker thread behind
+	}
+
+	static void run(int port) throws Exception {
+		EchoServer server = new EchoServer(port);
+		server.start();
+		try {
+			roundTrips("range, JSON", port, "range", false);
+			roundTrips("string, JSON", port, "string", false);
+			roundTrips("range, compact", port, "range", true);
+			roundTrips("string, compact", port, "string", true);
+		} finally {
+			server.stop();
+		}
+	}
+
+	static void roundTrips(String name, int port, String type, boolean compact) throws Exception {
+		Spacebrew sb = new Spacebrew(new RoundTripBenchmark());
+		PublishRoute route = sb.addPublish("echo", type, type.equals("range") ? "0" : "");
+		if(type.equals("range")) {
+			sb.subscribeRange("echo", new RangeCallback() {
+				@Override public void accept(int value) { echoed(value); }
+			});
+		} else {
+			sb.subscribeString("echo", new StringCallback() {
+				@Override public void accept(String value) { echoed(value.length()); }
+			});
+		}
+		sb.setCompact(compact);
+		sb.connect("127.0.0.1", port, "roundtrip", "round trip benchmark");
+		for(int i = 0; i < 100 && !(sb.connected() && sb.isCompact() == compact); i++) { Thread.sleep(50); }
+		if(sb.isCompact() != compact) { throw new IllegalStateException("not connected to the echo server"); }
+
+		String[] strings = new String[1024];
+		for(int i = 0; i < strings.length; i++) { strings[i] = "hello " + i; }
+		boolean range = type.equals("range");
+		waiting = Thread.currentThread();
+		for(int i = 0; i < WARMUP; i++) { roundTrip(route, range, i, strings); }
+
+		long[] times = new long[ROUND_TRIPS];
+		long bytes0 = allocatedBytes();
+		long t0 = System.nanoTime();
+		for(int i = 0; i < ROUND_TRIPS; i++) {
+			long t = System.nanoTime();
+			roundTrip(route, range, i, strings);
+			times[i] = System.nanoTime() - t;
+		}
+		long t1 = System.nanoTime();
+		long bytes1 = allocatedBytes();
+		sb.close();
+
+		Arrays.sort(times);
+		System.out.println(String.format("%-22s %8.1f us mean %8.1f us p50 %8.1f us p99 %8.0f msg/s %10.1f B/msg",
+				name, (t1 - t0) / (double)ROUND_TRIPS / 1000, times[ROUND_TRIPS / 2] / 1000.0, times[ROUND_TRIPS * 99 / 100] / 1000.0,
+				ROUND_TRIPS / ((t1 - t0) / 1e9), (bytes1 - bytes0) / (double)ROUND_TRIPS));
+	}
+
+	private static void roundTrip(PublishRoute route, boolean range, int i, String[] strings) {
+		int expected = range ? i : strings[i & 1023].length();
+		echoed = -1;
+		if(range) { route.send(i); }
+		else { route.send(strings[i & 1023]); }
+		while(echoed != expected) { LockSupport.parkNanos(100000); }
+	}
+
+	private static void echoed(int value) {
+		echoed = value;
+		LockSupport.unpark(waiting);
+	}
+
+	/**
+	 * @return {long} bytes allocated so far by the live threads
+	 */
+	static long allocatedBytes() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for(long n : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			if(n > 0) { total += n; }
+		}
+		return total;
+	}
+}
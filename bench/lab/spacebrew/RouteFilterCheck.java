@@ -0,0 +1,76 @@
+package lab.spacebrew;
+
+/**
+ * Deterministic check of the decisions of publish filters (see PublishFilter):
+ * sequences of values sent at given times (in ms since the filter was created,
+ * so no clock is involved) along routes with a deadband, a relative deadband,
+ * a minimum interval, a heartbeat and their combinations, with the expected
+ * decision for each value and the expected counts of values suppressed in the
+ * deadband, by the interval, and sent as heartbeats.
+ * <br>It throws an IllegalStateException at the first unexpected decision or
+ * count, so that it can be run again after changes to the filters.
+ * <br>Run with: <code>java -cp bin:lib/* lab.spacebrew.RouteFilterCheck</code>
+ */
+public class RouteFilterCheck {
+
+	private static final long WRAP = 1L << 31; // ms, see RouteFilter
+
+	public static void main(String[] args) {
+		run();
+	}
+
+	static void run() {
+		// { time, value, 1 if sent }, then { in deadband, by interval, heartbeats }
+		check("change only", PublishFilter.changeOnly(), false,
+				new long[][] { { 0, 5, 1 }, { 1, 5, 0 }, { 2, 6, 1 }, { 3, 6, 0 }, { 4, 5, 1 } },
+				2, 0, 0);
+		check("deadband 3", PublishFilter.changeOnly().withDeadband(3), false,
+				new long[][] { { 0, 10, 1 }, { 1, 13, 0 }, { 2, 7, 0 }, { 3, 14, 1 }, { 4, 11, 0 }, { 5, 10, 1 } },
+				3, 0, 0);
+		check("deadband 10%", PublishFilter.changeOnly().withDeadbandPercent(10), false,
+				new long[][] { { 0, 100, 1 }, { 1, 110, 0 }, { 2, 111, 1 }, { 3, 100, 0 }, { 4, 99, 1 }, { 5, 0, 1 }, { 6, 0, 0 }, { 7, 1, 1 } },
+				3, 0, 0);
+		check("deadband 2 or 10%", PublishFilter.changeOnly().withDeadband(2).withDeadbandPercent(10), false,
+				new long[][] { { 0, 10, 1 }, { 1, 12, 0 }, { 2, 13, 1 }, { 3, 100, 1 }, { 4, 109, 0 }, { 5, 111, 1 } },
+				2, 0, 0);
+		check("min interval 20", new PublishFilter().withMinInterval(20), false,
+				new long[][] { { 0, 1, 1 }, { 19, 2, 0 }, { 20, 3, 1 }, { 39, 3, 0 }, { 40, 3, 1 } },
+				0, 2, 0);
+		check("change only, heartbeat 1000", PublishFilter.changeOnly().withHeartbeat(1000), false,
+				new long[][] { { 0, 5, 1 }, { 999, 5, 0 }, { 1000, 5, 1 }, { 1500, 5, 0 }, { 2000, 5, 1 }, { 2001, 6, 1 } },
+				2, 0, 2);
+		check("change only, min interval 20, heartbeat 100", PublishFilter.changeOnly().withMinInterval(20).withHeartbeat(100), false,
+				new long[][] { { 0, 1, 1 }, { 10, 2, 0 }, { 30, 2, 1 }, { 50, 2, 0 }, { 129, 2, 0 }, { 130, 2, 1 }, { 140, 3, 0 } },
+				2, 2, 1);
+		check("boolean, deadband 5", PublishFilter.changeOnly().withDeadband(5), true,
+				new long[][] { { 0, 0, 1 }, { 1, 1, 1 }, { 2, 1, 0 }, { 3, 0, 1 } },
+				1, 0, 0);
+		check("min interval 20, clock wrapping", new PublishFilter().withMinInterval(20), false,
+				new long[][] { { WRAP - 10, 1, 1 }, { WRAP + 5, 2, 0 }, { WRAP + 10, 3, 1 } },
+				0, 1, 0);
+
+		// a value admitted but not sent (e.g., disconnected) is forgotten
+		RouteFilter f = new RouteFilter(PublishFilter.changeOnly());
+		long admitted = f.admit(5, false, 0);
+		if(admitted == 0) { throw new IllegalStateException("unsent: first value suppressed"); }
+		f.unsent(admitted);
+		if(f.admit(5, false, 1) == 0) { throw new IllegalStateException("unsent: value suppressed after unsent"); }
+		if(f.admit(5, false, 2) != 0) { throw new IllegalStateException("unsent: unchanged value sent"); }
+		System.out.println("unsent: ok");
+	}
+
+	static void check(String name, PublishFilter config, boolean bool, long[][] steps, long inDeadband, long byInterval, long heartbeats) {
+		RouteFilter f = new RouteFilter(config);
+		for(long[] step : steps) {
+			boolean sent = f.admit((int)step[1], bool, step[0]) != 0;
+			if(sent != (step[2] != 0)) {
+				throw new IllegalStateException(name + ": value " + step[1] + " at " + step[0] + " ms " + (sent ? "sent" : "suppressed"));
+			}
+		}
+		if(f.inDeadband.get() != inDeadband || f.byInterval.get() != byInterval || f.heartbeats.get() != heartbeats) {
+			throw new IllegalStateException(name + ": " + f.inDeadband.get() + " in deadband, " + f.byInterval.get()
+					+ " by interval, " + f.heartbeats.get() + " heartbeats (expected " + inDeadband + ", " + byInterval + ", " + heartbeats + ")");
+		}
+		System.out.println(name + ": ok");
+	}
+}
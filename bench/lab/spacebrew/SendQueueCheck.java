@@ -0,0 +1,99 @@
+package lab.spacebrew;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stress check of the send queue (see <code>Spacebrew.setAsyncSend</code>):
+ * 8 producer threads queue numbered frames into a small SendQueue while one
+ * consumer thread takes them, pausing now and then so that the queue fills up.
+ * <br>For each overflow policy, it checks that the frames of each producer come
+ * out in order and at most once, that none is lost under BLOCK, and that
+ * frames received + dropped + refused == frames sent under the others; it
+ * throws an IllegalStateException when a check fails, so that it can be run
+ * again after changes to the queue.
+ * <br>Frames are queued and taken directly (the client is never connected,
+ * so its writer thread leaves the queue alone).
+ * <br>Run with: <code>java -cp bin:lib/* lab.spacebrew.SendQueueCheck</code>
+ */
+public class SendQueueCheck implements SpacebrewClient {
+
+	private static final int PRODUCERS = 8, FRAMES = 200000, CAPACITY = 64; // frames per producer
+
+	public static void main(String[] args) throws Exception {
+		run();
+		System.exit(0); // see RoundTripBenchmark
+	}
+
+	static void run() throws Exception {
+		for(OverflowPolicy policy : OverflowPolicy.values()) { check(policy); }
+	}
+
+	static void check(OverflowPolicy policy) throws Exception {
+		final SendQueue q = new SendQueue(CAPACITY, policy, new Spacebrew(new SendQueueCheck()));
+		final long[] accepted = new long[PRODUCERS];
+		final long[] last = new long[PRODUCERS];
+		for(int p = 0; p < PRODUCERS; p++) { last[p] = -1; }
+		final long[] received = new long[1];
+		final String[] error = new String[1];
+		final boolean[] done = new boolean[1];
+
+		Thread consumer = new Thread("consumer") {
+			@Override public void run() {
+				for(int n = 0; ; n++) {
+					FrameEncoder e = FrameEncoder.get();
+					if(!q.poll(e)) {
+						synchronized(done) { if(done[0] && q.depth() == 0) { return; } }
+						Thread.yield();
+						continue;
+					}
+					long v = e.bytes().getLong();
+					int p = (int)(v >>> 32);
+					long seq = v & 0xffffffffL;
+					if(p < 0 || p >= PRODUCERS || seq <= last[p]) {
+						if(error[0] == null) { error[0] = "producer " + p + ": frame " + seq + " after " + ((p >= 0 && p < PRODUCERS) ? last[p] : -1); }
+					} else {
+						last[p] = seq;
+					}
+					received[0]++;
+					if((n & 1023) == 1023) { LockSupport.parkNanos(200000L); } // let the queue fill up
+				}
+			}
+		};
+		consumer.start();
+
+		Thread[] producers = new Thread[PRODUCERS];
+		for(int t = 0; t < PRODUCERS; t++) {
+			final int p = t;
+			producers[t] = new Thread("producer " + t) {
+				@Override public void run() {
+					long n = 0;
+					for(int i = 0; i < FRAMES; i++) {
+						FrameEncoder e = FrameEncoder.get().putFixed(((long)p << 32) | i, 8);
+						if(q.offer(e)) { n++; }
+					}
+					accepted[p] = n;
+				}
+			};
+		}
+		long t0 = System.nanoTime();
+		for(Thread p : producers) { p.start(); }
+		for(Thread p : producers) { p.join(); }
+		synchronized(done) { done[0] = true; }
+		consumer.join();
+		long t1 = System.nanoTime();
+
+		long sent = (long)PRODUCERS * FRAMES, refused = 0;
+		for(int p = 0; p < PRODUCERS; p++) { refused += FRAMES - accepted[p]; }
+		System.out.println(String.format("%-11s sent %d, received %d, dropped %d, refused %d, %.0f ms",
+				policy, sent, received[0], q.drops(), q.rejections(), (t1 - t0) / 1e6));
+		if(error[0] != null) { throw new IllegalStateException(policy + ": out of order or duplicate, " + error[0]); }
+		if(received[0] + q.drops() + q.rejections() != sent) {
+			throw new IllegalStateException(policy + ": received + dropped + refused != sent");
+		}
+		if(policy == OverflowPolicy.BLOCK && received[0] != sent) { throw new IllegalStateException("BLOCK: frames lost"); }
+		if(policy == OverflowPolicy.DROP_OLDEST && refused != 0) { throw new IllegalStateException("DROP_OLDEST: frames refused"); }
+		if((policy == OverflowPolicy.DROP_NEWEST || policy == OverflowPolicy.FAIL) && refused != q.drops() + q.rejections()) {
+			throw new IllegalStateException(policy + ": offer returned false " + refused + " times");
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package lab.spacebrew;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+/**
+ * Throughput benchmark of the send path with many producer threads: 1 to 16
+ * threads send range values, each on its own route, through one Spacebrew
+ * client to an in-process websocket server that counts the messages.
+ * <br>Synchronous sends (each thread writes its frame to the websocket) are
+ * compared with asynchronous sends (threads queue their frames, and the writer
+ * thread writes them in batches, see FrameBatch). Producers stay at most
+ * WINDOW messages ahead of the server, so that neither mode piles up frames
+ * in memory.
+ * <br>For each mode and number of threads, it prints the messages received
+ * per second by the server and the bytes allocated per message by all threads.
+ * Throughput can only grow with the threads up to the number of cores of the
+ * machine (client and server share them), which it prints first: on a single
+ * core, the numbers compare the cost per message of the two modes, not how
+ * they scale.
+ * <br>Run with: <code>java -cp bin:lib/* lab.spacebrew.SendScalingBenchmark [port]</code>
+ */
+public class SendScalingBenchmark implements SpacebrewClient {
+
+	private static final int[] THREADS = { 1, 2, 4, 8, 16 };
+	private static final long WARMUP = 1000, DURATION = 3000; // ms
+	private static final int WINDOW = 20000;
+
+	private static volatile boolean stopped;
+
+	/**
+	 * Counts the messages it receives (except configs).
+	 */
+	static final class SinkServer extends WebSocketServer {
+		final AtomicLong received = new AtomicLong();
+
+		SinkServer(int port) { super(new InetSocketAddress(port)); }
+
+		@Override public void onMessage(WebSocket c, String message) {
+			if(!message.startsWith("{\"config\"")) { received.incrementAndGet(); }
+		}
+
+		@Override public void onMessage(WebSocket c, ByteBuffer message) { received.incrementAndGet(); }
+
+		@Override public void onOpen(WebSocket c, ClientHandshake handshake) {}
+
+		@Override public void onClose(WebSocket c, int code, String reason, boolean remote) {}
+
+		@Override public void onError(WebSocket c, Exception e) { System.err.println("[sink] " + e); }
+	}
+
+	public static void main(String[] args) throws Exception {
+		run((args.length > 0) ? Integer.parseInt(args[0]) : 9878);
+		System.exit(0); // see RoundTripBenchmark
+	}
+
+	static void run(int port) throws Exception {
+		System.out.println(Runtime.getRuntime().availableProcessors() + " cores");
+		SinkServer server = new SinkServer(port);
+		server.start();
+		try {
+			for(int threads : THREADS) { measure("sync", server, port, threads, false); }
+			for(int threads : THREADS) { measure("async", server, port, threads, true); }
+		} finally {
+			server.stop();
+		}
+	}
+
+	static void measure(String name, final SinkServer server, int port, int threads, boolean async) throws Exception {
+		Spacebrew sb = new Spacebrew(new SendScalingBenchmark());
+		final PublishRoute[] routes = new PublishRoute[threads];
+		for(int i = 0; i < threads; i++) { routes[i] = sb.addPublish("sensor " + i, 0); }
+		if(async) { sb.setAsyncSend(4096, OverflowPolicy.BLOCK); }
+		sb.connect("127.0.0.1", port, "scaling", "send scaling benchmark");
+		for(int i = 0; i < 100 && !sb.connected(); i++) { Thread.sleep(50); }
+		if(!sb.connected()) { throw new IllegalStateException("not connected to the sink server"); }
+
+		final long base = server.received.get();
+		final AtomicLong sent = new AtomicLong();
+		stopped = false;
+		Thread[] producers = new Thread[threads];
+		for(int t = 0; t < threads; t++) {
+			final PublishRoute route = routes[t];
+			producers[t] = new Thread("producer " + t) {
+				@Override public void run() {
+					for(int i = 0; ; i++) {
+						route.send(i & 1023);
+						if((i & 255) == 255) {
+							sent.addAndGet(256);
+							while(!stopped && sent.get() - (server.received.get() - base) > WINDOW) { LockSupport.parkNanos(20000); }
+							if(stopped) { return; }
+						}
+					}
+				}
+			};
+			producers[t].start();
+		}
+		Thread.sleep(WARMUP);
+		long bytes0 = RoundTripBenchmark.allocatedBytes();
+		long r0 = server.received.get();
+		long t0 = System.nanoTime();
+		Thread.sleep(DURATION);
+		long r1 = server.received.get();
+		long t1 = System.nanoTime();
+		long bytes1 = RoundTripBenchmark.allocatedBytes();
+		stopped = true;
+		for(Thread p : producers) { p.join(); }
+		sb.close();
+
+		long n = r1 - r0;
+		System.out.println(String.format("%-6s %3d threads %10.0f msg/s %10.1f B/msg",
+				name, threads, n / ((t1 - t0) / 1e9), (bytes1 - bytes0) / (double)Math.max(1, n)));
+	}
+}
@@ -0,0 +1,62 @@
+package lab.spacebrew;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Micro-benchmark of the wire encodings: JSON envelopes (FrameTemplate and
+ * FrameDecoder) vs. the compact binary encoding (CompactCodec).
+ * <br>It prints the frame size of a typical message in each encoding, then
+ * the time and bytes allocated per message to encode and to decode it
+ * (see EncodeBenchmark).
+ * <br>Run with: <code>java -cp bin:lib/* lab.spacebrew.WireBenchmark</code>
+ */
+public class WireBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final FrameTemplate range = new FrameTemplate("mypublisher", "a range publisher", "range");
+		final FrameTemplate string = new FrameTemplate("mypublisher", "a string publisher", "string");
+
+		System.out.println(String.format("%-22s %8d B/frame", "range, JSON", range.encode(512).length()));
+		System.out.println(String.format("%-22s %8d B/frame", "range, compact", CompactCodec.encode(3, 512).length()));
+		System.out.println(String.format("%-22s %8d B/frame", "string, JSON", string.encode("hello").length()));
+		System.out.println(String.format("%-22s %8d B/frame", "string, compact", CompactCodec.encode(3, "hello").length()));
+
+		EncodeBenchmark.Case jsonEncode = new EncodeBenchmark.Case() {
+			@Override public int run(int i) { return range.encode(i).length(); }
+		};
+		EncodeBenchmark.Case compactEncode = new EncodeBenchmark.Case() {
+			@Override public int run(int i) { return CompactCodec.encode(3, i).length(); }
+		};
+
+		final String[] frames = new String[1024];
+		final ByteBuffer[] binaries = new ByteBuffer[1024];
+		for(int i = 0; i < frames.length; i++) {
+			frames[i] = range.encode(i * 37).toString();
+			FrameEncoder e = CompactCodec.encode(3, i * 37);
+			byte[] b = new byte[e.length()];
+			e.copyTo(b);
+			binaries[i] = ByteBuffer.wrap(b);
+		}
+		final FrameDecoder decoder = new FrameDecoder();
+		EncodeBenchmark.Case jsonDecode = new EncodeBenchmark.Case() {
+			@Override public int run(int i) {
+				decoder.decode(frames[i & 1023]);
+				return decoder.name().length() + decoder.rangeValue();
+			}
+		};
+		EncodeBenchmark.Case compactDecode = new EncodeBenchmark.Case() {
+			@Override public int run(int i) {
+				ByteBuffer b = binaries[i & 1023];
+				b.clear();
+				b.get();
+				return CompactCodec.varint(b) + CompactCodec.range(b);
+			}
+		};
+
+		EncodeBenchmark.warmUp(jsonEncode, compactEncode, jsonDecode, compactDecode);
+		EncodeBenchmark.measure("range encode, JSON", jsonEncode);
+		EncodeBenchmark.measure("range encode, compact", compactEncode);
+		EncodeBenchmark.measure("range decode, JSON", jsonDecode);
+		EncodeBenchmark.measure("range decode, compact", compactDecode);
+	}
+}
@@ -17,12 +17,14 @@ import javax.swing.SwingConstants;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
+import lab.spacebrew.PublishRoute;
 import lab.spacebrew.Spacebrew;
 import lab.spacebrew.SpacebrewClient;
 
 /**
  * Publisher example based on Spacebrew (pure) Java library.
- * <br>It shows the usage of boolean, range, string, and custom publication methods.
+ * <br>It shows the usage of boolean, range, string, and custom publication methods,
+ * both by route name and through a route handle.
  * @author Luca Mari
  * @version 22 Feb 2014
  */
@@ -36,13 +38,14 @@ public class FullExamplePub extends JFrame implements SpacebrewClient, MouseList
 	JTextField text = new JTextField("");
 
 	Spacebrew cl;
+	PublishRoute rangeRoute;
 
 	public FullExamplePub() {
 		super("Publisher Example");
 		setBounds(100, 100, 300, 200);
 		cl = new Spacebrew(this);
 		cl.addPublish("a Boolean publisher", false);
-		cl.addPublish("a range publisher", 0);
+		rangeRoute = cl.addPublish("a range publisher", 0);
 		cl.addPublish("a string publisher", "");
 		cl.addPublish("a custom publisher", "x,y", "");
 		cl.connect(hostname, "myfullpublisher", "A pure Java publisher");
@@ -65,11 +68,11 @@ public class FullExamplePub extends JFrame implements SpacebrewClient, MouseList
 
 	@Override public void mouseReleased(MouseEvent e) { cl.send("a Boolean publisher", false); }
 
-	@Override public void stateChanged(ChangeEvent e) { cl.send("a range publisher", slider.getValue()); }
+	@Override public void stateChanged(ChangeEvent e) { rangeRoute.send(slider.getValue()); }
 	
 	@Override public void keyTyped(KeyEvent e) { cl.send("a string publisher", text.getText()); }
 	
-	@Override public void mouseMoved(MouseEvent e) { cl.send("a custom publisher", e.getX() + "," + e.getY()); }
+	@Override public void mouseMoved(MouseEvent e) { cl.send("a custom publisher", e.getX(), e.getY()); } // sent as "x,y"
 
 	public static void main(String[] args) {
 		new FullExamplePub();
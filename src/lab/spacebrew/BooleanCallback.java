@@ -0,0 +1,13 @@
+package lab.spacebrew;
+
+/**
+ * Callback for a boolean subscription (see <code>Spacebrew.subscribeBoolean</code>).
+ */
+public interface BooleanCallback {
+
+	/**
+	 * Called for each boolean message received on the route.
+	 * @param value {boolean} the value received
+	 */
+	void accept(boolean value);
+}
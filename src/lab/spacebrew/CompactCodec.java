@@ -0,0 +1,95 @@
+package lab.spacebrew;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Compact wire encoding of messages, in binary frames (see <code>Spacebrew.setCompact</code>):
+ * <br><code>[byte kind][varint route id][value]</code>
+ * <br>where the route id is the index of the route in the publish (outbound)
+ * or subscribe (inbound) messages of the client config, and the value is a
+ * zig-zag varint for a range, a byte for a boolean, and the UTF-8 bytes (up to
+ * the end of the frame) for a string or custom type.
+ * <br>A range message thus takes 3 to 7 bytes instead of a JSON envelope
+ * repeating client name, route name and type. The first byte of a binary frame
+ * is never '{', which tells compact frames from JSON ones once they are queued.
+ * <br>A kind with the Trace.TRACED bit set is followed, at the end of the
+ * frame, by tracing metadata (see Trace).
+ */
+final class CompactCodec {
+
+	static final byte RANGE = 1, BOOLEAN = 2, STRING = 3;
+
+	/**
+	 * Version of the compact encoding, asked for in the config and acknowledged by the server
+	 */
+	static final int VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private CompactCodec() {}
+
+	static FrameEncoder encode(int id, int value) {
+		return FrameEncoder.get().putByte(RANGE).putVarint(id).putVarint((value << 1) ^ (value >> 31));
+	}
+
+	static FrameEncoder encode(int id, boolean value) {
+		return FrameEncoder.get().putByte(BOOLEAN).putVarint(id).putByte(value ? 1 : 0);
+	}
+
+	static FrameEncoder encode(int id, CharSequence value) {
+		return FrameEncoder.get().putByte(STRING).putVarint(id).putUtf8(value);
+	}
+
+	/**
+	 * Encode a numeric vector, as the string "x,y,..." (the type of the route is a custom one).
+	 */
+	static FrameEncoder encode(int id, float[] values, int count) {
+		return FrameEncoder.get().putByte(STRING).putVarint(id).putList(values, count);
+	}
+
+	static FrameEncoder encode(int id, double[] values, int count) {
+		return FrameEncoder.get().putByte(STRING).putVarint(id).putList(values, count);
+	}
+
+	static FrameEncoder encode(int id, int[] values, int count) {
+		return FrameEncoder.get().putByte(STRING).putVarint(id).putList(values, count);
+	}
+
+	/**
+	 * @return {boolean} true if the frame encoded in a buffer is compact (binary), not JSON
+	 */
+	static boolean isCompact(ByteBuffer frame) {
+		return frame.remaining() > 0 && frame.get(frame.position()) != '{';
+	}
+
+	/**
+	 * Read a varint.
+	 * @throws IllegalArgumentException if the frame is truncated or the varint too long
+	 */
+	static int varint(ByteBuffer b) {
+		int v = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			if(!b.hasRemaining()) { throw new IllegalArgumentException("truncated frame"); }
+			int c = b.get();
+			v |= (c & 0x7f) << shift;
+			if(c >= 0) { return v; }
+		}
+		throw new IllegalArgumentException("bad varint");
+	}
+
+	/**
+	 * Read a range value.
+	 */
+	static int range(ByteBuffer b) {
+		int v = varint(b);
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Read a string value (the rest of the frame).
+	 */
+	static String string(ByteBuffer b) {
+		return UTF8.decode(b).toString();
+	}
+}
@@ -0,0 +1,183 @@
+package lab.spacebrew;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client callback resolved once, when the route is registered, and compiled
+ * into a MethodHandle bound to the client instance.
+ * <br>Calls go through <code>invokeExact</code>, so primitive values reach the
+ * client method without boxing and without the Object[] of <code>Method.invoke</code>.
+ * <br>As a route callback it implements the typed callback interfaces, which
+ * is how the name-based <code>addSubscribe</code> sits on top of the typed API.
+ */
+final class CompiledCallback implements RangeCallback, BooleanCallback, StringCallback, CustomCallback, ObjectCallback<Object> {
+
+	/**
+	 * Name of the client method (used in error messages)
+	 * @type {String}
+	 */
+	final String methodName;
+
+	private final MethodHandle handle;
+	private AtomicLong failures; // counts failed invocations, if set
+
+	private CompiledCallback(String methodName, MethodHandle handle) {
+		this.methodName = methodName;
+		this.handle = handle;
+	}
+
+	/**
+	 * Compile a method of the client into a callback.
+	 * @param target {Object} instance the method will be invoked on
+	 * @param method {Method} public method of the target
+	 * @return {CompiledCallback} the compiled callback
+	 * @throws IllegalAccessException if the method can't be accessed
+	 */
+	static CompiledCallback compile(Object target, Method method) throws IllegalAccessException {
+		MethodHandle mh;
+		try {
+			mh = MethodHandles.publicLookup().unreflect(method);
+		} catch(IllegalAccessException e) { // public method of a non-public class
+			method.setAccessible(true);
+			mh = MethodHandles.lookup().unreflect(method);
+		}
+		mh = mh.bindTo(target);
+		return new CompiledCallback(method.getName(), mh.asType(mh.type().changeReturnType(void.class)));
+	}
+
+	/**
+	 * Look up and compile a public method of the client.
+	 * @param target {Object} instance the method will be invoked on
+	 * @param methodName {String} name of the method
+	 * @param parameterTypes {Class[]} parameter types of the method
+	 * @return {CompiledCallback} the compiled callback, or null if no such method is accessible
+	 */
+	static CompiledCallback lookup(Object target, String methodName, Class<?>... parameterTypes) {
+		try {
+			return compile(target, target.getClass().getMethod(methodName, parameterTypes));
+		} catch(Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Look up and compile a public method of the client taking one object
+	 * (e.g., the values a codec decodes), other than a String.
+	 * <br>Among overloads, the method is the one the compiler would pick for a
+	 * value of the given type: the most specific one accepting it.
+	 * @param target {Object} instance the method will be invoked on
+	 * @param methodName {String} name of the method
+	 * @param valueType {Class} type of the values (see <code>valueType</code>), or null if unknown: then there must be one such method
+	 * @return {CompiledCallback} the compiled callback, taking an Object (cast to the parameter type), or null if no such method is accessible
+	 * @throws IllegalArgumentException if several methods could take the values, none more specific than the others
+	 */
+	static CompiledCallback lookupObject(Object target, String methodName, Class<?> valueType) {
+		ArrayList<Method> candidates = new ArrayList<Method>();
+		for(Method m : target.getClass().getMethods()) {
+			Class<?>[] p = m.getParameterTypes();
+			if(!m.getName().equals(methodName) || p.length != 1 || p[0].isPrimitive() || p[0] == String.class) { continue; }
+			if(valueType == null || p[0].isAssignableFrom(valueType)) { candidates.add(m); }
+		}
+		if(candidates.isEmpty()) { return null; }
+		if(valueType == null && candidates.size() > 1) {
+			throw new IllegalArgumentException("method " + methodName + " is overloaded, and the type of the values is unknown: " + candidates);
+		}
+		Method best = candidates.get(0);
+		for(Method m : candidates) { // the most specific: its parameter is accepted by all the others
+			if(best.getParameterTypes()[0].isAssignableFrom(m.getParameterTypes()[0])) { best = m; }
+		}
+		for(Method m : candidates) {
+			if(!m.getParameterTypes()[0].isAssignableFrom(best.getParameterTypes()[0])) {
+				throw new IllegalArgumentException("method " + methodName + " is ambiguous for values of type "
+						+ (valueType != null ? valueType.getName() : "(unknown)") + ": " + best + ", " + m);
+			}
+		}
+		try {
+			CompiledCallback c = compile(target, best);
+			return new CompiledCallback(c.methodName, c.handle.asType(MethodType.methodType(void.class, Object.class)));
+		} catch(Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the type of the values of a codec, as declared by its class
+	 * (e.g., Point for a class implementing <code>SpacebrewCodec&lt;Point&gt;</code>).
+	 * @return {Class} the type, or null if the class doesn't tell (e.g., a generic codec)
+	 */
+	static Class<?> valueType(SpacebrewCodec<?> codec) {
+		for(Class<?> c = codec.getClass(); c != null; c = c.getSuperclass()) {
+			for(Type t : c.getGenericInterfaces()) {
+				if(!(t instanceof ParameterizedType) || ((ParameterizedType)t).getRawType() != SpacebrewCodec.class) { continue; }
+				Type a = ((ParameterizedType)t).getActualTypeArguments()[0];
+				if(a instanceof Class) { return (Class<?>)a; }
+				if(a instanceof ParameterizedType) { return (Class<?>)((ParameterizedType)a).getRawType(); }
+				return null; // a type variable
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Count the failed invocations (as a route callback) in a counter.
+	 * @return {CompiledCallback} this callback
+	 */
+	CompiledCallback countFailures(AtomicLong counter) {
+		failures = counter;
+		return this;
+	}
+
+	private void failed() {
+		System.err.println("[" + methodName + "] invoke failed.");
+		if(failures != null) { failures.incrementAndGet(); }
+	}
+
+	@Override public void accept(boolean value) {
+		try {
+			handle.invokeExact(value);
+		} catch(Throwable e) {
+			failed();
+		}
+	}
+
+	@Override public void accept(int value) {
+		try {
+			handle.invokeExact(value);
+		} catch(Throwable e) {
+			failed();
+		}
+	}
+
+	@Override public void accept(String value) {
+		try {
+			handle.invokeExact(value);
+		} catch(Throwable e) {
+			failed();
+		}
+	}
+
+	@Override public void accept(CharSequence value) { accept(value.toString()); }
+
+	@Override public void accept(Object value) { // (handle of lookupObject)
+		try {
+			handle.invokeExact(value);
+		} catch(Throwable e) {
+			failed();
+		}
+	}
+
+	void invoke(String name, boolean value) throws Throwable { handle.invokeExact(name, value); }
+
+	void invoke(String name, int value) throws Throwable { handle.invokeExact(name, value); }
+
+	void invoke(String name, String value) throws Throwable { handle.invokeExact(name, value); }
+
+	void invoke(String name, String type, String value) throws Throwable { handle.invokeExact(name, type, value); }
+}
@@ -0,0 +1,15 @@
+package lab.spacebrew;
+
+/**
+ * Callback for a subscription of custom type (see <code>Spacebrew.subscribeCustom</code>).
+ */
+public interface CustomCallback {
+
+	/**
+	 * Called for each message received on the route.
+	 * <br>The value may be backed by a reused buffer: copy it (e.g., with
+	 * <code>toString()</code>) if it must outlive the call.
+	 * @param value {CharSequence} the raw value received
+	 */
+	void accept(CharSequence value);
+}
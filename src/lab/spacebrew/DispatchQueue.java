@@ -0,0 +1,124 @@
+package lab.spacebrew;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Messages of a route waiting to be delivered to its callbacks on the
+ * dispatch executor (see <code>Spacebrew.setDispatchExecutor</code>).
+ * <br>At most one task per route is on the executor at any time, which keeps
+ * the messages of a route in order while different routes run in parallel;
+ * a task delivers a bounded batch and then gives way to the other routes.
+ * <br>The queue is a bounded ring with a single consumer (the running task); its
+ * producers (the websocket thread, and publishers in the JVM, see
+ * <code>SharedConnection.setLoopback</code>) take turns on its lock, which is
+ * never held while callbacks run. Range and boolean values are kept
+ * in primitive slots. When it's full, new messages are dropped, so a hot route
+ * can't grow without bounds or starve the others.
+ */
+final class DispatchQueue implements Runnable {
+
+	private static final int BATCH = 64;
+
+	private final Spacebrew sb;
+	private final Subscription s; // null: routes without subscription (default handlers)
+	private final int mask;
+	private final int[] kinds, ints;
+	private final long[] times; // System.nanoTime() of reception
+	private final String[] names, types, values;
+	private final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	DispatchQueue(Spacebrew sb, Subscription s, int capacity) {
+		this.sb = sb;
+		this.s = s;
+		int n = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		mask = n - 1;
+		kinds = new int[n];
+		ints = new int[n];
+		times = new long[n];
+		names = new String[n];
+		types = new String[n];
+		values = new String[n];
+	}
+
+	/**
+	 * Queue a message and schedule the delivery.
+	 * @return {boolean} false if the queue is full and the message was dropped
+	 */
+	boolean offer(int kind, int intValue, String name, String type, String value, long receivedAt) {
+		synchronized(this) {
+			long t = tail.get();
+			if(t - head.get() > mask) {
+				sb.dispatchDropped();
+				return false;
+			}
+			int i = (int)t & mask;
+			kinds[i] = kind;
+			ints[i] = intValue;
+			times[i] = receivedAt;
+			names[i] = name;
+			types[i] = type;
+			values[i] = value;
+			tail.lazySet(t + 1);
+		}
+		schedule(); // outside the lock: it may deliver on this thread
+		return true;
+	}
+
+	private void schedule() {
+		if(scheduled.compareAndSet(false, true)) {
+			Executor executor = sb.dispatchExecutor();
+			if(executor == null) { // executor removed meanwhile: deliver inline
+				run();
+				return;
+			}
+			try {
+				executor.execute(this);
+			} catch(RejectedExecutionException e) {
+				scheduled.set(false);
+				System.err.println("[dispatch] executor rejected delivery for route " + (s != null ? s.name : "(default)"));
+			}
+		}
+	}
+
+	@Override public void run() {
+		try {
+			deliver();
+		} finally { // even if a callback threw an Error: the route must not stay scheduled
+			scheduled.set(false);
+			if(head.get() != tail.get()) { schedule(); } // more came in, or the batch was full
+		}
+	}
+
+	/**
+	 * Deliver a batch (the consumer: the task scheduled).
+	 */
+	private void deliver() {
+		Subscription current = (s != null) ? sb.subscribed(s.name) : null; // callbacks as of now (entries are replaced as callbacks are added)
+		long h = head.get();
+		long end = Math.min(tail.get(), h + BATCH);
+		for(; h < end; h++) {
+			int i = (int)h & mask;
+			String value = values[i];
+			values[i] = null;
+			try {
+				switch(kinds[i]) {
+					case FrameDecoder.RANGE: sb.deliverRange(current, names[i], ints[i], times[i]); break;
+					case FrameDecoder.BOOLEAN: sb.deliverBoolean(current, names[i], ints[i] != 0, times[i]); break;
+					case FrameDecoder.STRING: sb.deliverString(current, names[i], value, times[i]); break;
+					default: sb.deliverCustom(current, names[i], types[i], value, times[i]);
+				}
+			} finally {
+				head.lazySet(h + 1);
+			}
+		}
+	}
+
+	/**
+	 * @return {int} number of messages waiting
+	 */
+	int depth() { return (int)(tail.get() - head.get()); }
+}
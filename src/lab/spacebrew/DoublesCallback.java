@@ -0,0 +1,17 @@
+package lab.spacebrew;
+
+/**
+ * Callback for a subscription to numeric vectors of doubles, e.g. "x,y" coordinates
+ * (see <code>Spacebrew.subscribeDoubles</code>).
+ */
+public interface DoublesCallback {
+
+	/**
+	 * Called for each message received on the route.
+	 * <br>The array is reused from message to message (and may be longer than
+	 * the vector): copy the values if they must outlive the call.
+	 * @param values {double[]} the values received
+	 * @param count {int} number of values
+	 */
+	void accept(double[] values, int count);
+}
@@ -0,0 +1,17 @@
+package lab.spacebrew;
+
+/**
+ * Callback for a subscription to numeric vectors of floats, e.g. "x,y" coordinates
+ * (see <code>Spacebrew.subscribeFloats</code>).
+ */
+public interface FloatsCallback {
+
+	/**
+	 * Called for each message received on the route.
+	 * <br>The array is reused from message to message (and may be longer than
+	 * the vector): copy the values if they must outlive the call.
+	 * @param values {float[]} the values received
+	 * @param count {int} number of values
+	 */
+	void accept(float[] values, int count);
+}
@@ -0,0 +1,101 @@
+package lab.spacebrew;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Websocket frames gathered by the writer thread, to be written to the
+ * socket at once.
+ * <br>A Spacebrew message is a frame of its own, so messages can't be merged,
+ * but frames can follow each other in the same write: sending a batch costs one
+ * buffer, one wakeup of the websocket thread and one socket write, instead of
+ * one of each per message (which is what <code>WsClient.sendFrame</code> costs).
+ * <br>Frames are built as the websocket draft of the clients (RFC 6455, Draft_10
+ * and later) builds them: final, text for JSON and binary for compact messages,
+ * masked with a random key as a client must.
+ * <br>Used by the writer thread only.
+ */
+final class FrameBatch {
+
+	/**
+	 * Size from which a batch should be sent rather than grown
+	 */
+	static final int LIMIT = 64 * 1024;
+
+	private byte[] buf = new byte[4096];
+	private int len, count;
+	private int[] payloads = new int[64], lengths = new int[64]; // where the payload of each frame starts (after its mask), and its length
+
+	/**
+	 * Add a frame carrying the message encoded in a buffer.
+	 * @param e {FrameEncoder} the message
+	 */
+	void add(FrameEncoder e) {
+		int n = e.length();
+		ensure(n + 14);
+		buf[len++] = (byte)(CompactCodec.isCompact(e.bytes()) ? 0x82 : 0x81); // FIN, binary or text
+		if(n < 126) {
+			buf[len++] = (byte)(0x80 | n);
+		} else if(n < 65536) {
+			buf[len++] = (byte)(0x80 | 126);
+			buf[len++] = (byte)(n >>> 8);
+			buf[len++] = (byte)n;
+		} else {
+			buf[len++] = (byte)(0x80 | 127);
+			for(int shift = 56; shift >= 0; shift -= 8) { buf[len++] = (byte)((long)n >>> shift); }
+		}
+		int mask = ThreadLocalRandom.current().nextInt();
+		int m = len;
+		buf[len++] = (byte)(mask >>> 24);
+		buf[len++] = (byte)(mask >>> 16);
+		buf[len++] = (byte)(mask >>> 8);
+		buf[len++] = (byte)mask;
+		e.copyTo(buf, len);
+		for(int i = 0; i < n; i++) { buf[len + i] ^= buf[m + (i & 3)]; }
+		if(count == payloads.length) {
+			payloads = Arrays.copyOf(payloads, count * 2);
+			lengths = Arrays.copyOf(lengths, count * 2);
+		}
+		payloads[count] = len;
+		lengths[count++] = n;
+		len += n;
+	}
+
+	/**
+	 * Get back the message of a frame (e.g., the batch couldn't be sent).
+	 * @param i {int} index of the frame
+	 * @param e {FrameEncoder} an empty buffer
+	 * @return {FrameEncoder} the buffer, holding the message
+	 */
+	FrameEncoder frame(int i, FrameEncoder e) {
+		int p = payloads[i], m = p - 4;
+		for(int k = 0; k < lengths[i]; k++) { e.putByte(buf[p + k] ^ buf[m + (k & 3)]); }
+		return e;
+	}
+
+	/**
+	 * @return {int} number of frames in the batch
+	 */
+	int count() { return count; }
+
+	/**
+	 * @return {int} number of bytes in the batch
+	 */
+	int length() { return len; }
+
+	/**
+	 * Copy the frames, to be written (the batch is cleared once they're sent).
+	 * @return {ByteBuffer} the frames, in a buffer of their own (the websocket writes it later)
+	 */
+	ByteBuffer frames() { return ByteBuffer.wrap(Arrays.copyOf(buf, len)); }
+
+	/**
+	 * Empty the batch (sent, or the connection was lost).
+	 */
+	void clear() { len = count = 0; }
+
+	private void ensure(int n) {
+		if(len + n > buf.length) { buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n)); }
+	}
+}
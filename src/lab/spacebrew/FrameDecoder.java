@@ -0,0 +1,409 @@
+package lab.spacebrew;
+
+import org.json.JSONObject;
+
+/**
+ * Single-pass decoder of the Spacebrew message envelope, i.e.:
+ * <br><code>{"message":{"clientName":"...","name":"...","type":"...","value":...}}</code>
+ * <p>The frame isn't turned into a tree: the decoder only records where name,
+ * type and value (and client name) are in the frame, so the route can be resolved and a range
+ * value parsed with no intermediate Strings.
+ * Other members of the envelope are skipped, in any order.
+ * <br>A decoder is reused frame after frame and isn't thread-safe: the views
+ * it returns are valid until the next call to <code>decode</code>.
+ */
+final class FrameDecoder {
+
+	static final int OTHER = 0, RANGE = 1, BOOLEAN = 2, STRING = 3;
+
+	private String src;
+	private int pos;
+
+	private int nameStart, nameEnd, typeStart, typeEnd, valueStart, valueEnd, clientStart, clientEnd;
+	private int traceStart, traceEnd; // tracing metadata: [source,seq,micros] (see Trace)
+	private int traceSource; // tracing metadata, as parsed by traced()
+	private long traceSeq, traceMicros;
+	private boolean nameEscaped, typeEscaped, valueEscaped, valueQuoted, clientEscaped;
+
+	private final StringBuilder nameBuffer = new StringBuilder();
+	private final StringBuilder valueBuffer = new StringBuilder();
+	private final Slice nameSlice = new Slice();
+	private final Slice valueSlice = new Slice();
+	private final StringBuilder clientBuffer = new StringBuilder();
+	private final Slice clientSlice = new Slice();
+
+	/**
+	 * Decode a frame.
+	 * @param frame {String} the frame received
+	 * @return {boolean} true if the frame is a message envelope with name, type and value
+	 */
+	boolean decode(String frame) {
+		src = frame;
+		pos = 0;
+		nameStart = typeStart = valueStart = clientStart = traceStart = -1;
+		try {
+			boolean found = false;
+			if(next() != '{') { return false; }
+			if(peek() == '}') { return false; }
+			do {
+				int keyStart = pos + 1;
+				boolean escaped = string();
+				if(!escaped && is(keyStart, pos - 1, "message")) {
+					expect(':');
+					if(!message()) { return false; }
+					found = true;
+				} else {
+					expect(':');
+					skip();
+				}
+			} while(separator('}'));
+			return found && nameStart >= 0 && typeStart >= 0 && valueStart >= 0;
+		} catch(IndexOutOfBoundsException e) { // truncated frame, or bad escape
+			return false;
+		}
+	}
+
+	/**
+	 * Decode a frame, letting json4processing make sense of it (and retrying on
+	 * its canonical form) if it isn't in the usual form.
+	 * @param frame {String} the frame received
+	 * @return {boolean} true if the frame is a message envelope with name, type and value
+	 * @throws RuntimeException if the frame isn't JSON
+	 */
+	boolean decodeLenient(String frame) {
+		return decode(frame) || decode(new JSONObject(frame).toString());
+	}
+
+	private boolean message() {
+		if(next() != '{') { return false; }
+		if(peek() == '}') {
+			pos++;
+			return true;
+		}
+		do {
+			int keyStart = pos + 1;
+			boolean escaped = string();
+			int keyEnd = pos - 1;
+			expect(':');
+			int c = peek();
+			if(escaped) {
+				skip();
+			} else if(is(keyStart, keyEnd, "name") && c == '"') {
+				nameStart = pos + 1;
+				nameEscaped = string();
+				nameEnd = pos - 1;
+			} else if(is(keyStart, keyEnd, "clientName") && c == '"') {
+				clientStart = pos + 1;
+				clientEscaped = string();
+				clientEnd = pos - 1;
+			} else if(is(keyStart, keyEnd, "type") && c == '"') {
+				typeStart = pos + 1;
+				typeEscaped = string();
+				typeEnd = pos - 1;
+			} else if(is(keyStart, keyEnd, "trace") && c == '[') {
+				traceStart = pos + 1;
+				skip();
+				traceEnd = pos - 1;
+			} else if(is(keyStart, keyEnd, "value") && c != '{' && c != '[') {
+				if(c == '"') {
+					valueQuoted = true;
+					valueStart = pos + 1;
+					valueEscaped = string();
+					valueEnd = pos - 1;
+				} else {
+					valueQuoted = valueEscaped = false;
+					valueStart = pos;
+					skip();
+					valueEnd = pos;
+				}
+			} else {
+				skip();
+			}
+		} while(separator('}'));
+		return true;
+	}
+
+	/**
+	 * @return {int} length of the frame decoded, in chars
+	 */
+	int length() { return src.length(); }
+
+	/**
+	 * @return {CharSequence} name of route (a view on the frame)
+	 */
+	CharSequence name() {
+		if(nameEscaped) { return unescape(nameStart, nameEnd, nameBuffer); }
+		return nameSlice.of(src, nameStart, nameEnd);
+	}
+
+	/**
+	 * @return {CharSequence} name of client the message is addressed to (a view on the frame), or null if none
+	 */
+	CharSequence clientName() {
+		if(clientStart < 0) { return null; }
+		if(clientEscaped) { return unescape(clientStart, clientEnd, clientBuffer); }
+		return clientSlice.of(src, clientStart, clientEnd);
+	}
+
+	/**
+	 * @return {int} type of route: RANGE, BOOLEAN, STRING, or OTHER
+	 */
+	int typeCode() {
+		if(typeEscaped) { return OTHER; }
+		if(is(typeStart, typeEnd, "range")) { return RANGE; }
+		if(is(typeStart, typeEnd, "boolean")) { return BOOLEAN; }
+		if(is(typeStart, typeEnd, "string")) { return STRING; }
+		return OTHER;
+	}
+
+	/**
+	 * @return {String} type of route (only standard types come without allocation)
+	 */
+	String type() {
+		switch(typeCode()) {
+			case RANGE: return "range";
+			case BOOLEAN: return "boolean";
+			case STRING: return "string";
+			default: return typeEscaped ? unescape(typeStart, typeEnd, new StringBuilder()).toString() : src.substring(typeStart, typeEnd);
+		}
+	}
+
+	/**
+	 * Parse the value as a range, straight from the frame.
+	 * @return {int} the value
+	 * @throws NumberFormatException if the value isn't a number
+	 */
+	int rangeValue() {
+		int i = valueStart, end = valueEnd;
+		if(valueEscaped || i >= end) { return (int)Double.parseDouble(stringValue()); }
+		boolean negative = false;
+		if(src.charAt(i) == '-') {
+			negative = true;
+			i++;
+		}
+		if(i >= end) { throw new NumberFormatException(stringValue()); }
+		long v = 0, max = negative ? -(long)Integer.MIN_VALUE : Integer.MAX_VALUE;
+		for(; i < end; i++) {
+			char c = src.charAt(i);
+			if(c < '0' || c > '9') { return (int)Double.parseDouble(stringValue()); } // e.g., 12.5 or 1e3
+			v = v * 10 + (c - '0');
+			if(v > max) { return (int)Double.parseDouble(stringValue()); } // out of range: saturated
+		}
+		return (int)(negative ? -v : v);
+	}
+
+	/**
+	 * Parse the value as a boolean ("true"/"false", quoted or not, case insensitive).
+	 * @return {boolean} the value
+	 * @throws IllegalArgumentException if the value isn't a boolean
+	 */
+	boolean booleanValue() {
+		int len = valueEnd - valueStart;
+		if(!valueEscaped && len == 4 && src.regionMatches(true, valueStart, "true", 0, 4)) { return true; }
+		if(!valueEscaped && len == 5 && src.regionMatches(true, valueStart, "false", 0, 5)) { return false; }
+		throw new IllegalArgumentException("not a boolean: " + stringValue());
+	}
+
+	/**
+	 * @return {String} the value, unescaped
+	 */
+	String stringValue() {
+		if(valueEscaped) { return unescape(valueStart, valueEnd, valueBuffer).toString(); }
+		return src.substring(valueStart, valueEnd);
+	}
+
+	/**
+	 * @return {CharSequence} the value, unescaped (a view on the frame or on a reused buffer)
+	 */
+	CharSequence value() {
+		if(valueEscaped) { return unescape(valueStart, valueEnd, valueBuffer); }
+		return valueSlice.of(src, valueStart, valueEnd);
+	}
+
+	/**
+	 * @return {boolean} true if the value is a JSON string (as opposed to a number or literal)
+	 */
+	boolean valueQuoted() { return valueQuoted; }
+
+	/**
+	 * Parse the tracing metadata of the message, if any (see <code>traceSource</code>,
+	 * <code>traceSeq</code> and <code>traceMicros</code>).
+	 * @return {boolean} false if the message has none (or it's malformed)
+	 */
+	boolean traced() {
+		if(traceStart < 0) { return false; }
+		long source = 0, seq = 0, x = 0;
+		int n = 0;
+		boolean digits = false, negative = false;
+		for(int i = traceStart; i <= traceEnd; i++) {
+			char c = (i < traceEnd) ? src.charAt(i) : ',';
+			if(c >= '0' && c <= '9') {
+				x = x * 10 + (c - '0');
+				digits = true;
+			} else if(c == '-' && !digits) {
+				negative = true;
+			} else if(c == ',') {
+				if(!digits || n == 3) { return false; }
+				if(negative) { x = -x; }
+				if(n == 0) { source = x; }
+				else if(n == 1) { seq = x; }
+				else {
+					traceSource = (int)source;
+					traceSeq = seq;
+					traceMicros = x;
+				}
+				n++;
+				x = 0;
+				digits = negative = false;
+			} else if(c != ' ') {
+				return false;
+			}
+		}
+		return n == 3;
+	}
+
+	/**
+	 * @return {int} source of the message (after <code>traced</code> returned true)
+	 */
+	int traceSource() { return traceSource; }
+
+	/**
+	 * @return {long} sequence number of the message (after <code>traced</code> returned true)
+	 */
+	long traceSeq() { return traceSeq; }
+
+	/**
+	 * @return {long} send time of the message, in microseconds (after <code>traced</code> returned true)
+	 */
+	long traceMicros() { return traceMicros; }
+
+	// --- scanning
+
+	private int next() {
+		ws();
+		return src.charAt(pos++);
+	}
+
+	private int peek() {
+		ws();
+		return src.charAt(pos);
+	}
+
+	private void ws() {
+		char c;
+		while((c = src.charAt(pos)) == ' ' || c == '\n' || c == '\r' || c == '\t') { pos++; }
+	}
+
+	private void expect(char c) {
+		if(next() != c) { throw new IndexOutOfBoundsException(); } // handled as a malformed frame
+	}
+
+	/**
+	 * Consume a ',' and return true, or the closing char and return false.
+	 */
+	private boolean separator(char close) {
+		int c = next();
+		if(c == ',') { return true; }
+		if(c == close) { return false; }
+		throw new IndexOutOfBoundsException();
+	}
+
+	/**
+	 * Consume a string token; pos ends after the closing quote.
+	 * <br>Escapes are checked here, so that unescaping them can't fail.
+	 * @return {boolean} true if the string contains escapes
+	 * @throws IndexOutOfBoundsException if the string is truncated, or a unicode escape isn't followed by 4 hex digits
+	 */
+	private boolean string() {
+		if(next() != '"') { throw new IndexOutOfBoundsException(); }
+		boolean escaped = false;
+		for(;;) {
+			char c = src.charAt(pos++);
+			if(c == '"') { return escaped; }
+			if(c == '\\') {
+				escaped = true;
+				if(src.charAt(pos++) == 'u') {
+					for(int end = pos + 4; pos < end; pos++) {
+						if(Character.digit(src.charAt(pos), 16) < 0) { throw new IndexOutOfBoundsException("bad escape"); }
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Consume any value.
+	 */
+	private void skip() {
+		int c = peek();
+		if(c == '"') {
+			string();
+		} else if(c == '{' || c == '[') {
+			int depth = 0;
+			do {
+				c = src.charAt(pos);
+				if(c == '"') {
+					string();
+					continue;
+				}
+				if(c == '{' || c == '[') { depth++; }
+				else if(c == '}' || c == ']') { depth--; }
+				pos++;
+			} while(depth > 0);
+		} else {
+			while((c = src.charAt(pos)) != ',' && c != '}' && c != ']' && c != ' ' && c != '\n' && c != '\r' && c != '\t') { pos++; }
+		}
+	}
+
+	private boolean is(int start, int end, String s) {
+		return end - start == s.length() && src.startsWith(s, start);
+	}
+
+	private StringBuilder unescape(int start, int end, StringBuilder b) {
+		b.setLength(0);
+		for(int i = start; i < end; i++) {
+			char c = src.charAt(i);
+			if(c != '\\') {
+				b.append(c);
+				continue;
+			}
+			c = src.charAt(++i);
+			switch(c) {
+				case 'b': b.append('\b'); break;
+				case 'f': b.append('\f'); break;
+				case 'n': b.append('\n'); break;
+				case 'r': b.append('\r'); break;
+				case 't': b.append('\t'); break;
+				case 'u':
+					b.append((char)Integer.parseInt(src.substring(i + 1, i + 5), 16));
+					i += 4;
+					break;
+				default: b.append(c); // '"', '\\', '/'
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Reusable view on a region of a String.
+	 */
+	static final class Slice implements CharSequence {
+		private String s;
+		private int start, end;
+
+		Slice of(String s, int start, int end) {
+			this.s = s;
+			this.start = start;
+			this.end = end;
+			return this;
+		}
+
+		@Override public int length() { return end - start; }
+
+		@Override public char charAt(int index) { return s.charAt(start + index); }
+
+		@Override public CharSequence subSequence(int from, int to) { return s.substring(start + from, start + to); }
+
+		@Override public String toString() { return s.substring(start, end); }
+	}
+}
@@ -0,0 +1,373 @@
+package lab.spacebrew;
+
+import java.nio.ByteBuffer;
+
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.FramedataImpl1;
+
+/**
+ * Per-thread buffer where outbound frames are encoded, as UTF-8, before
+ * being handed to the websocket.
+ * <br>The buffer, its ByteBuffer view and the frame wrapping it are reused
+ * from send to send (the websocket copies the payload when the frame is sent),
+ * so encoding a range, boolean or numeric vector message from a FrameTemplate
+ * allocates nothing.
+ */
+final class FrameEncoder {
+
+	private static final ThreadLocal<FrameEncoder> ENCODERS = new ThreadLocal<FrameEncoder>() {
+		@Override protected FrameEncoder initialValue() { return new FrameEncoder(); }
+	};
+
+	private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+	private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+	private static final double[] POW10 = new double[19];
+	private static final long[] LONG_POW10 = new long[19];
+	static {
+		POW10[0] = LONG_POW10[0] = 1;
+		for(int i = 1; i < POW10.length; i++) {
+			POW10[i] = POW10[i - 1] * 10;
+			LONG_POW10[i] = LONG_POW10[i - 1] * 10;
+		}
+	}
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+	private byte[] buf = new byte[256];
+	private int len;
+	private ByteBuffer view = ByteBuffer.wrap(buf);
+	private final FramedataImpl1 frame = new FramedataImpl1(Framedata.Opcode.TEXT);
+	private final FramedataImpl1 binaryFrame = new FramedataImpl1(Framedata.Opcode.BINARY);
+
+	private FrameEncoder() {
+		frame.setFin(true);
+		binaryFrame.setFin(true);
+	}
+
+	/**
+	 * @return {FrameEncoder} the (empty) encoder of the calling thread
+	 */
+	static FrameEncoder get() {
+		FrameEncoder e = ENCODERS.get();
+		e.len = 0;
+		return e;
+	}
+
+	FrameEncoder put(byte[] b) {
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, len, b.length);
+		len += b.length;
+		return this;
+	}
+
+	FrameEncoder put(byte[] b, int n) {
+		ensure(n);
+		System.arraycopy(b, 0, buf, len, n);
+		len += n;
+		return this;
+	}
+
+	/**
+	 * Append bytes read from a buffer.
+	 * @param src {ByteBuffer} the buffer, read from its position
+	 * @param n {int} number of bytes
+	 */
+	FrameEncoder put(ByteBuffer src, int n) {
+		ensure(n);
+		src.get(buf, len, n);
+		len += n;
+		return this;
+	}
+
+	/**
+	 * Copy the bytes encoded so far.
+	 * @param dst {byte[]} destination, at least <code>length()</code> long
+	 */
+	void copyTo(byte[] dst) { System.arraycopy(buf, 0, dst, 0, len); }
+
+	void copyTo(byte[] dst, int offset) { System.arraycopy(buf, 0, dst, offset, len); }
+
+	FrameEncoder put(boolean value) { return put(value ? TRUE : FALSE); }
+
+	FrameEncoder putByte(int b) {
+		ensure(1);
+		buf[len++] = (byte)b;
+		return this;
+	}
+
+	/**
+	 * Append a fixed size big-endian integer.
+	 * @param value {long} the integer
+	 * @param bytes {int} number of bytes (its least significant ones)
+	 */
+	FrameEncoder putFixed(long value, int bytes) {
+		ensure(bytes);
+		for(int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) { buf[len++] = (byte)(value >>> shift); }
+		return this;
+	}
+
+	/**
+	 * @return {int} byte encoded at an index (below <code>length()</code>)
+	 */
+	int byteAt(int i) { return buf[i]; }
+
+	void setByte(int i, int b) { buf[i] = (byte)b; }
+
+	/**
+	 * Drop the bytes encoded from an index on.
+	 */
+	FrameEncoder truncate(int length) {
+		len = length;
+		return this;
+	}
+
+	/**
+	 * Append an unsigned varint (7 bits per byte, least significant first).
+	 */
+	FrameEncoder putVarint(int value) {
+		ensure(5);
+		while((value & ~0x7f) != 0) {
+			buf[len++] = (byte)((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buf[len++] = (byte)value;
+		return this;
+	}
+
+	/**
+	 * Append a string as UTF-8 (not escaped).
+	 */
+	FrameEncoder putUtf8(CharSequence s) {
+		for(int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			ensure(4);
+			if(c < 0x80) { buf[len++] = (byte)c; }
+			else { i = putChar(s, i, c); }
+		}
+		return this;
+	}
+
+	FrameEncoder put(int value) {
+		ensure(11);
+		if(value == Integer.MIN_VALUE) { return putAscii("-2147483648"); }
+		if(value < 0) {
+			buf[len++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for(int v = value; v >= 10; v /= 10) { digits++; }
+		for(int i = len + digits - 1; i >= len; i--) {
+			buf[i] = (byte)('0' + value % 10);
+			value /= 10;
+		}
+		len += digits;
+		return this;
+	}
+
+	FrameEncoder put(long value) {
+		if(value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) { return put((int)value); }
+		ensure(20);
+		if(value == Long.MIN_VALUE) { return putAscii("-9223372036854775808"); }
+		if(value < 0) {
+			buf[len++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for(long v = value; v >= 10; v /= 10) { digits++; }
+		for(int i = len + digits - 1; i >= len; i--) {
+			buf[i] = (byte)('0' + value % 10);
+			value /= 10;
+		}
+		len += digits;
+		return this;
+	}
+
+	/**
+	 * Append a float, in plain decimal notation with up to 7 significant digits.
+	 */
+	FrameEncoder put(float value) {
+		float abs = Math.abs(value);
+		if(abs >= 1e15f || (abs < 1e-6f && abs != 0) || value != value) { return putAscii(Float.toString(value)); } // (NaN and infinities included)
+		return putDecimal(value, 7);
+	}
+
+	/**
+	 * Append a double, in plain decimal notation with up to 15 significant digits.
+	 */
+	FrameEncoder put(double value) {
+		double abs = Math.abs(value);
+		if(abs >= 1e15 || (abs < 1e-6 && abs != 0) || value != value) { return putAscii(Double.toString(value)); }
+		return putDecimal(value, 15);
+	}
+
+	/**
+	 * Append numbers separated by commas (e.g., "x,y" coordinates).
+	 */
+	FrameEncoder putList(float[] values, int count) {
+		for(int i = 0; i < count; i++) {
+			if(i > 0) { putByte(','); }
+			put(values[i]);
+		}
+		return this;
+	}
+
+	FrameEncoder putList(double[] values, int count) {
+		for(int i = 0; i < count; i++) {
+			if(i > 0) { putByte(','); }
+			put(values[i]);
+		}
+		return this;
+	}
+
+	FrameEncoder putList(int[] values, int count) {
+		for(int i = 0; i < count; i++) {
+			if(i > 0) { putByte(','); }
+			put(values[i]);
+		}
+		return this;
+	}
+
+	/**
+	 * Append a number in [1e-6, 1e15) (or 0) rounded to significant digits, trailing zeros dropped.
+	 */
+	private FrameEncoder putDecimal(double value, int significant) {
+		if(value == 0) { return putByte('0'); }
+		double abs = Math.abs(value);
+		int magnitude = (int)Math.floor(Math.log10(abs));
+		int decimals = significant - 1 - magnitude;
+		if(value < 0) { putByte('-'); }
+		if(decimals <= 0) { return put(Math.round(abs / POW10[-decimals]) * LONG_POW10[-decimals]); }
+		decimals = Math.min(18, decimals);
+		long m = Math.round(abs * POW10[decimals]);
+		put(m / LONG_POW10[decimals]);
+		long fraction = m % LONG_POW10[decimals];
+		if(fraction == 0) { return this; }
+		while(fraction % 10 == 0) {
+			fraction /= 10;
+			decimals--;
+		}
+		ensure(decimals + 1);
+		buf[len++] = '.';
+		for(int i = len + decimals - 1; i >= len; i--) {
+			buf[i] = (byte)('0' + fraction % 10);
+			fraction /= 10;
+		}
+		len += decimals;
+		return this;
+	}
+
+	/**
+	 * Append a string as the content of a JSON string (escaped, without quotes).
+	 */
+	FrameEncoder putEscaped(CharSequence s) {
+		for(int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			ensure(6);
+			if(c == '"' || c == '\\') {
+				buf[len++] = '\\';
+				buf[len++] = (byte)c;
+			} else if(c == '\n') {
+				buf[len++] = '\\';
+				buf[len++] = 'n';
+			} else if(c == '\r') {
+				buf[len++] = '\\';
+				buf[len++] = 'r';
+			} else if(c == '\t') {
+				buf[len++] = '\\';
+				buf[len++] = 't';
+			} else if(c < 0x20) {
+				buf[len++] = '\\';
+				buf[len++] = 'u';
+				buf[len++] = '0';
+				buf[len++] = '0';
+				buf[len++] = HEX[c >> 4];
+				buf[len++] = HEX[c & 0xf];
+			} else if(c < 0x80) {
+				buf[len++] = (byte)c;
+			} else {
+				i = putChar(s, i, c);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Append a non-ASCII char as UTF-8 (4 bytes must be available).
+	 * @return {int} index of the last char consumed (the low surrogate of a pair)
+	 */
+	private int putChar(CharSequence s, int i, char c) {
+		if(c < 0x800) {
+			buf[len++] = (byte)(0xc0 | (c >> 6));
+			buf[len++] = (byte)(0x80 | (c & 0x3f));
+		} else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+			int cp = Character.toCodePoint(c, s.charAt(++i));
+			buf[len++] = (byte)(0xf0 | (cp >> 18));
+			buf[len++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+			buf[len++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+			buf[len++] = (byte)(0x80 | (cp & 0x3f));
+		} else if(Character.isSurrogate(c)) { // unpaired
+			buf[len++] = '?';
+		} else {
+			buf[len++] = (byte)(0xe0 | (c >> 12));
+			buf[len++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+			buf[len++] = (byte)(0x80 | (c & 0x3f));
+		}
+		return i;
+	}
+
+	FrameEncoder putAscii(String s) {
+		int n = s.length();
+		ensure(n);
+		for(int i = 0; i < n; i++) { buf[len++] = (byte)s.charAt(i); }
+		return this;
+	}
+
+	/**
+	 * @return {int} number of bytes encoded so far
+	 */
+	int length() { return len; }
+
+	/**
+	 * @return {ByteBuffer} view on the bytes encoded so far (valid until the next encoding)
+	 */
+	ByteBuffer bytes() {
+		view.clear();
+		view.limit(len);
+		return view;
+	}
+
+	/**
+	 * @return {Framedata} frame carrying the bytes encoded so far (valid until the next encoding):
+	 * a text frame for JSON, a binary frame for a compact message (see CompactCodec)
+	 */
+	Framedata frame() {
+		ByteBuffer b = bytes();
+		FramedataImpl1 f = CompactCodec.isCompact(b) ? binaryFrame : frame;
+		try {
+			f.setPayload(b);
+		} catch(InvalidDataException e) { // not thrown by FramedataImpl1
+			throw new IllegalStateException(e);
+		}
+		return f;
+	}
+
+	/**
+	 * @return {String} the bytes encoded so far, decoded (for logging and String based transports)
+	 */
+	@Override public String toString() {
+		try {
+			return new String(buf, 0, len, "UTF-8");
+		} catch(java.io.UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void ensure(int n) {
+		if(len + n > buf.length) {
+			byte[] b = new byte[Math.max(buf.length * 2, len + n)];
+			System.arraycopy(buf, 0, b, 0, len);
+			buf = b;
+			view = ByteBuffer.wrap(buf);
+		}
+	}
+}
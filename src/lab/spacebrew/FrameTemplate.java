@@ -0,0 +1,80 @@
+package lab.spacebrew;
+
+/**
+ * Pre-rendered frame of a publish route: everything but the value, i.e.
+ * <br><code>{"message":{"clientName":"...","name":"...","type":"...","value":"</code>
+ * <br>and <code>"}}</code>, already escaped and encoded.
+ * <br>It is rendered when the route is registered (and again if the client
+ * name changes), so sending only has to append the value.
+ */
+final class FrameTemplate {
+
+	private static final byte[] SUFFIX = { '"', '}', '}' };
+
+	/**
+	 * Client name the template was rendered with
+	 * @type {String}
+	 */
+	final String clientName;
+
+	private final byte[] prefix;
+
+	FrameTemplate(String clientName, String name, String type) {
+		this.clientName = clientName;
+		FrameEncoder e = FrameEncoder.get();
+		e.putAscii("{\"message\":{\"clientName\":\"");
+		if(clientName != null) { e.putEscaped(clientName); }
+		e.putAscii("\",\"name\":\"").putEscaped(name);
+		e.putAscii("\",\"type\":\"").putEscaped(type);
+		e.putAscii("\",\"value\":\"");
+		prefix = new byte[e.length()];
+		e.bytes().get(prefix);
+	}
+
+	/**
+	 * Encode a message with a range value.
+	 * @param value {int} the value
+	 * @return {FrameEncoder} the encoder of the calling thread, holding the message
+	 */
+	FrameEncoder encode(int value) { return FrameEncoder.get().put(prefix).put(value).put(SUFFIX); }
+
+	/**
+	 * Encode a message with a boolean value.
+	 * @param value {boolean} the value
+	 * @return {FrameEncoder} the encoder of the calling thread, holding the message
+	 */
+	FrameEncoder encode(boolean value) { return FrameEncoder.get().put(prefix).put(value).put(SUFFIX); }
+
+	/**
+	 * Encode a message with a string value.
+	 * @param value {CharSequence} the value
+	 * @return {FrameEncoder} the encoder of the calling thread, holding the message
+	 */
+	FrameEncoder encode(CharSequence value) { return FrameEncoder.get().put(prefix).putEscaped(value).put(SUFFIX); }
+
+	/**
+	 * Encode a message with a numeric vector value ("x,y,...").
+	 * @param values {float[]} the values
+	 * @param count {int} number of values
+	 * @return {FrameEncoder} the encoder of the calling thread, holding the message
+	 */
+	FrameEncoder encode(float[] values, int count) { return FrameEncoder.get().put(prefix).putList(values, count).put(SUFFIX); }
+
+	FrameEncoder encode(double[] values, int count) { return FrameEncoder.get().put(prefix).putList(values, count).put(SUFFIX); }
+
+	FrameEncoder encode(int[] values, int count) { return FrameEncoder.get().put(prefix).putList(values, count).put(SUFFIX); }
+
+	/**
+	 * Encode a message of a route without template (e.g., not registered as a publisher).
+	 * @return {FrameEncoder} the encoder of the calling thread, holding the message
+	 */
+	static FrameEncoder encode(String clientName, String name, String type, CharSequence value) {
+		FrameEncoder e = FrameEncoder.get();
+		e.putAscii("{\"message\":{\"clientName\":\"");
+		if(clientName != null) { e.putEscaped(clientName); }
+		e.putAscii("\",\"name\":\"").putEscaped(name);
+		e.putAscii("\",\"type\":\"").putEscaped(type);
+		e.putAscii("\",\"value\":\"").putEscaped(value);
+		return e.put(SUFFIX);
+	}
+}
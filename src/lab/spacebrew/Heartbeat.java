@@ -0,0 +1,135 @@
+package lab.spacebrew;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects dead websockets (e.g., a NAT that forgot the connection, a pulled
+ * cable), which TCP may take minutes to report, while sends keep "succeeding".
+ * <br>Any frame received proves the connection alive. When nothing came for
+ * the interval, a ping is sent (servers answer with a pong); when nothing came
+ * either within the timeout after it, the websocket is closed at once, as if
+ * lost, so the client reconnects.
+ * <br>Frames are only counted as they come (by the websocket thread); the
+ * check runs on the shared timer thread, once per interval while frames come,
+ * so a busy connection sends no pings, and an idle one a ping per interval.
+ */
+final class Heartbeat {
+
+	private final String tag;
+	private long interval = 15000000000L, timeout = 10000000000L; // ns; interval 0: off
+	private WsClient client; // watched, or null
+	private ScheduledFuture<?> next;
+	private int watching = 0; // identifies the websocket watched, for its checks
+	private long seen, activeAt, pingAt; // frames received, when they last changed, when a ping went unanswered (0: none)
+	private long pings, timeouts, lastDetection, maxDetection; // ns
+
+	/**
+	 * @param tag {String} prefix of what it logs
+	 */
+	Heartbeat(String tag) { this.tag = tag; }
+
+	/**
+	 * Set the interval and timeout, for the websockets watched from then on.
+	 * @throws IllegalArgumentException if negative, or the timeout is 0 while the interval isn't
+	 */
+	synchronized void set(long intervalMillis, long timeoutMillis) {
+		if(intervalMillis < 0 || timeoutMillis < 0 || (intervalMillis > 0 && timeoutMillis == 0)) {
+			throw new IllegalArgumentException("interval " + intervalMillis + ", timeout " + timeoutMillis);
+		}
+		interval = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		timeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	synchronized long intervalMillis() { return TimeUnit.NANOSECONDS.toMillis(interval); }
+
+	synchronized long timeoutMillis() { return TimeUnit.NANOSECONDS.toMillis(timeout); }
+
+	/**
+	 * Watch a websocket that just opened (instead of the previous one).
+	 */
+	synchronized void watch(WsClient c) {
+		cancel();
+		client = null;
+		watching++;
+		if(interval == 0) { return; }
+		client = c;
+		seen = c.received();
+		activeAt = System.nanoTime();
+		pingAt = 0;
+		schedule(interval);
+	}
+
+	/**
+	 * Stop watching a websocket (closed), if it's the one watched.
+	 */
+	synchronized void unwatch(WsClient c) {
+		if(c != client) { return; }
+		cancel();
+		client = null;
+		watching++;
+	}
+
+	/**
+	 * Check the websocket (timer thread).
+	 */
+	private void check(int id) {
+		WsClient dead;
+		long silent;
+		synchronized(this) {
+			WsClient c = client;
+			if(c == null || id != watching) { return; }
+			long now = System.nanoTime();
+			long n = c.received();
+			if(n != seen) { // alive
+				seen = n;
+				activeAt = now;
+				pingAt = 0;
+			}
+			if(pingAt == 0) {
+				if(now - activeAt < interval) {
+					schedule(activeAt + interval - now);
+					return;
+				}
+				if(c.ping()) { pings++; }
+				pingAt = now;
+				schedule(timeout);
+				return;
+			}
+			if(now - pingAt < timeout) {
+				schedule(pingAt + timeout - now);
+				return;
+			}
+			silent = now - activeAt;
+			timeouts++;
+			lastDetection = silent;
+			maxDetection = Math.max(maxDetection, silent);
+			client = null;
+			next = null;
+			watching++;
+			dead = c;
+		}
+		System.err.println("[" + tag + "] nothing received for " + TimeUnit.NANOSECONDS.toMillis(silent) + " ms, closing the connection");
+		dead.kill(); // outside the lock: the websocket calls back (onClose) at once
+	}
+
+	private void schedule(long delay) {
+		final int id = watching;
+		next = ReconnectScheduler.TIMER.schedule(new Runnable() {
+			@Override public void run() { check(id); }
+		}, delay, TimeUnit.NANOSECONDS);
+	}
+
+	private void cancel() {
+		if(next != null) { next.cancel(false); }
+		next = null;
+	}
+
+	synchronized long pings() { return pings; }
+
+	synchronized long timeouts() { return timeouts; }
+
+	synchronized long lastDetectionMillis() { return TimeUnit.NANOSECONDS.toMillis(lastDetection); }
+
+	synchronized long maxDetectionMillis() { return TimeUnit.NANOSECONDS.toMillis(maxDetection); }
+}
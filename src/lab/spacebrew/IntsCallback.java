@@ -0,0 +1,17 @@
+package lab.spacebrew;
+
+/**
+ * Callback for a subscription to numeric vectors of ints, e.g. "x,y" coordinates
+ * (see <code>Spacebrew.subscribeInts</code>).
+ */
+public interface IntsCallback {
+
+	/**
+	 * Called for each message received on the route.
+	 * <br>The array is reused from message to message (and may be longer than
+	 * the vector): copy the values if they must outlive the call.
+	 * @param values {int[]} the values received
+	 * @param count {int} number of values
+	 */
+	void accept(int[] values, int count);
+}
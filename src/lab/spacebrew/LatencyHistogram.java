@@ -0,0 +1,73 @@
+package lab.spacebrew;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations, in power of 2 buckets of nanoseconds
+ * (bucket 0 holds 0, bucket i the durations in [2^(i-1), 2^i) ns).
+ * <br>Recording is two atomic adds (and a CAS when the maximum grows), so
+ * it can stay on in the delivery path; percentiles are estimated on read,
+ * with the upper bound of their bucket.
+ */
+final class LatencyHistogram {
+
+	static final int BUCKETS = 40; // the last one holds everything from about 4.5 minutes
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong sum = new AtomicLong(), max = new AtomicLong();
+
+	/**
+	 * Record a duration.
+	 * @param ns {long} the duration, in ns
+	 */
+	void record(long ns) {
+		if(ns < 0) { ns = 0; } // nanoTime of different threads
+		counts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ns)));
+		sum.addAndGet(ns);
+		long m = max.get();
+		while(ns > m && !max.compareAndSet(m, ns)) { m = max.get(); }
+	}
+
+	/**
+	 * Add this histogram to totals (to aggregate histograms).
+	 * @param totals {long[]} counts of the buckets, then sum and max (BUCKETS + 2 long)
+	 */
+	void addTo(long[] totals) {
+		for(int i = 0; i < BUCKETS; i++) { totals[i] += counts.get(i); }
+		totals[BUCKETS] += sum.get();
+		totals[BUCKETS + 1] = Math.max(totals[BUCKETS + 1], max.get());
+	}
+
+	/**
+	 * @return {LatencyStatistics} statistics of this histogram
+	 */
+	LatencyStatistics statistics() {
+		long[] totals = new long[BUCKETS + 2];
+		addTo(totals);
+		return statistics(totals);
+	}
+
+	/**
+	 * @param totals {long[]} totals filled by <code>addTo</code>
+	 * @return {LatencyStatistics} statistics of the totals
+	 */
+	static LatencyStatistics statistics(long[] totals) {
+		long count = 0;
+		for(int i = 0; i < BUCKETS; i++) { count += totals[i]; }
+		long max = totals[BUCKETS + 1];
+		if(count == 0) { return new LatencyStatistics(0, 0, 0, 0, 0, 0); }
+		return new LatencyStatistics(count, totals[BUCKETS] / (double)count / 1000,
+				percentile(totals, count, max, 0.5), percentile(totals, count, max, 0.9),
+				percentile(totals, count, max, 0.99), max / 1000.0);
+	}
+
+	private static double percentile(long[] totals, long count, long max, double p) {
+		long rank = (long)Math.ceil(count * p), seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += totals[i];
+			if(seen >= rank) { return Math.min(i == 0 ? 0 : 1L << i, max) / 1000.0; }
+		}
+		return max / 1000.0;
+	}
+}
@@ -0,0 +1,81 @@
+package lab.spacebrew;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/**
+ * Round trip probe of a client (see <code>Spacebrew.startProbe</code>): a
+ * publish route routed to a subscribe route of the same client, along which
+ * the send time of a message goes to the server and back, at a fixed interval.
+ * <br>The client asks the server for the route itself (a route message, sent
+ * again on each connection, since servers forget the routes of clients that leave);
+ * probes go through the server even when the client delivers in-process.
+ * A probe is one small message per interval, on the shared timer thread.
+ */
+final class LatencyProbe implements Runnable {
+
+	static final String ROUTE = "spacebrew probe", TYPE = "probe";
+
+	private final Spacebrew sb;
+	private final PublishRoute route;
+	private final ScheduledFuture<?> task;
+	private final LatencyHistogram roundTrip = new LatencyHistogram();
+	private final AtomicLong sent = new AtomicLong();
+
+	LatencyProbe(Spacebrew sb, PublishRoute route, long intervalMillis) {
+		this.sb = sb;
+		this.route = route;
+		task = ReconnectScheduler.TIMER.scheduleWithFixedDelay(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The connection is established: ask for the route (again).
+	 */
+	void opened() {
+		JSONObject end = new JSONObject();
+		end.put("clientName", sb.name);
+		end.put("name", ROUTE);
+		end.put("type", TYPE);
+		end.put("remoteAddress", sb.localAddress());
+		JSONObject r = new JSONObject();
+		r.put("type", "add");
+		r.put("publisher", end);
+		r.put("subscriber", end);
+		JSONObject m = new JSONObject();
+		m.put("route", r);
+		sb.sendText(m.toString());
+	}
+
+	/**
+	 * Send a probe (timer thread).
+	 */
+	@Override public void run() {
+		if(!sb.connected()) { return; }
+		if(route.sendThroughServer(Long.toString(System.nanoTime()))) { sent.incrementAndGet(); }
+	}
+
+	/**
+	 * A probe came back.
+	 */
+	void accept(CharSequence value) {
+		try {
+			roundTrip.record(System.nanoTime() - Long.parseLong(value.toString()));
+		} catch(NumberFormatException e) { // not a probe of this JVM
+		}
+	}
+
+	void stop() { task.cancel(false); }
+
+	/**
+	 * @return {long} probes sent
+	 */
+	long sent() { return sent.get(); }
+
+	/**
+	 * @return {LatencyStatistics} round trip times of the probes that came back
+	 */
+	LatencyStatistics statistics() { return roundTrip.statistics(); }
+}
@@ -0,0 +1,143 @@
+package lab.spacebrew;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Routes of the clients of a SharedConnection, as the server reports them to
+ * admin connections (see <code>SharedConnection.setLoopback</code>).
+ * <br>A publish route whose subscribers are all clients of the connection
+ * delivers its values to them directly; as soon as one subscriber is elsewhere
+ * (or the routes aren't known), messages go through the server, which stays the
+ * authority on routing.
+ * <br>Ends of routes are told apart by client name and remote address (as the
+ * server sees it), so a client of the same name in another process isn't
+ * mistaken for a local one.
+ * <br>Publish routes cache their targets with the version of the routes they
+ * were computed from, so the send path only compares two ints.
+ */
+final class Loopback {
+
+	private final SharedConnection connection;
+	private final HashMap<String, LinkedHashMap<String, String[]>> routes = new HashMap<String, LinkedHashMap<String, String[]>>(); // subscribers (client, address, name, type) of each publisher key
+	private volatile int version = 0;
+
+	Loopback(SharedConnection connection) { this.connection = connection; }
+
+	/**
+	 * A subscribe route of a client in the JVM.
+	 */
+	static final class Target {
+		final Spacebrew sb;
+		final String name, type;
+
+		Target(Spacebrew sb, String name, String type) {
+			this.sb = sb;
+			this.name = name;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * Targets of a publish route, as of a version of the routes.
+	 */
+	static final class Targets {
+		final int version;
+		final Target[] local; // null: send through the server
+
+		Targets(int version, Target[] local) {
+			this.version = version;
+			this.local = local;
+		}
+	}
+
+	int version() { return version; }
+
+	/**
+	 * The routes or the clients changed: targets must be computed again.
+	 */
+	synchronized void changed() { version++; }
+
+	/**
+	 * Forget the routes (e.g., the websocket closed; the server sends them again to a new admin).
+	 */
+	synchronized void clear() {
+		routes.clear();
+		version++;
+	}
+
+	/**
+	 * Handle a route message: <code>{"type":"add"|"remove","publisher":{...},"subscriber":{...}}</code>.
+	 */
+	synchronized void route(JSONObject route) {
+		JSONObject p = route.getJSONObject("publisher"), s = route.getJSONObject("subscriber");
+		String pk = key(p.getString("clientName"), p.optString("remoteAddress", ""), p.getString("name"), p.getString("type"));
+		String[] subscriber = { s.getString("clientName"), s.optString("remoteAddress", ""), s.getString("name"), s.getString("type") };
+		String sk = key(subscriber[0], subscriber[1], subscriber[2], subscriber[3]);
+		LinkedHashMap<String, String[]> subscribers = routes.get(pk);
+		if(route.getString("type").equals("add")) {
+			if(subscribers == null) { routes.put(pk, subscribers = new LinkedHashMap<String, String[]>()); }
+			subscribers.put(sk, subscriber);
+		} else if(subscribers != null) {
+			subscribers.remove(sk);
+			if(subscribers.isEmpty()) { routes.remove(pk); }
+		}
+		version++;
+	}
+
+	/**
+	 * Handle a remove message: <code>[{"name":...,"remoteAddress":...},...]</code>, clients that left the server
+	 * (of any address, if it's missing).
+	 */
+	synchronized void remove(JSONArray clients) {
+		for(int i = 0; i < clients.length(); i++) {
+			JSONObject c = clients.optJSONObject(i);
+			if(c == null || !c.has("name")) { continue; }
+			String prefix = c.getString("name") + "\n" + (c.has("remoteAddress") ? c.getString("remoteAddress") + "\n" : "");
+			for(Iterator<String> k = routes.keySet().iterator(); k.hasNext(); ) {
+				if(k.next().startsWith(prefix)) { k.remove(); }
+			}
+			for(LinkedHashMap<String, String[]> subscribers : routes.values()) {
+				for(Iterator<String> k = subscribers.keySet().iterator(); k.hasNext(); ) {
+					if(k.next().startsWith(prefix)) { k.remove(); }
+				}
+			}
+		}
+		version++;
+	}
+
+	/**
+	 * Compute the targets of a publish route.
+	 */
+	synchronized Targets targets(String clientName, String name, String type) {
+		String address = connection.localAddress();
+		LinkedHashMap<String, String[]> subscribers = routes.get(key(clientName, address, name, type));
+		if(subscribers == null || subscribers.isEmpty()) { return new Targets(version, null); }
+		Target[] local = new Target[subscribers.size()];
+		int i = 0;
+		for(String[] s : subscribers.values()) {
+			Spacebrew sb = s[1].equals(address) ? connection.client(s[0]) : null;
+			if(sb == null || !sb.subscribes(s[2])) { return new Targets(version, null); } // a subscriber elsewhere
+			local[i++] = new Target(sb, s[2], s[3]);
+		}
+		return new Targets(version, local);
+	}
+
+	/**
+	 * Deliver a value to in-process subscribers.
+	 * @return {boolean} true
+	 */
+	static boolean deliver(Target[] targets, int kind, int intValue, String value) {
+		for(int i = 0; i < targets.length; i++) {
+			Target t = targets[i];
+			t.sb.deliverLocal(t.name, t.type, kind, intValue, value);
+		}
+		return true;
+	}
+
+	private static String key(String client, String address, String name, String type) { return client + "\n" + address + "\n" + name + "\n" + type; }
+}
@@ -0,0 +1,148 @@
+package lab.spacebrew;
+
+import java.util.Collection;
+
+/**
+ * Immutable index of values by name, queried with any CharSequence (e.g., a
+ * slice of the received frame) without allocating a String.
+ * <br>Adding or removing a name returns a new index, so a reader holding an
+ * index through a volatile field never needs a lock, while writers swap it.
+ * @param <T> type of values
+ */
+final class NameIndex<T> {
+
+	private static final NameIndex<Object> EMPTY = new NameIndex<Object>(new String[8], new Object[8], 0);
+
+	private final String[] keys;
+	private final Object[] values;
+	private final int size;
+
+	private NameIndex(String[] keys, Object[] values, int size) {
+		this.keys = keys;
+		this.values = values;
+		this.size = size;
+	}
+
+	/**
+	 * @return {NameIndex} the empty index
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> NameIndex<T> empty() { return (NameIndex<T>)EMPTY; }
+
+	/**
+	 * Get the value of a name.
+	 * @param name {CharSequence} the name (null finds nothing)
+	 * @return {T} the value, or null if the name isn't in the index
+	 */
+	@SuppressWarnings("unchecked")
+	T get(CharSequence name) {
+		if(name == null) { return null; }
+		String[] k = keys;
+		int mask = k.length - 1;
+		for(int i = hash(name) & mask; ; i = (i + 1) & mask) {
+			String s = k[i];
+			if(s == null) { return null; }
+			if(equal(s, name)) { return (T)values[i]; }
+		}
+	}
+
+	/**
+	 * @return {int} number of names in the index
+	 */
+	int size() { return size; }
+
+	/**
+	 * Add all the values to a collection.
+	 * @param c {Collection} the collection
+	 */
+	@SuppressWarnings("unchecked")
+	void addTo(Collection<? super T> c) {
+		for(int i = 0; i < keys.length; i++) {
+			if(keys[i] != null) { c.add((T)values[i]); }
+		}
+	}
+
+	/**
+	 * Get an index with a name added (or its value replaced).
+	 * @param name {String} the name
+	 * @param value {T} the value
+	 * @return {NameIndex} the new index
+	 */
+	NameIndex<T> with(String name, T value) {
+		int slot = slot(name);
+		if(slot >= 0) { // replaced: the keys are shared
+			Object[] v = values.clone();
+			v[slot] = value;
+			return new NameIndex<T>(keys, v, size);
+		}
+		if((size + 1) * 2 <= keys.length) { // added without growing: copied, not rehashed
+			String[] k = keys.clone();
+			Object[] v = values.clone();
+			insert(k, v, name, value);
+			return new NameIndex<T>(k, v, size + 1);
+		}
+		int capacity = keys.length;
+		while((size + 1) * 2 > capacity) { capacity *= 2; }
+		String[] k = new String[capacity];
+		Object[] v = new Object[capacity];
+		int n = 0;
+		for(int i = 0; i < keys.length; i++) {
+			if(keys[i] != null && !keys[i].equals(name)) {
+				insert(k, v, keys[i], values[i]);
+				n++;
+			}
+		}
+		insert(k, v, name, value);
+		return new NameIndex<T>(k, v, n + 1);
+	}
+
+	/**
+	 * Get an index without a name.
+	 * @param name {String} the name
+	 * @return {NameIndex} the new index (this one, if the name isn't in it)
+	 */
+	NameIndex<T> without(String name) {
+		if(get(name) == null) { return this; }
+		String[] k = new String[keys.length];
+		Object[] v = new Object[keys.length];
+		for(int i = 0; i < keys.length; i++) {
+			if(keys[i] != null && !keys[i].equals(name)) { insert(k, v, keys[i], values[i]); }
+		}
+		return new NameIndex<T>(k, v, size - 1);
+	}
+
+	private int slot(CharSequence name) {
+		String[] k = keys;
+		int mask = k.length - 1;
+		for(int i = hash(name) & mask; ; i = (i + 1) & mask) {
+			if(k[i] == null) { return -1; }
+			if(equal(k[i], name)) { return i; }
+		}
+	}
+
+	private static void insert(String[] k, Object[] v, String name, Object value) {
+		int mask = k.length - 1;
+		int i = hash(name) & mask;
+		while(k[i] != null) { i = (i + 1) & mask; }
+		k[i] = name;
+		v[i] = value;
+	}
+
+	/**
+	 * Same as String.hashCode(), spread, for any CharSequence.
+	 */
+	private static int hash(CharSequence cs) {
+		int h = 0;
+		for(int i = 0, len = cs.length(); i < len; i++) { h = 31 * h + cs.charAt(i); }
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean equal(String s, CharSequence cs) {
+		int len = s.length();
+		if(len != cs.length()) { return false; }
+		for(int i = 0; i < len; i++) {
+			if(s.charAt(i) != cs.charAt(i)) { return false; }
+		}
+		return true;
+	}
+}
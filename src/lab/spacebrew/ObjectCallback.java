@@ -0,0 +1,16 @@
+package lab.spacebrew;
+
+/**
+ * Callback for a subscription of custom type whose values are decoded by a codec
+ * (see <code>Spacebrew.subscribeObject</code> and SpacebrewCodec).
+ * @param <T> type of the values
+ */
+public interface ObjectCallback<T> {
+
+	/**
+	 * Called for each message received on the route, with its value decoded
+	 * (the same object is passed to all the callbacks of the route).
+	 * @param value {T} the value received
+	 */
+	void accept(T value);
+}
@@ -0,0 +1,293 @@
+package lab.spacebrew;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+
+/**
+ * Bounded journal of the messages sent while a client is disconnected, replayed
+ * in order when the connection is established again (see <code>Spacebrew.setJournal</code>).
+ * <p>Encoded frames are stored back to back in a circular buffer, each record
+ * being <code>[int length][byte flags][long time][payload]</code>; when a record
+ * doesn't fit at the end of the buffer a wrap mark sends it to the start, and
+ * when the buffer is full the oldest records are dropped.
+ * <br>The buffer is on the heap, or a memory-mapped file: then the header
+ * (head, tail, count) is updated with each record, so the messages journaled
+ * before the process died are replayed by the next one using the same file.
+ * <br>A route compacting its messages keeps only its latest record: the previous
+ * one is flagged as superseded, and skipped by the replay.
+ * <br>Replay of the backlog (the records journaled when the connection is
+ * established) is throttled, in slices of 10 ms each allowing a share of the
+ * rate; the messages sent meanwhile, journaled behind it so that they go after
+ * it, are written as fast as the connection takes them.
+ */
+final class OutboundJournal {
+
+	private static final int MAGIC = 0x53424a31; // "SBJ1"
+	private static final int HEADER = 32; // magic, capacity, head, tail, count, (reserved)
+	private static final int RECORD = 13; // length, flags, time
+	private static final int WRAP = -1;
+	private static final byte LIVE = 0, SUPERSEDED = 1;
+	private static final long SLICE = 10000000L; // ns
+
+	private final ByteBuffer buf, cursor;
+	private final int capacity; // bytes of the data area
+	private final long maxAge; // ms, 0: no limit
+	private int head, tail, count; // positions in the data area, number of records
+	private volatile int live; // records not superseded
+	private long appended, removed; // sequence numbers of records: present ones are in [removed, appended)
+	private final IdentityHashMap<Object, long[]> latest = new IdentityHashMap<Object, long[]>(); // route -> { sequence, position } of its last record
+	private long drops, expired, compacted;
+	private int backlog; // records journaled before the connection was established (the oldest ones), replayed at the replay rate
+
+	private volatile int rate = 1000; // messages per second, 0: no throttling
+	private long sliceStart;
+	private int sliceSent;
+
+	/**
+	 * Journal in memory.
+	 * @param capacity {int} size, in bytes
+	 * @param maxAgeMillis {long} messages older than this aren't replayed (0: no limit)
+	 */
+	OutboundJournal(int capacity, long maxAgeMillis) {
+		this(ByteBuffer.allocate(HEADER + capacity), maxAgeMillis);
+	}
+
+	private OutboundJournal(ByteBuffer buf, long maxAgeMillis) {
+		this.buf = buf;
+		this.cursor = buf.duplicate();
+		this.capacity = buf.capacity() - HEADER;
+		this.maxAge = maxAgeMillis;
+		if(buf.getInt(0) == MAGIC && buf.getInt(4) == capacity) { // left by a previous run
+			head = buf.getInt(8);
+			tail = buf.getInt(12);
+			count = buf.getInt(16);
+			int live = 0;
+			for(int i = 0, pos = head; i < count; i++) {
+				pos = start(pos);
+				if(buf.get(HEADER + pos + 4) != SUPERSEDED) { live++; }
+				pos += RECORD + buf.getInt(HEADER + pos);
+			}
+			this.live = live;
+		} else {
+			buf.putInt(0, MAGIC);
+			buf.putInt(4, capacity);
+			header();
+		}
+	}
+
+	/**
+	 * Journal in a memory-mapped file, resuming the records left in it, if any.
+	 * @param file {File} the file (created if needed)
+	 * @param capacity {int} size, in bytes
+	 * @param maxAgeMillis {long} messages older than this aren't replayed (0: no limit)
+	 */
+	static OutboundJournal map(File file, int capacity, long maxAgeMillis) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			return new OutboundJournal(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + capacity), maxAgeMillis);
+		} finally {
+			raf.close(); // the mapping stays valid
+		}
+	}
+
+	/**
+	 * @return {int} number of messages waiting to be replayed
+	 */
+	int depth() { return live; }
+
+	/**
+	 * Journal the frame encoded in a buffer.
+	 * @param e {FrameEncoder} the frame
+	 * @param route {Object} route whose previous message the frame supersedes, or null
+	 * @return {boolean} false if the frame is larger than the journal
+	 */
+	synchronized boolean append(FrameEncoder e, Object route) {
+		int size = RECORD + e.length();
+		if(size > capacity) {
+			drops++;
+			return false;
+		}
+		int pos;
+		for(;;) {
+			if(count == 0) { head = tail = 0; }
+			if(count == 0 || tail > head) {
+				if(capacity - tail >= size) { pos = tail; break; }
+				if(head >= size) { // wrap
+					if(capacity - tail >= 4) { buf.putInt(HEADER + tail, WRAP); }
+					pos = 0;
+					break;
+				}
+			} else if(head - tail >= size) {
+				pos = tail;
+				break;
+			}
+			remove(); // full: drop the oldest
+			drops++;
+		}
+
+		if(route != null) {
+			long[] last = latest.get(route);
+			if(last == null) {
+				last = new long[2];
+				latest.put(route, last);
+			} else if(last[0] >= removed) { // still there
+				buf.put(HEADER + (int)last[1] + 4, SUPERSEDED);
+				live--;
+				compacted++;
+			}
+			last[0] = appended;
+			last[1] = pos;
+		}
+		int p = HEADER + pos;
+		buf.putInt(p, e.length());
+		buf.put(p + 4, LIVE);
+		buf.putLong(p + 5, System.currentTimeMillis());
+		cursor.clear();
+		cursor.position(p + RECORD);
+		cursor.put(e.bytes());
+		tail = pos + size;
+		count++;
+		live++;
+		appended++;
+		header();
+		return true;
+	}
+
+	/**
+	 * Put a frame back before the oldest record (e.g., taken to be replayed, but
+	 * the connection failed while writing it), so it's replayed first.
+	 * @param e {FrameEncoder} the frame
+	 * @return {boolean} false if there's no room before the oldest record
+	 */
+	synchronized boolean requeue(FrameEncoder e) {
+		if(count == 0) { return append(e, null); }
+		int size = RECORD + e.length();
+		int first = start(head), pos;
+		if(tail > first) { // records in [first, tail)
+			if(first >= size) { pos = first - size; }
+			else if(first == 0 && capacity - tail >= size) { pos = capacity - size; } // the record after it is at the start
+			else { return false; }
+		} else if(first - tail >= size) { // records in [first, capacity) then [0, tail)
+			pos = first - size;
+		} else {
+			return false;
+		}
+		int p = HEADER + pos;
+		buf.putInt(p, e.length());
+		buf.put(p + 4, LIVE);
+		buf.putLong(p + 5, System.currentTimeMillis());
+		cursor.clear();
+		cursor.position(p + RECORD);
+		cursor.put(e.bytes());
+		head = pos;
+		count++;
+		live++;
+		removed--;
+		if(backlog > 0) { backlog++; }
+		header();
+		return true;
+	}
+
+	/**
+	 * Take the oldest message to replay (skipping superseded and expired ones).
+	 * @param e {FrameEncoder} buffer the frame is copied to
+	 * @return {boolean} false if there's nothing to replay
+	 */
+	synchronized boolean poll(FrameEncoder e) {
+		long now = System.currentTimeMillis();
+		while(count > 0) {
+			int p = HEADER + start(head);
+			int len = buf.getInt(p);
+			boolean superseded = buf.get(p + 4) == SUPERSEDED;
+			long time = buf.getLong(p + 5);
+			if(!superseded && maxAge > 0 && now - time > maxAge) {
+				remove();
+				expired++;
+				continue;
+			}
+			if(!superseded) {
+				cursor.clear();
+				cursor.position(p + RECORD);
+				e.put(cursor, len);
+			}
+			remove();
+			if(!superseded) { return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * Drop the oldest record.
+	 */
+	private void remove() {
+		int pos = start(head);
+		int p = HEADER + pos;
+		if(buf.get(p + 4) != SUPERSEDED) { live--; }
+		head = pos + RECORD + buf.getInt(p);
+		count--;
+		removed++;
+		if(backlog > 0) { backlog--; }
+		if(count == 0) { head = tail = 0; }
+		header();
+	}
+
+	/**
+	 * Position of the record at a position, following the wrap mark, if any.
+	 */
+	private int start(int pos) {
+		if(capacity - pos < 4 || buf.getInt(HEADER + pos) == WRAP) { return 0; }
+		return pos;
+	}
+
+	private void header() {
+		buf.putInt(8, head);
+		buf.putInt(12, tail);
+		buf.putInt(16, count);
+	}
+
+	synchronized long drops() { return drops; }
+
+	synchronized long expired() { return expired; }
+
+	synchronized long compacted() { return compacted; }
+
+	void setRate(int messagesPerSecond) { rate = messagesPerSecond; }
+
+	/**
+	 * The connection is established: the records journaled so far are the backlog,
+	 * replayed at the replay rate; those journaled behind it (sent while it's
+	 * replayed) aren't throttled.
+	 */
+	synchronized void connected() { backlog = count; }
+
+	/**
+	 * @return {boolean} true while the backlog is replayed (see <code>connected</code>)
+	 */
+	synchronized boolean replaying() { return backlog > 0; }
+
+	/**
+	 * How many messages can be replayed now (writer thread only).
+	 */
+	int budget(long now) {
+		if(rate <= 0) { return Integer.MAX_VALUE; }
+		if(now - sliceStart >= SLICE) {
+			sliceStart = now;
+			sliceSent = 0;
+		}
+		return Math.max(1, rate / 100) - sliceSent;
+	}
+
+	/**
+	 * Count messages replayed (writer thread only).
+	 */
+	void replayed(int n) { sliceSent += n; }
+
+	/**
+	 * @return {long} System.nanoTime() when more messages can be replayed (writer thread only)
+	 */
+	long nextSlice() { return sliceStart + SLICE; }
+}
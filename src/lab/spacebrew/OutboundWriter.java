@@ -0,0 +1,229 @@
+package lab.spacebrew;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writer thread of a Spacebrew client, or of all the clients of a
+ * SharedConnection: it writes to the websocket the frames of the send queues
+ * (see <code>Spacebrew.setAsyncSend</code>) and the latest value of the publish
+ * routes holding a coalesced value (see <code>PublishRoute.setCoalescing</code>),
+ * and replays the journals of the clients (see <code>Spacebrew.setJournal</code>).
+ * <br>A route is queued only when it goes from clean to dirty, and a client only
+ * when its send queue or journal goes from idle to ready, so the writer never scans clients
+ * or routes with nothing to send, however many it serves.
+ * <br>Frames of a send queue or journal are written in batches (see FrameBatch):
+ * the more messages are queued, by however many threads, the fewer socket writes
+ * per message.
+ * <br>Work of a client that is disconnected is set aside until the writer is woken up
+ * (e.g., when the connection is established), and a client whose journal replay
+ * is throttled is set aside until its next slice. So is the work of a client whose
+ * write failed (e.g., the connection is closing), until the next pass of the writer:
+ * the frames of the failed batch go back to the front of its journal, if it has one.
+ */
+final class OutboundWriter implements Runnable {
+
+	private static final int WRITTEN = 0, THROTTLED = 1, FAILED = 2; // what became of a client's work (see write)
+
+	private final ConcurrentLinkedQueue<PublishRoute> dirty = new ConcurrentLinkedQueue<PublishRoute>();
+	private final ConcurrentLinkedQueue<Spacebrew> ready = new ConcurrentLinkedQueue<Spacebrew>();
+	private final ArrayList<PublishRoute> waitingRoutes = new ArrayList<PublishRoute>(); // writer thread only
+	private final ArrayList<Spacebrew> waitingClients = new ArrayList<Spacebrew>(); // writer thread only
+	private final ArrayList<Spacebrew> again = new ArrayList<Spacebrew>(); // writer thread only
+	private final ArrayList<Spacebrew> throttled = new ArrayList<Spacebrew>(); // writer thread only
+	private final ArrayList<Spacebrew> stalled = new ArrayList<Spacebrew>(); // writer thread only: write failed, retried at the next pass
+	private final FrameBatch batch = new FrameBatch(); // writer thread only
+	private final Thread thread;
+	private volatile boolean sleeping = false;
+
+	OutboundWriter() {
+		thread = new Thread(this, "Spacebrew writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queue a route that has a value pending.
+	 */
+	void markDirty(PublishRoute route) {
+		dirty.offer(route);
+		wake();
+	}
+
+	/**
+	 * Queue a client whose send queue or journal has frames, unless it's queued already.
+	 */
+	void markReady(Spacebrew sb) {
+		if(!sb.writerQueued.get() && sb.writerQueued.compareAndSet(false, true)) { ready.offer(sb); }
+		wake();
+	}
+
+	/**
+	 * Wake the writer up if it's waiting for work (e.g., when a frame is queued
+	 * or the connection is established).
+	 */
+	void wake() {
+		if(sleeping) { LockSupport.unpark(thread); }
+	}
+
+	@Override public void run() {
+		for(;;) {
+			try {
+				while(drain()) {}
+			} catch(RuntimeException e) { // e.g., a route failing to flush
+				System.err.println("[writer] " + e);
+			}
+			sleeping = true;
+			if(!pending()) {
+				long next = nextSlice();
+				if(next == Long.MAX_VALUE) { LockSupport.park(this); }
+				else { LockSupport.parkNanos(this, Math.max(1, next - System.nanoTime())); }
+			}
+			sleeping = false;
+		}
+	}
+
+	/**
+	 * Write what is pending.
+	 * @return {boolean} true if something was written
+	 */
+	private boolean drain() {
+		boolean written = false;
+		for(int i = waitingRoutes.size() - 1; i >= 0; i--) { // connected again?
+			if(waitingRoutes.get(i).connected()) { dirty.offer(waitingRoutes.remove(i)); }
+		}
+		for(int i = waitingClients.size() - 1; i >= 0; i--) {
+			if(waitingClients.get(i).connected()) { ready.offer(waitingClients.remove(i)); }
+		}
+		for(int i = 0; i < stalled.size(); i++) { ready.offer(stalled.get(i)); } // retried (once per pass: the writer doesn't spin on them)
+		stalled.clear();
+		long now = System.nanoTime();
+		for(int i = throttled.size() - 1; i >= 0; i--) { // next slice of replay?
+			OutboundJournal j = throttled.get(i).journal();
+			if(j == null || now - j.nextSlice() >= 0) { ready.offer(throttled.remove(i)); }
+		}
+
+		PublishRoute route;
+		while((route = dirty.poll()) != null) {
+			if(!route.connected()) { // while disconnected, values wait
+				waitingRoutes.add(route);
+				continue;
+			}
+			route.flush();
+			written = true;
+		}
+
+		Spacebrew sb;
+		while((sb = ready.poll()) != null) {
+			if(!sb.connected()) { // while disconnected, frames wait
+				waitingClients.add(sb);
+				continue;
+			}
+			int state = FAILED;
+			try {
+				state = write(sb);
+			} catch(RuntimeException e) { // e.g., connection lost while writing
+				System.err.println("[writer] " + e);
+			} finally { // the client stays queued (writerQueued) until it's in one of the lists, or has no work
+				if(batch.count() > 0) { // not sent
+					sb.unsent(batch);
+					state = FAILED;
+				}
+				if(state == FAILED) {
+					stalled.add(sb);
+				} else if(state == THROTTLED) {
+					throttled.add(sb);
+				} else if(hasWork(sb)) {
+					again.add(sb);
+				} else {
+					sb.writerQueued.set(false);
+					if(hasWork(sb) && sb.writerQueued.compareAndSet(false, true)) { again.add(sb); } // queued meanwhile
+				}
+			}
+			written |= state != FAILED;
+		}
+		for(int i = 0; i < again.size(); i++) { ready.offer(again.get(i)); }
+		again.clear();
+		return written;
+	}
+
+	/**
+	 * Add a frame to the batch, or send it at once if the websocket of the client
+	 * doesn't take batches (e.g., another draft: then the library frames it).
+	 */
+	private void add(Spacebrew sb, boolean batching, FrameEncoder e) {
+		if(batching) { batch.add(e); }
+		else { sb.transmit(e); }
+	}
+
+	/**
+	 * Write a batch of the send queue of a client, and one of its journal.
+	 * @return {int} WRITTEN, THROTTLED if the replay of its journal must wait for the next slice, or FAILED
+	 */
+	private int write(Spacebrew sb) {
+		if(!sb.writable()) { return FAILED; } // closing: frames wait, until the client is disconnected (or the writer woken up)
+		boolean batching = sb.batches();
+		SendQueue q = sb.sendQueue();
+		if(q != null) {
+			FrameEncoder e = FrameEncoder.get();
+			for(int n = 0; n < 64 && batch.length() < FrameBatch.LIMIT && q.poll(e); n++) { // a batch, then the other clients and the dirty routes
+				e = sb.json(e); // compact frames queued before a reconnection
+				if(e != null) { add(sb, batching, e); }
+				e = FrameEncoder.get();
+			}
+			if(!sb.transmit(batch)) { return FAILED; }
+		}
+		OutboundJournal j = sb.journal();
+		if(j != null && j.depth() > 0) { // frames queued before the disconnection went first
+			boolean replaying = j.replaying(); // else only messages sent since the connection was established: not throttled
+			int budget = replaying ? Math.min(64, j.budget(System.nanoTime())) : 64, n = 0;
+			FrameEncoder e = FrameEncoder.get();
+			for(; n < budget && batch.length() < FrameBatch.LIMIT && j.poll(e); n++) {
+				if(!CompactCodec.isCompact(e.bytes())) { add(sb, batching, e); } // (journals are JSON only; route ids may not hold in another run)
+				e = FrameEncoder.get();
+			}
+			if(!sb.transmit(batch)) { return FAILED; }
+			if(replaying) {
+				j.replayed(n);
+				if(j.depth() > 0 && n == budget && j.budget(System.nanoTime()) <= 0) { return THROTTLED; }
+			}
+		}
+		return WRITTEN;
+	}
+
+	private static boolean hasWork(Spacebrew sb) {
+		SendQueue q = sb.sendQueue();
+		OutboundJournal j = sb.journal();
+		return (q != null && q.depth() > 0) || (j != null && j.depth() > 0);
+	}
+
+	/**
+	 * @return {long} System.nanoTime() when a throttled replay can go on, or Long.MAX_VALUE if none
+	 */
+	private long nextSlice() {
+		long next = Long.MAX_VALUE;
+		for(int i = 0; i < throttled.size(); i++) {
+			OutboundJournal j = throttled.get(i).journal();
+			if(j == null) { return System.nanoTime(); }
+			if(next == Long.MAX_VALUE || j.nextSlice() - next < 0) { next = j.nextSlice(); }
+		}
+		return next;
+	}
+
+	private boolean pending() {
+		if(!dirty.isEmpty() || !ready.isEmpty()) { return true; }
+		long now = System.nanoTime();
+		for(int i = 0; i < throttled.size(); i++) {
+			OutboundJournal j = throttled.get(i).journal();
+			if(j == null || now - j.nextSlice() >= 0) { return true; }
+		}
+		for(int i = 0; i < waitingRoutes.size(); i++) {
+			if(waitingRoutes.get(i).connected()) { return true; }
+		}
+		for(int i = 0; i < waitingClients.size(); i++) {
+			if(waitingClients.get(i).connected()) { return true; }
+		}
+		return false;
+	}
+}
@@ -0,0 +1,20 @@
+package lab.spacebrew;
+
+/**
+ * What an asynchronous send does when the send queue is full
+ * (see <code>Spacebrew.setAsyncSend</code>).
+ */
+public enum OverflowPolicy {
+
+	/** Wait for the writer thread to make room. */
+	BLOCK,
+
+	/** Drop the oldest queued message to make room (counted as a drop). */
+	DROP_OLDEST,
+
+	/** Drop the message being sent (counted as a drop); send returns false. */
+	DROP_NEWEST,
+
+	/** Don't queue the message (counted as a rejection); send returns false, so the caller can decide. */
+	FAIL
+}
@@ -0,0 +1,108 @@
+package lab.spacebrew;
+
+/**
+ * Which values a range or boolean publish route actually sends (see
+ * <code>Spacebrew.addPublish(String, Integer, PublishFilter)</code>), e.g.:
+ * <br><code>cl.addPublish("level", 0, PublishFilter.changeOnly().withMinInterval(20).withHeartbeat(1000));</code>
+ * <p>A value is compared with the last value sent along the route:
+ * <br>- it's suppressed if it's within the deadband of the last value:
+ * absolute (<code>withDeadband</code>, 0 meaning unchanged values only) or
+ * relative to the last value (<code>withDeadbandPercent</code>); boolean routes
+ * only suppress unchanged values;
+ * <br>- it's suppressed if it comes less than the minimum interval after the last
+ * value sent, changed or not (<code>withMinInterval</code>);
+ * <br>- but it's sent anyway if the route has been silent for the heartbeat
+ * interval (<code>withHeartbeat</code>), so subscribers joining late or
+ * missing a message get the current value in bounded time.
+ * <br>Filters are evaluated when values are sent: no timer sends the last
+ * suppressed value of a route nothing is sent along anymore.
+ * <br>Filters are immutable: the <code>with</code> methods return a new filter.
+ */
+public final class PublishFilter {
+
+	private final int deadband; // -1: values aren't compared
+	private final double deadbandPercent;
+	private final long minInterval, heartbeat; // ms, 0: none
+
+	/**
+	 * A filter sending every value (a starting point for the <code>with</code> methods).
+	 */
+	public PublishFilter() { this(-1, 0, 0, 0); }
+
+	private PublishFilter(int deadband, double deadbandPercent, long minInterval, long heartbeat) {
+		this.deadband = deadband;
+		this.deadbandPercent = deadbandPercent;
+		this.minInterval = minInterval;
+		this.heartbeat = heartbeat;
+	}
+
+	/**
+	 * @return {PublishFilter} a filter sending only values different from the last one sent
+	 */
+	public static PublishFilter changeOnly() { return new PublishFilter(0, 0, 0, 0); }
+
+	/**
+	 * Suppress values differing from the last value sent by at most <code>delta</code>.
+	 * @param delta {int} absolute deadband (0: unchanged values only)
+	 * @return {PublishFilter} the new filter
+	 */
+	public PublishFilter withDeadband(int delta) {
+		if(delta < 0) { throw new IllegalArgumentException("negative deadband: " + delta); }
+		return new PublishFilter(delta, deadbandPercent, minInterval, heartbeat);
+	}
+
+	/**
+	 * Suppress values differing from the last value sent by at most a percentage
+	 * of it (and unchanged values). Combined with an absolute deadband, the larger
+	 * of the two applies.
+	 * @param percent {double} relative deadband, in % of the last value sent
+	 * @return {PublishFilter} the new filter
+	 */
+	public PublishFilter withDeadbandPercent(double percent) {
+		if(!(percent >= 0)) { throw new IllegalArgumentException("invalid deadband: " + percent + "%"); }
+		return new PublishFilter(Math.max(0, deadband), percent, minInterval, heartbeat);
+	}
+
+	/**
+	 * Suppress values sent less than <code>millis</code> after the last value sent.
+	 * @param millis {long} minimum interval between messages, in ms (0: none)
+	 * @return {PublishFilter} the new filter
+	 */
+	public PublishFilter withMinInterval(long millis) {
+		if(millis < 0 || millis > Integer.MAX_VALUE) { throw new IllegalArgumentException("invalid interval: " + millis + " ms"); }
+		return new PublishFilter(deadband, deadbandPercent, millis, heartbeat);
+	}
+
+	/**
+	 * Send a value, even if it would be suppressed, when nothing was sent along
+	 * the route for <code>millis</code>.
+	 * @param millis {long} maximum silence, in ms (0: none)
+	 * @return {PublishFilter} the new filter
+	 */
+	public PublishFilter withHeartbeat(long millis) {
+		if(millis < 0 || millis > Integer.MAX_VALUE) { throw new IllegalArgumentException("invalid heartbeat: " + millis + " ms"); }
+		return new PublishFilter(deadband, deadbandPercent, minInterval, millis);
+	}
+
+	/**
+	 * @return {int} absolute deadband, or -1 if values aren't compared
+	 */
+	public int getDeadband() { return deadband; }
+
+	public double getDeadbandPercent() { return deadbandPercent; }
+
+	/**
+	 * @return {long} minimum interval between messages, in ms (0: none)
+	 */
+	public long getMinInterval() { return minInterval; }
+
+	/**
+	 * @return {long} maximum silence, in ms (0: none)
+	 */
+	public long getHeartbeat() { return heartbeat; }
+
+	@Override public String toString() {
+		return "PublishFilter[deadband=" + deadband + ", deadbandPercent=" + deadbandPercent
+				+ ", minInterval=" + minInterval + "ms, heartbeat=" + heartbeat + "ms]";
+	}
+}
@@ -0,0 +1,361 @@
+package lab.spacebrew;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handle of a publish route, as returned by <code>Spacebrew.addPublish</code>.
+ * <br>The route type is resolved and the outbound frame pre-rendered when the
+ * route is registered, so sending through the handle costs no lookup, e.g.:
+ * <br><code>PublishRoute slider = cl.addPublish("a range publisher", 0);</code>
+ * <br><code>slider.send(512);</code>
+ * <br>Routes of a custom type such as "x,y" can carry numeric vectors, sent
+ * from primitive arrays (see <code>send(float...)</code>), or objects encoded
+ * by the codec of the type (see <code>sendObject</code>).
+ * <p>A route can be set to coalesce its values (see <code>setCoalescing</code>).
+ * <br>A range or boolean route can filter its values (e.g., send only changes,
+ * see <code>PublishFilter</code>), if registered with a filter.
+ * <br>On a SharedConnection delivering in-process (see <code>SharedConnection.setLoopback</code>),
+ * values go straight to the subscribers of the route when they're all in the JVM.
+ */
+public final class PublishRoute {
+
+	private static final ThreadLocal<StringBuilder> TEXT = new ThreadLocal<StringBuilder>() { // values encoded by codecs
+		@Override protected StringBuilder initialValue() { return new StringBuilder(); }
+	};
+
+	private static final long RANGE = 1L << 32, BOOLEAN = 2L << 32, STRING = 3L << 32, KIND = 0xffffffffL << 32;
+
+	private final Spacebrew sb;
+	private final String name, type;
+	private final int id; // index in the publish messages of the config (compact wire mode)
+	private final int kind; // type, as a FrameDecoder type code
+	private volatile FrameTemplate template;
+	private final RouteFilter filter; // null: every value is sent
+
+	private volatile boolean coalescing = false;
+	private volatile boolean journalCompaction = false;
+	private final AtomicBoolean dirty = new AtomicBoolean();
+	private final AtomicLong pending = new AtomicLong(); // kind of value | int value
+	private volatile String pendingString;
+
+	private volatile Loopback.Targets local; // subscribers in the JVM, as of a version of the loopback routes
+
+	final AtomicLong sent = new AtomicLong(), sentBytes = new AtomicLong();
+
+	private final int traceSource = ThreadLocalRandom.current().nextInt(); // tells the messages of this route apart (see Trace)
+	private final AtomicLong sequence = new AtomicLong();
+
+	PublishRoute(Spacebrew sb, int id, String name, String type, PublishFilter filter) {
+		this.sb = sb;
+		this.id = id;
+		this.name = name;
+		this.type = type;
+		kind = type.equals("range") ? FrameDecoder.RANGE : type.equals("boolean") ? FrameDecoder.BOOLEAN
+				: type.equals("string") ? FrameDecoder.STRING : FrameDecoder.OTHER;
+		this.template = new FrameTemplate(sb.name, name, type);
+		this.filter = (filter != null) ? new RouteFilter(filter) : null;
+	}
+
+	/**
+	 * @return {String} name of route
+	 */
+	public String getName() { return name; }
+
+	/**
+	 * @return {String} type of route
+	 */
+	public String getType() { return type; }
+
+	/**
+	 * Set whether values sent along this route are coalesced.
+	 * <br>A coalescing route keeps at most one pending value: each send overwrites it,
+	 * and the writer thread of the client sends the latest one as soon as it can.
+	 * Stale values are thus skipped when the connection falls behind (or is down),
+	 * which suits high-rate range routes; boolean and string events usually need
+	 * every value delivered, and shouldn't coalesce.
+	 * @param coalescing {boolean} true to coalesce (default: false)
+	 */
+	public void setCoalescing(boolean coalescing) { this.coalescing = coalescing; }
+
+	/**
+	 * @return {boolean} true if values sent along this route are coalesced
+	 */
+	public boolean isCoalescing() { return coalescing; }
+
+	/**
+	 * Set whether the client journal (see <code>Spacebrew.setJournal</code>) keeps
+	 * only the latest message of this route, instead of all of them, e.g. for a
+	 * route whose values are states rather than events.
+	 * @param latestOnly {boolean} true to keep only the latest message (default: false)
+	 */
+	public void setJournalCompaction(boolean latestOnly) { journalCompaction = latestOnly; }
+
+	/**
+	 * @return {boolean} true if the client journal keeps only the latest message of this route
+	 */
+	public boolean isJournalCompaction() { return journalCompaction; }
+
+	/**
+	 * @return {PublishFilter} filter of the values sent along this route, or null if every value is sent
+	 */
+	public PublishFilter getFilter() { return filter == null ? null : filter.config; }
+
+	/**
+	 * @return {long} values suppressed by the filter of this route (see <code>PublishFilter</code>)
+	 */
+	public long getSuppressed() { return filter == null ? 0 : filter.suppressed(); }
+
+	/**
+	 * @return {long} values suppressed because they were within the deadband of the last value sent
+	 */
+	public long getSuppressedInDeadband() { return filter == null ? 0 : filter.inDeadband.get(); }
+
+	/**
+	 * @return {long} values suppressed because they came before the minimum interval
+	 */
+	public long getSuppressedByInterval() { return filter == null ? 0 : filter.byInterval.get(); }
+
+	/**
+	 * @return {long} values sent only because the heartbeat interval had elapsed
+	 */
+	public long getHeartbeats() { return filter == null ? 0 : filter.heartbeats.get(); }
+
+	/**
+	 * Send a Range message along this route.
+	 * @param value {int} what you're sending
+	 * @return {boolean} true if the message was sent (or queued, or suppressed by the filter of the route)
+	 */
+	public boolean send(int value) {
+		RouteFilter f = (kind == FrameDecoder.RANGE) ? filter : null;
+		if(f == null) { return write(value); }
+		long admitted = f.admit(value, false);
+		if(admitted == 0) { return true; }
+		if(write(value)) { return true; }
+		f.unsent(admitted);
+		return false;
+	}
+
+	private boolean write(int value) {
+		Loopback.Target[] l = (kind == FrameDecoder.RANGE) ? local() : null;
+		if(l != null) { return delivered(Loopback.deliver(l, kind, value, null)); }
+		if(coalescing) { return hold(RANGE | (value & 0xffffffffL)); }
+		if(sb.compact()) { return sb.write(CompactCodec.encode(id, value), this); }
+		return sb.write(template().encode(value), this);
+	}
+
+	/**
+	 * Send a Boolean message along this route.
+	 * @param value {boolean} what you're sending
+	 * @return {boolean} true if the message was sent (or queued, or suppressed by the filter of the route)
+	 */
+	public boolean send(boolean value) {
+		RouteFilter f = (kind == FrameDecoder.BOOLEAN) ? filter : null;
+		if(f == null) { return write(value); }
+		long admitted = f.admit(value ? 1 : 0, true);
+		if(admitted == 0) { return true; }
+		if(write(value)) { return true; }
+		f.unsent(admitted);
+		return false;
+	}
+
+	private boolean write(boolean value) {
+		Loopback.Target[] l = (kind == FrameDecoder.BOOLEAN) ? local() : null;
+		if(l != null) { return delivered(Loopback.deliver(l, kind, value ? 1 : 0, null)); }
+		if(coalescing) { return hold(BOOLEAN | (value ? 1 : 0)); }
+		if(sb.compact()) { return sb.write(CompactCodec.encode(id, value), this); }
+		return sb.write(template().encode(value), this);
+	}
+
+	/**
+	 * Send a String message along this route.
+	 * @param value {String} what you're sending (null is sent as an empty string)
+	 * @return {boolean} true if the message was sent (or queued)
+	 */
+	public boolean send(String value) {
+		if(value == null) { value = ""; }
+		Loopback.Target[] l = (kind == FrameDecoder.STRING || kind == FrameDecoder.OTHER) ? local() : null; // else parsed by the subscriber
+		if(l != null) { return delivered(Loopback.deliver(l, kind, 0, value)); }
+		if(coalescing) {
+			pendingString = value;
+			return hold(STRING);
+		}
+		if(sb.compact()) { return sb.write(CompactCodec.encode(id, value), this); }
+		return sb.write(template().encode(value), this);
+	}
+
+	/**
+	 * Send a numeric vector message along this route (e.g., "x,y" coordinates),
+	 * as the values separated by commas.
+	 * <br>Floats are written with up to 7 significant digits. Passing an array
+	 * (reused from send to send) rather than separate values sends without allocating.
+	 * @param values {float[]} what you're sending
+	 * @return {boolean} true if the message was sent (or queued)
+	 */
+	public boolean send(float... values) {
+		if(coalescing || local() != null) { return send(Vectors.toString(values)); }
+		if(sb.compact()) { return sb.write(CompactCodec.encode(id, values, values.length), this); }
+		return sb.write(template().encode(values, values.length), this);
+	}
+
+	/**
+	 * Send a numeric vector message along this route (doubles are written with up to 15 significant digits).
+	 * @param values {double[]} what you're sending
+	 * @return {boolean} true if the message was sent (or queued)
+	 */
+	public boolean send(double... values) {
+		if(coalescing || local() != null) { return send(Vectors.toString(values)); }
+		if(sb.compact()) { return sb.write(CompactCodec.encode(id, values, values.length), this); }
+		return sb.write(template().encode(values, values.length), this);
+	}
+
+	/**
+	 * Send a numeric vector message along this route.
+	 * @param values {int[]} what you're sending
+	 * @return {boolean} true if the message was sent (or queued)
+	 */
+	public boolean send(int... values) {
+		if(coalescing || local() != null) { return send(Vectors.toString(values)); }
+		if(sb.compact()) { return sb.write(CompactCodec.encode(id, values, values.length), this); }
+		return sb.write(template().encode(values, values.length), this);
+	}
+
+	/**
+	 * Send a value along this route, encoded by the codec of the route type
+	 * (see <code>Spacebrew.registerCodec</code>).
+	 * @param value {Object} what you're sending
+	 * @return {boolean} true if the message was sent (or queued)
+	 * @throws IllegalStateException if no codec is registered for the route type
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean sendObject(Object value) {
+		SpacebrewCodec<Object> codec = (SpacebrewCodec<Object>)sb.codec(type.toLowerCase());
+		if(codec == null) { throw new IllegalStateException("no codec registered for type " + type); }
+		StringBuilder text = TEXT.get();
+		text.setLength(0);
+		codec.encode(value, text);
+		if(coalescing || local() != null) { return send(text.toString()); }
+		if(sb.compact()) { return sb.write(CompactCodec.encode(id, text), this); }
+		return sb.write(template().encode(text), this);
+	}
+
+	/**
+	 * Send a String message through the server, even if the subscribers are in the JVM (e.g., a latency probe).
+	 * @return {boolean} true if the message was sent (or queued)
+	 */
+	boolean sendThroughServer(CharSequence value) {
+		if(sb.compact()) { return sb.write(CompactCodec.encode(id, value), this); }
+		return sb.write(template().encode(value), this);
+	}
+
+	/**
+	 * Add tracing metadata to a message of this route: the next sequence number, and the time.
+	 */
+	void stamp(FrameEncoder e) { Trace.stamp(e, traceSource, sequence.incrementAndGet(), Trace.now()); }
+
+	/**
+	 * @return {Target[]} the subscribers of the route if they're all in the JVM, or null to send through the server
+	 */
+	private Loopback.Target[] local() {
+		Loopback l = sb.loopback();
+		if(l == null) { return null; }
+		Loopback.Targets t = local;
+		if(t == null || t.version != l.version()) { local = t = l.targets(sb.name, name, type); }
+		return t.local;
+	}
+
+	private boolean delivered(boolean done) {
+		counted(0);
+		return done;
+	}
+
+	/**
+	 * Make a value the pending one, and queue the route if it was clean.
+	 */
+	private boolean hold(long value) {
+		pending.set(value);
+		if(!dirty.getAndSet(true)) { sb.writer().markDirty(this); }
+		return true;
+	}
+
+	/**
+	 * Send the pending value, if any (writer thread only).
+	 */
+	void flush() {
+		if(!dirty.getAndSet(false)) { return; }
+		long p = pending.get();
+		long kind = p & KIND;
+		if(sb.compact()) {
+			if(kind == RANGE) { transmit(CompactCodec.encode(id, (int)p)); }
+			else if(kind == BOOLEAN) { transmit(CompactCodec.encode(id, (int)p != 0)); }
+			else if(kind == STRING) { transmit(CompactCodec.encode(id, pendingString)); }
+		}
+		else if(kind == RANGE) { transmit(template().encode((int)p)); }
+		else if(kind == BOOLEAN) { transmit(template().encode((int)p != 0)); }
+		else if(kind == STRING) { transmit(template().encode(pendingString)); }
+	}
+
+	/**
+	 * Encode a compact frame of this route as JSON, keeping its tracing metadata, if any.
+	 * @param frame {ByteBuffer} the frame (read before the calling thread's buffer is reused)
+	 * @return {FrameEncoder} the JSON frame, in the calling thread's buffer
+	 * @throws IllegalArgumentException if the frame is truncated
+	 */
+	FrameEncoder json(ByteBuffer frame) {
+		int kind = frame.get();
+		int trailer = ((kind & Trace.TRACED) != 0) ? Trace.trailer(frame) : -1;
+		int source = 0;
+		long seq = 0, micros = 0;
+		if(trailer >= 0) {
+			source = Trace.source(frame, trailer);
+			seq = Trace.seq(frame, trailer);
+			micros = Trace.micros(frame, trailer);
+			frame.limit(trailer);
+		}
+		CompactCodec.varint(frame); // route id
+		kind &= ~Trace.TRACED;
+		int value = 0;
+		String text = null;
+		if(kind == CompactCodec.RANGE) { value = CompactCodec.range(frame); }
+		else if(kind == CompactCodec.BOOLEAN) { value = frame.get(); }
+		else { text = CompactCodec.string(frame); }
+		FrameTemplate t = template(); // once the frame is read: a new template is rendered in the calling thread's buffer
+		FrameEncoder e;
+		if(kind == CompactCodec.RANGE) { e = t.encode(value); }
+		else if(kind == CompactCodec.BOOLEAN) { e = t.encode(value != 0); }
+		else { e = t.encode(text); }
+		if(trailer >= 0) { Trace.stamp(e, source, seq, micros); }
+		return e;
+	}
+
+	private void transmit(FrameEncoder e) {
+		if(sb.isTracing()) { stamp(e); }
+		int n = e.length();
+		sb.transmit(e);
+		counted(n);
+	}
+
+	/**
+	 * Count a message sent along this route.
+	 */
+	void counted(int bytes) {
+		sent.incrementAndGet();
+		sentBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * @return {boolean} true if the client of the route is connected
+	 */
+	boolean connected() { return sb.connected(); }
+
+	/**
+	 * Get the outbound frame, rendering it again if the client name changed.
+	 */
+	FrameTemplate template() {
+		FrameTemplate t = template;
+		if(t.clientName != sb.name) { t = template = new FrameTemplate(sb.name, name, type); }
+		return t;
+	}
+}
@@ -0,0 +1,13 @@
+package lab.spacebrew;
+
+/**
+ * Callback for a range subscription (see <code>Spacebrew.subscribeRange</code>).
+ */
+public interface RangeCallback {
+
+	/**
+	 * Called for each range message received on the route.
+	 * @param value {int} the value received
+	 */
+	void accept(int value);
+}
@@ -0,0 +1,192 @@
+package lab.spacebrew;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a Spacebrew client (or shared connection) tries to (re)connect.
+ * <br>When an established connection is lost, the first attempt is immediate
+ * (unless the connection didn't stay up for a while, e.g. a server accepting and
+ * closing at once, which is handled as a failed attempt);
+ * then, as long as attempts fail, they are spaced by an exponential backoff with
+ * decorrelated jitter (each delay is random between the base delay and three times
+ * the previous one, up to a cap), so that clients losing the same server don't
+ * come back in lockstep.
+ * <br>Only one attempt is in flight at a time: the next one is scheduled when the
+ * current one fails, or when it times out.
+ * <br>All clients share one daemon timer thread.
+ */
+final class ReconnectScheduler {
+
+	static final ScheduledExecutorService TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() { // also runs the latency probes
+		@Override public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Spacebrew timer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private static final long STABLE = 1000000000L; // ns a connection must last for its loss to be retried at once
+
+	/**
+	 * What the scheduler (re)connects.
+	 */
+	interface Endpoint {
+		/**
+		 * @return {boolean} true if the connection is established
+		 */
+		boolean connected();
+
+		/**
+		 * Open a new websocket, asynchronously: it ends with opened() or closed().
+		 */
+		void attemptConnection();
+
+		/**
+		 * Give up on the websocket attempting to connect.
+		 */
+		void abandonConnection();
+
+		/**
+		 * @return {boolean} true to log what the scheduler does
+		 */
+		boolean verbose();
+	}
+
+	private final Endpoint endpoint;
+	private final Random random = new Random();
+
+	private long baseDelay = 250, maxDelay = 30000, connectTimeout = 10000; // ms
+	private long lastDelay = 0;
+	private boolean requested = false, inFlight = false, wasConnected = false;
+	private int attempt = 0; // identifies the attempt in flight, for its timeout
+	private ScheduledFuture<?> next, timeout;
+
+	private long openedAt; // System.nanoTime() when the connection was established
+	private long disconnectedAt = -1; // System.nanoTime() when the connection was lost
+	private long attempts = 0, reconnects = 0, lastReconnect = 0, maxReconnect = 0, totalReconnect = 0; // ns
+
+	ReconnectScheduler(Endpoint endpoint) { this.endpoint = endpoint; }
+
+	synchronized void setBackoff(long baseMillis, long maxMillis) {
+		baseDelay = Math.max(1, baseMillis);
+		maxDelay = Math.max(baseDelay, maxMillis);
+	}
+
+	synchronized void setConnectTimeout(long millis) { connectTimeout = millis; }
+
+	/**
+	 * A connection is requested: attempt now (abandoning any attempt in flight).
+	 */
+	synchronized void start() {
+		requested = true;
+		lastDelay = 0;
+		cancel();
+		inFlight = false;
+		attemptNow();
+	}
+
+	/**
+	 * The connection isn't wanted anymore: no more attempts.
+	 */
+	synchronized void stop() {
+		requested = false;
+		cancel();
+		inFlight = false;
+	}
+
+	/**
+	 * The attempt in flight succeeded.
+	 */
+	synchronized void opened() {
+		inFlight = false;
+		wasConnected = true;
+		openedAt = System.nanoTime();
+		if(timeout != null) { timeout.cancel(false); }
+		if(disconnectedAt >= 0) {
+			long t = System.nanoTime() - disconnectedAt;
+			reconnects++;
+			lastReconnect = t;
+			maxReconnect = Math.max(maxReconnect, t);
+			totalReconnect += t;
+			disconnectedAt = -1;
+		}
+	}
+
+	/**
+	 * The connection was lost, or the attempt in flight failed.
+	 */
+	synchronized void closed() {
+		inFlight = false;
+		if(timeout != null) { timeout.cancel(false); }
+		if(!requested) { return; }
+		boolean lost = wasConnected;
+		wasConnected = false;
+		if(lost) { disconnectedAt = System.nanoTime(); }
+		if(lost && disconnectedAt - openedAt >= STABLE) { // just lost: retry at once
+			lastDelay = 0;
+			attemptNow();
+		} else {
+			schedule(backoff());
+		}
+	}
+
+	/**
+	 * Decorrelated jitter: random between base and 3 times the previous delay, capped.
+	 */
+	private long backoff() {
+		long upper = Math.min(maxDelay, Math.max(baseDelay, lastDelay * 3));
+		long d = baseDelay + (long)(random.nextDouble() * (upper - baseDelay));
+		lastDelay = d;
+		return d;
+	}
+
+	private void schedule(long delay) {
+		if(next != null) { next.cancel(false); }
+		next = TIMER.schedule(new Runnable() {
+			@Override public void run() { attemptIfIdle(); }
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void attemptIfIdle() {
+		if(requested && !inFlight && !endpoint.connected()) { attemptNow(); }
+	}
+
+	private void attemptNow() {
+		inFlight = true;
+		attempts++;
+		final int id = ++attempt;
+		if(timeout != null) { timeout.cancel(false); }
+		timeout = TIMER.schedule(new Runnable() {
+			@Override public void run() { timedOut(id); }
+		}, connectTimeout, TimeUnit.MILLISECONDS);
+		endpoint.attemptConnection(); // asynchronous: ends with opened() or closed()
+	}
+
+	private synchronized void timedOut(int id) {
+		if(id != attempt || !inFlight) { return; }
+		if(endpoint.verbose()) { System.out.println("[reconnect] connection attempt timed out"); }
+		endpoint.abandonConnection();
+		inFlight = false;
+		if(requested) { schedule(backoff()); }
+	}
+
+	private void cancel() {
+		if(next != null) { next.cancel(false); }
+		if(timeout != null) { timeout.cancel(false); }
+	}
+
+	synchronized long attempts() { return attempts; }
+
+	synchronized long reconnects() { return reconnects; }
+
+	synchronized long lastReconnectMillis() { return lastReconnect / 1000000; }
+
+	synchronized long maxReconnectMillis() { return maxReconnect / 1000000; }
+
+	synchronized long meanReconnectMillis() { return reconnects == 0 ? 0 : totalReconnect / reconnects / 1000000; }
+}
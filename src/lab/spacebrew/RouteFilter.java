@@ -0,0 +1,90 @@
+package lab.spacebrew;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PublishFilter of a route, evaluated against the last value sent.
+ * <br>The last value and the time it was sent are packed in one long: the value
+ * in the high 32 bits, a sent flag, and the time in ms since the filter was
+ * created in the low 31 bits (intervals are compared modulo 2^31 ms, i.e.,
+ * about 24 days). Senders decide and claim the new state with one CAS, so
+ * concurrent senders don't both send an unchanged value, without a lock.
+ */
+final class RouteFilter {
+
+	private static final long SENT = 0x80000000L, TIME = 0x7fffffffL;
+
+	final PublishFilter config;
+	private final boolean compares, timed;
+	private final int deadband;
+	private final double deadbandPercent;
+	private final long minInterval, heartbeatInterval;
+	private final long base = System.nanoTime();
+	private final AtomicLong state = new AtomicLong(); // 0: nothing sent yet
+
+	final AtomicLong inDeadband = new AtomicLong(), byInterval = new AtomicLong(), heartbeats = new AtomicLong();
+
+	RouteFilter(PublishFilter config) {
+		this.config = config;
+		deadband = config.getDeadband();
+		deadbandPercent = config.getDeadbandPercent();
+		minInterval = config.getMinInterval();
+		heartbeatInterval = config.getHeartbeat();
+		compares = deadband >= 0;
+		timed = minInterval > 0 || heartbeatInterval > 0;
+	}
+
+	/**
+	 * Decide whether a value is sent, and if so make it the last value sent.
+	 * @param value {int} range value (or 0/1 for a boolean)
+	 * @param bool {boolean} true for a boolean route (which only compares values for equality)
+	 * @return {long} the new state, to pass to <code>unsent</code> if the value can't be sent, or 0 if the value is suppressed
+	 */
+	long admit(int value, boolean bool) {
+		return admit(value, bool, timed ? (System.nanoTime() - base) / 1000000L : 0);
+	}
+
+	/**
+	 * Decide whether a value is sent at a given time (see above).
+	 * @param millis {long} the time, in ms since the filter was created
+	 */
+	long admit(int value, boolean bool, long millis) {
+		long now = millis & TIME;
+		for(;;) {
+			long s = state.get();
+			boolean heartbeat = false;
+			if(s != 0) {
+				long elapsed = (now - s) & TIME;
+				boolean early = elapsed < minInterval;
+				if(early || (compares && within(value, (int)(s >> 32), bool))) {
+					if(heartbeatInterval == 0 || elapsed < heartbeatInterval) {
+						(early ? byInterval : inDeadband).incrementAndGet();
+						return 0;
+					}
+					heartbeat = true; // sent only because the route was silent for too long
+				}
+			}
+			long next = ((long)value << 32) | SENT | now;
+			if(state.compareAndSet(s, next)) {
+				if(heartbeat) { heartbeats.incrementAndGet(); }
+				return next;
+			}
+		}
+	}
+
+	/**
+	 * The admitted value couldn't be sent (e.g., disconnected): forget it, so the next value is sent.
+	 */
+	void unsent(long admitted) { state.compareAndSet(admitted, 0); }
+
+	private boolean within(int value, int last, boolean bool) {
+		long delta = Math.abs((long)value - last);
+		if(bool) { return delta == 0; }
+		return delta <= deadband || delta <= Math.abs((long)last) * deadbandPercent / 100;
+	}
+
+	/**
+	 * @return {long} values suppressed, all reasons
+	 */
+	long suppressed() { return inDeadband.get() + byInterval.get(); }
+}
@@ -0,0 +1,56 @@
+package lab.spacebrew;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Snapshot of the counters of a route: messages and bytes sent (publish
+ * routes) or received (subscribe routes), and, for subscribe routes, how long
+ * messages waited to be delivered and how long the callbacks took.
+ * <br>Bytes of JSON frames received are counted in characters.
+ */
+public final class RouteStatistics {
+
+	private final String name, direction;
+	private final long messages, bytes;
+	private final LatencyStatistics dispatchLatency, callbackTime;
+
+	@ConstructorProperties({ "name", "direction", "messages", "bytes", "dispatchLatency", "callbackTime" })
+	public RouteStatistics(String name, String direction, long messages, long bytes,
+			LatencyStatistics dispatchLatency, LatencyStatistics callbackTime) {
+		this.name = name;
+		this.direction = direction;
+		this.messages = messages;
+		this.bytes = bytes;
+		this.dispatchLatency = dispatchLatency;
+		this.callbackTime = callbackTime;
+	}
+
+	/**
+	 * @return {String} name of route
+	 */
+	public String getName() { return name; }
+
+	/**
+	 * @return {String} "publish" or "subscribe"
+	 */
+	public String getDirection() { return direction; }
+
+	public long getMessages() { return messages; }
+
+	public long getBytes() { return bytes; }
+
+	/**
+	 * @return {LatencyStatistics} time from reception to delivery (empty for publish routes)
+	 */
+	public LatencyStatistics getDispatchLatency() { return dispatchLatency; }
+
+	/**
+	 * @return {LatencyStatistics} time spent in the callbacks (empty for publish routes)
+	 */
+	public LatencyStatistics getCallbackTime() { return callbackTime; }
+
+	@Override public String toString() {
+		return direction + " " + name + ": " + messages + " messages, " + bytes + " bytes"
+				+ (dispatchLatency.getCount() > 0 ? "; latency " + dispatchLatency + "; callbacks " + callbackTime : "");
+	}
+}
@@ -0,0 +1,77 @@
+package lab.spacebrew;
+
+import java.util.Arrays;
+
+/**
+ * Immutable snapshot of the routes of a client: publish and subscribe
+ * messages of its config (in order, their index being the route id of the
+ * compact wire mode), publish route handles, and subscriptions.
+ * <br>Route changes build a new table, swapped (under the client lock) into
+ * a volatile field: senders and the websocket thread read the field once and
+ * get a consistent view, without a lock, and changes are seen in the order
+ * they were made.
+ */
+final class RouteTable {
+
+	static final RouteTable EMPTY = new RouteTable(new SpacebrewMessage[0], new SpacebrewMessage[0], new PublishRoute[0],
+			NameIndex.<PublishRoute>empty(), NameIndex.<Subscription>empty(), NameIndex.<SpacebrewMessage>empty());
+
+	final SpacebrewMessage[] publishes, subscribes;
+	final PublishRoute[] handles; // all publish routes, duplicates included
+	final NameIndex<PublishRoute> publishRoutes; // route handles, by name (the first registered)
+	final NameIndex<Subscription> subscriptions; // dispatch table, by route name
+	private final NameIndex<SpacebrewMessage> subscribed; // subscribe messages, by "name\ntype"
+
+	private RouteTable(SpacebrewMessage[] publishes, SpacebrewMessage[] subscribes, PublishRoute[] handles,
+			NameIndex<PublishRoute> publishRoutes, NameIndex<Subscription> subscriptions, NameIndex<SpacebrewMessage> subscribed) {
+		this.publishes = publishes;
+		this.subscribes = subscribes;
+		this.handles = handles;
+		this.publishRoutes = publishRoutes;
+		this.subscriptions = subscriptions;
+		this.subscribed = subscribed;
+	}
+
+	/**
+	 * Get a table with a publish route added.
+	 * @param m {SpacebrewMessage} publish message of the route, at index <code>publishes.length</code>
+	 * @param route {PublishRoute} handle of the route
+	 */
+	RouteTable withPublish(SpacebrewMessage m, PublishRoute route) {
+		return new RouteTable(append(publishes, m), subscribes, append(handles, route),
+				(publishRoutes.get(m.name) == null) ? publishRoutes.with(m.name, route) : publishRoutes, // first registration wins
+				subscriptions, subscribed);
+	}
+
+	/**
+	 * Get a table with a route subscribed (its subscribe message and dispatch entry added, if new).
+	 */
+	RouteTable withSubscribe(String name, String type) {
+		SpacebrewMessage[] s = subscribes;
+		NameIndex<SpacebrewMessage> d = subscribed;
+		String key = name + "\n" + type;
+		if(d.get(key) == null) {
+			SpacebrewMessage m = new SpacebrewMessage();
+			m.name = name;
+			m.type = type;
+			s = append(s, m);
+			d = d.with(key, m);
+		}
+		NameIndex<Subscription> t = (subscriptions.get(name) == null) ? subscriptions.with(name, new Subscription(name)) : subscriptions;
+		if(s == subscribes && t == subscriptions) { return this; }
+		return new RouteTable(publishes, s, handles, publishRoutes, t, d);
+	}
+
+	/**
+	 * Get a table with a dispatch entry replaced (e.g., with a callback added).
+	 */
+	RouteTable with(Subscription s) {
+		return new RouteTable(publishes, subscribes, handles, publishRoutes, subscriptions.with(s.name, s), subscribed);
+	}
+
+	private static <T> T[] append(T[] a, T e) {
+		T[] b = Arrays.copyOf(a, a.length + 1);
+		b[a.length] = e;
+		return b;
+	}
+}
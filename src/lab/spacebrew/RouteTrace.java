@@ -0,0 +1,56 @@
+package lab.spacebrew;
+
+import java.util.Arrays;
+
+/**
+ * Tracing statistics of a subscribed route (see <code>Spacebrew.setTracing</code>):
+ * one-way latency of the traced messages received, and gaps and reorderings in
+ * the sequence numbers of each publish route sending to it (sources are told
+ * apart by their id, since the server rewrites the names of the messages it forwards).
+ */
+final class RouteTrace {
+
+	final LatencyHistogram latency = new LatencyHistogram();
+	private int[] sources = new int[2];
+	private long[] last = new long[2]; // highest sequence number seen, by source
+	private int count;
+	private long traced, gaps, reordered;
+
+	/**
+	 * Record a traced message.
+	 * @param source {int} its source (see Trace)
+	 * @param seq {long} its sequence number
+	 * @param sentMicros {long} when it was sent
+	 * @param micros {long} when it was received (see <code>Trace.now</code>)
+	 */
+	synchronized void record(int source, long seq, long sentMicros, long micros) {
+		latency.record((micros - sentMicros) * 1000);
+		traced++;
+		int i = 0;
+		while(i < count && sources[i] != source) { i++; }
+		if(i == count) { // first message of this source: nothing to compare with
+			if(count == sources.length) {
+				sources = Arrays.copyOf(sources, count * 2);
+				last = Arrays.copyOf(last, count * 2);
+			}
+			sources[count] = source;
+			last[count++] = seq;
+			return;
+		}
+		long expected = last[i] + 1;
+		if(seq >= expected) {
+			gaps += seq - expected;
+			last[i] = seq;
+		} else { // late: it was counted as a gap when a later message came
+			reordered++;
+			if(gaps > 0) { gaps--; }
+		}
+	}
+
+	/**
+	 * @return {TraceStatistics} snapshot of the statistics
+	 */
+	synchronized TraceStatistics statistics(String name) {
+		return new TraceStatistics(name, traced, latency.statistics(), gaps, reordered);
+	}
+}
@@ -0,0 +1,125 @@
+package lab.spacebrew;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded ring buffer of encoded outbound frames, between the sending threads
+ * and the writer thread of a client.
+ * <br>Slots are preallocated and their byte arrays reused (they only grow to fit
+ * the largest frame seen), so queuing a frame is a copy, not an allocation.
+ * Producers claim slots with a CAS on the tail and each slot carries a sequence
+ * number telling whether it's free or full, which makes the queue lock-free
+ * for any number of producers; the same protocol on the head lets a DROP_OLDEST
+ * producer discard the oldest frame while the writer is consuming.
+ */
+final class SendQueue {
+
+	private final int mask;
+	private final AtomicLongArray sequences;
+	private final byte[][] slots;
+	private final int[] lengths;
+	private final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+	private final AtomicLong drops = new AtomicLong(), rejections = new AtomicLong();
+	private final OverflowPolicy policy;
+	private final Spacebrew sb;
+
+	/**
+	 * @param capacity {int} number of slots (rounded up to a power of 2)
+	 * @param policy {OverflowPolicy} what to do when full
+	 * @param sb {Spacebrew} the client, whose writer is woken up when frames are queued
+	 */
+	SendQueue(int capacity, OverflowPolicy policy, Spacebrew sb) {
+		int n = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		mask = n - 1;
+		sequences = new AtomicLongArray(n);
+		for(int i = 0; i < n; i++) { sequences.set(i, i); }
+		slots = new byte[n][256];
+		lengths = new int[n];
+		this.policy = policy;
+		this.sb = sb;
+	}
+
+	/**
+	 * Queue the frame encoded in a buffer.
+	 * @param e {FrameEncoder} the frame
+	 * @return {boolean} true if queued
+	 */
+	boolean offer(FrameEncoder e) {
+		for(;;) {
+			long t = tail.get();
+			int i = (int)t & mask;
+			long s = sequences.get(i);
+			if(s == t) {
+				if(tail.compareAndSet(t, t + 1)) {
+					int len = e.length();
+					if(slots[i].length < len) { slots[i] = new byte[Math.max(len, slots[i].length * 2)]; }
+					e.copyTo(slots[i]);
+					lengths[i] = len;
+					sequences.set(i, t + 1); // publish
+					sb.writer().markReady(sb);
+					return true;
+				}
+			} else if(s < t) { // full
+				switch(policy) {
+					case DROP_NEWEST:
+						drops.incrementAndGet();
+						return false;
+					case FAIL:
+						rejections.incrementAndGet();
+						return false;
+					case DROP_OLDEST:
+						if(poll(null)) { drops.incrementAndGet(); }
+						break;
+					default: // BLOCK
+						sb.writer().markReady(sb);
+						LockSupport.parkNanos(50000L);
+				}
+			}
+			// else another producer took the slot: retry
+		}
+	}
+
+	/**
+	 * Take the oldest frame.
+	 * @param e {FrameEncoder} buffer the frame is copied to, or null to discard it
+	 * @return {boolean} false if the queue is empty
+	 */
+	boolean poll(FrameEncoder e) {
+		for(;;) {
+			long h = head.get();
+			int i = (int)h & mask;
+			long s = sequences.get(i);
+			if(s == h + 1) {
+				if(head.compareAndSet(h, h + 1)) {
+					if(e != null) { e.put(slots[i], lengths[i]); }
+					sequences.set(i, h + mask + 1); // free the slot for the next lap
+					return true;
+				}
+			} else if(s < h + 1) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return {int} number of frames queued
+	 */
+	int depth() { return (int)Math.max(0, tail.get() - head.get()); }
+
+	/**
+	 * @return {int} capacity of the queue
+	 */
+	int capacity() { return mask + 1; }
+
+	/**
+	 * @return {long} frames dropped (DROP_OLDEST and DROP_NEWEST policies)
+	 */
+	long drops() { return drops.get(); }
+
+	/**
+	 * @return {long} frames refused (FAIL policy)
+	 */
+	long rejections() { return rejections.get(); }
+}
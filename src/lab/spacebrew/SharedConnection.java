@@ -0,0 +1,378 @@
+package lab.spacebrew;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/**
+ * One websocket to a Spacebrew server, shared by many clients.
+ * <br>Each client connected through it registers its own configuration on the
+ * same websocket (the server keeps the list of clients of each connection), and
+ * routed messages, which the server addresses to the subscriber's clientName,
+ * are handed to that client.
+ * <p>So sockets and threads don't grow with the number of clients: there's one
+ * websocket (and its thread), one writer thread for the coalescing routes and
+ * asynchronous sends of all clients, and the reconnection timer is shared anyway, e.g.:
+ * <br><code>SharedConnection c = new SharedConnection("localhost", 9000);</code>
+ * <br><code>sensor1.connect(c, "sensor 1", "first sensor");</code>
+ * <br><code>sensor2.connect(c, "sensor 2", "second sensor");</code>
+ * <br>The websocket is opened when the first client connects, and reopened
+ * (with the configuration of every client) when it's lost.
+ * <br>Clients must have distinct names. A client that already started its own
+ * writer thread (e.g., by setting async send) before connecting keeps it.
+ * <p>Publishers and subscribers on the same connection can exchange messages
+ * in-process, see <code>setLoopback</code>.
+ */
+public class SharedConnection {
+
+	private static final String ADMIN = "{\"admin\":[{\"admin\":true,\"no_msgs\":true}]}"; // routes, without copies of the messages
+
+	/**
+	 * How loud to be (mute debug messages)
+	 * @type {Boolean}
+	 */
+	public boolean verbose = false;
+
+	private final String hostname;
+	private final int port;
+	private volatile WsClient wsClient;
+	private volatile boolean connectionEstablished = false;
+	private boolean started = false;
+	private final Heartbeat heartbeat = new Heartbeat("SharedConnection");
+	private final AtomicLong errors = new AtomicLong();
+	private final ReconnectScheduler reconnect = new ReconnectScheduler(new ReconnectScheduler.Endpoint() {
+		@Override public boolean connected() { return connectionEstablished; }
+		@Override public void attemptConnection() { SharedConnection.this.attemptConnection(); }
+		@Override public void abandonConnection() { SharedConnection.this.abandonConnection(); }
+		@Override public boolean verbose() { return verbose; }
+	});
+
+	private volatile NameIndex<Spacebrew> clients = NameIndex.empty(); // by client name
+	private volatile Spacebrew[] all = new Spacebrew[0];
+	private final FrameDecoder decoder = new FrameDecoder(); // websocket thread only
+	private OutboundWriter writer;
+	private volatile Loopback loopback; // null: every message goes through the server
+
+	/**
+	 * Setup a connection (opened when the first client connects through it).
+	 * @param hostname {String} URL to Spacebrew host
+	 * @param port {int} port to Spacebrew host
+	 */
+	public SharedConnection(String hostname, int port) {
+		this.hostname = hostname;
+		this.port = port;
+	}
+
+	/**
+	 * Get whether the websocket is connected.
+	 * @return {boolean} is connected?
+	 */
+	public boolean connected() { return connectionEstablished; }
+
+	/**
+	 * @return {int} number of clients connected through this connection
+	 */
+	public int getClientCount() { return all.length; }
+
+	/**
+	 * Set the delays between reconnection attempts (see <code>Spacebrew.setReconnectBackoff</code>).
+	 * @param baseMillis {long} minimum delay, in ms (default: 250)
+	 * @param maxMillis {long} maximum delay, in ms (default: 30000)
+	 */
+	public void setReconnectBackoff(long baseMillis, long maxMillis) { reconnect.setBackoff(baseMillis, maxMillis); }
+
+	/**
+	 * Set how long a connection attempt may take before it's abandoned and retried.
+	 * @param millis {long} timeout, in ms (default: 10000)
+	 */
+	public void setConnectTimeout(long millis) { reconnect.setConnectTimeout(millis); }
+
+	/**
+	 * Set how a dead websocket is detected (see <code>Spacebrew.setHeartbeat</code>).
+	 * @param intervalMillis {long} time without receiving anything before a ping, in ms (default: 15000; 0: no heartbeat)
+	 * @param timeoutMillis {long} time to wait for an answer to the ping, in ms (default: 10000)
+	 * @throws IllegalArgumentException if negative, or the timeout is 0 while the interval isn't
+	 */
+	public void setHeartbeat(long intervalMillis, long timeoutMillis) {
+		heartbeat.set(intervalMillis, timeoutMillis);
+		WsClient c = wsClient;
+		if(c != null && connectionEstablished) { heartbeat.watch(c); }
+	}
+
+	/**
+	 * @return {long} number of times the websocket was closed because pings went unanswered
+	 */
+	public long getHeartbeatTimeouts() { return heartbeat.timeouts(); }
+
+	/**
+	 * @return {long} errors reported by the websocket (I/O errors close it)
+	 */
+	public long getConnectionErrors() { return errors.get(); }
+
+	/**
+	 * @return {long} longest time it took to find the websocket dead, in ms (see <code>Spacebrew.getMaxDeadConnectionMillis</code>)
+	 */
+	public long getMaxDeadConnectionMillis() { return heartbeat.maxDetectionMillis(); }
+
+	/**
+	 * Deliver messages in-process when a publish route is routed only to clients of this connection.
+	 * <br>The connection registers as an admin with the server, which then reports
+	 * the routes (as set in the admin): while every subscriber of a route is a client
+	 * of this connection, values sent along it go straight to their callbacks, with
+	 * no encoding and no socket; otherwise they go through the server as usual.
+	 * <br>Without a dispatch executor, callbacks of local messages run on the
+	 * publishing thread.
+	 * @param loopback {boolean} true to deliver in-process (default: false)
+	 */
+	public void setLoopback(boolean loopback) {
+		boolean open;
+		synchronized(this) {
+			if(loopback == (this.loopback != null)) { return; }
+			this.loopback = loopback ? new Loopback(this) : null;
+			open = connectionEstablished;
+		}
+		if(loopback && open) { send(ADMIN); }
+	}
+
+	/**
+	 * @return {boolean} true if messages between clients of this connection are delivered in-process
+	 */
+	public boolean isLoopback() { return loopback != null; }
+
+	Loopback loopback() { return loopback; }
+
+	/**
+	 * @return {Spacebrew} the client of a given name, or null
+	 */
+	Spacebrew client(String name) { return clients.get(name); }
+
+	/**
+	 * @return {long} number of times the websocket reconnected after losing the connection
+	 */
+	public long getReconnectCount() { return reconnect.reconnects(); }
+
+	/**
+	 * Close the websocket: the clients stay attached, disconnected, until
+	 * a client connects through this connection again.
+	 */
+	public void close() {
+		synchronized(this) { started = false; }
+		reconnect.stop();
+		WsClient c = wsClient;
+		if(c != null) {
+			heartbeat.unwatch(c);
+			c.close();
+		}
+	}
+
+	/**
+	 * Add a client (see <code>Spacebrew.connect(SharedConnection, String, String)</code>).
+	 */
+	void attach(Spacebrew sb) {
+		boolean open;
+		synchronized(this) {
+			if(clients.get(sb.name) != null) { System.err.println("[SharedConnection] client name already in use: " + sb.name); }
+			clients = clients.with(sb.name, sb);
+			Spacebrew[] a = new Spacebrew[all.length + 1];
+			System.arraycopy(all, 0, a, 0, all.length);
+			a[all.length] = sb;
+			all = a;
+			open = connectionEstablished;
+			if(loopback != null) { loopback.changed(); }
+			if(!started) {
+				started = true;
+				reconnect.start();
+				return;
+			}
+		}
+		if(open) { sb.sharedOpened(this); }
+	}
+
+	/**
+	 * Remove a client.
+	 * <br>The server forgets it only when the websocket closes: until then, its
+	 * routes show in the admin, and messages to it are ignored.
+	 */
+	synchronized void detach(Spacebrew sb) {
+		Spacebrew[] a = all;
+		for(int i = 0; i < a.length; i++) {
+			if(a[i] != sb) { continue; }
+			Spacebrew[] b = new Spacebrew[a.length - 1];
+			System.arraycopy(a, 0, b, 0, i);
+			System.arraycopy(a, i + 1, b, i, a.length - i - 1);
+			all = b;
+			if(clients.get(sb.name) == sb) { clients = clients.without(sb.name); }
+			if(loopback != null) { loopback.changed(); }
+			return;
+		}
+	}
+
+	/**
+	 * Get the writer thread shared by the clients, starting it on first use.
+	 */
+	synchronized OutboundWriter writer() {
+		if(writer == null) { writer = new OutboundWriter(); }
+		return writer;
+	}
+
+	/**
+	 * Send a text frame (e.g., the configuration of a client).
+	 */
+	void send(String text) {
+		WsClient c = wsClient;
+		if(connectionEstablished && c != null) { c.send(text); }
+	}
+
+	/**
+	 * @return {String} address of this end of the websocket
+	 */
+	String localAddress() {
+		WsClient c = wsClient;
+		return (c != null) ? c.localAddress() : "127.0.0.1";
+	}
+
+	/**
+	 * Write a frame to the websocket, on the calling thread.
+	 */
+	void transmit(FrameEncoder e) {
+		WsClient c = wsClient;
+		if(c != null) { c.sendFrame(e.frame()); }
+	}
+
+	/**
+	 * @return {boolean} true if the websocket is open (not closing)
+	 */
+	boolean writable() {
+		WsClient c = wsClient;
+		return c != null && c.writable();
+	}
+
+	/**
+	 * @return {boolean} true if the websocket takes batches of frames (see WsClient.batches)
+	 */
+	boolean batches() {
+		WsClient c = wsClient;
+		return c != null && c.batches();
+	}
+
+	/**
+	 * Write a batch of frames to the websocket, in one write.
+	 * @return {boolean} false if the frames weren't sent (they're still in the batch)
+	 */
+	boolean transmit(FrameBatch b) {
+		WsClient c = wsClient;
+		if(c == null || !c.sendFrames(b.frames())) { return false; }
+		b.clear();
+		return true;
+	}
+
+	private void attemptConnection() {
+		try {
+			if(verbose) { System.out.println("[connect] connecting to spacebrew "+ hostname); }
+			WsClient previous = wsClient;
+			wsClient = new WsClient(this, ("ws://" + hostname + ":" + Integer.toString(port)));
+			if(previous != null) {
+				connectionEstablished = false;
+				heartbeat.unwatch(previous);
+				previous.close();
+			}
+			wsClient.connect();
+		}
+		catch(Exception e) {
+			connectionEstablished = false;
+			System.err.println(e.getMessage());
+			reconnect.closed();
+		}
+	}
+
+	private void abandonConnection() {
+		WsClient c = wsClient;
+		wsClient = null;
+		connectionEstablished = false;
+		if(c != null) {
+			heartbeat.unwatch(c);
+			c.close();
+		}
+	}
+
+	/**
+	 * Websocket callback, from a given websocket (ignored if not the current one).
+	 */
+	void onOpen(WsClient c) {
+		if(c != wsClient) { return; }
+		connectionEstablished = true;
+		reconnect.opened();
+		heartbeat.watch(c);
+		if(verbose) { System.out.println("[onOpen] spacebrew connection open!"); }
+		Spacebrew[] a = all;
+		for(int i = 0; i < a.length; i++) { a[i].sharedOpened(this); } // each client sends its config
+		Loopback l = loopback;
+		if(l != null) {
+			l.clear();
+			c.send(ADMIN); // the server answers with the routes
+		}
+	}
+
+	/**
+	 * Websocket callback, for an error on a given websocket (counted if it's the current one).
+	 */
+	void onError(WsClient c, Exception e) {
+		if(c != wsClient) { return; }
+		errors.incrementAndGet();
+		if(verbose) { System.out.println("[onError] " + e); }
+	}
+
+	/**
+	 * Websocket callback, from a given websocket (ignored if not the current one).
+	 */
+	void onClose(WsClient c) {
+		heartbeat.unwatch(c);
+		if(c != wsClient) { return; }
+		connectionEstablished = false;
+		if(verbose) { System.out.println("[onClose] spacebrew connection closed."); }
+		Loopback l = loopback;
+		if(l != null) { l.clear(); }
+		Spacebrew[] a = all;
+		for(int i = 0; i < a.length; i++) { a[i].sharedClosed(this); }
+		reconnect.closed();
+	}
+
+	/**
+	 * Handle a message of the admin protocol (loopback only).
+	 */
+	private void admin(Loopback l, JSONObject o) {
+		if(o.has("route")) { l.route(o.getJSONObject("route")); }
+		else if(o.has("remove")) { l.remove(o.getJSONArray("remove")); }
+		else if(o.has("config")) { l.changed(); } // a client (maybe of this connection) registered its routes
+		else if(verbose) { System.out.println("[onMessage] ignoring unknown message " + o); }
+	}
+
+	/**
+	 * Websocket callback: decode the message once, and hand it to its client.
+	 */
+	void onMessage(String message) {
+		FrameDecoder f = decoder;
+		try {
+			if(!f.decodeLenient(message)) {
+				Loopback l = loopback;
+				if(l != null) { admin(l, new JSONObject(message)); }
+				else if(verbose) { System.out.println("[onMessage] ignoring unknown message " + message); }
+				return;
+			}
+		} catch(RuntimeException e) {
+			System.err.println("[onMessage] can't parse message: " + message);
+			return;
+		}
+
+		Spacebrew sb = clients.get(f.clientName());
+		if(sb != null) {
+			sb.dispatch(f);
+			return;
+		}
+		// not addressed to one of the clients by name: every client subscribed to the route gets it
+		Spacebrew[] a = all;
+		for(int i = 0; i < a.length; i++) {
+			if(a[i].subscribes(f.name())) { a[i].dispatch(f); }
+		}
+	}
+}
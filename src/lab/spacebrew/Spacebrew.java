@@ -2,12 +2,21 @@ package lab.spacebrew;
 
 import org.json.*; //https://github.com/agoransson/JSON-processing
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.lang.String;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * Spacebrew (pure) Java library.
@@ -20,6 +29,9 @@ import java.util.TimerTask;
  * <br>Automatic reconnection and default subscription methods
  * (i.e., <code>onBooleanMessage</code>, <code>onRangeMessage</code>,
  * and <code>onStringMessage</code>) are supported.
+ * <br>Subscriptions can also be bound to typed callbacks, with no reflection involved, e.g.:
+ * <br><code>cl.subscribeRange("a range subscriber", new RangeCallback() { ... });</code>
+ * <br>Many clients can share one websocket, see SharedConnection.
  * @author Luca Mari
  * @version 22 Feb 2014
  */
@@ -46,19 +58,48 @@ public class Spacebrew {
 	private SpacebrewClient client; //*// added: expected to be implemented by all clients
 	private String hostname = "sandbox.spacebrew.cc";
 	private Integer	port = 9000;
-	private Method onRangeMessageMethod, onStringMessageMethod, onBooleanMessageMethod, onOtherMessageMethod, onCustomMessageMethod;
+	private CompiledCallback onRangeMessageMethod, onStringMessageMethod, onBooleanMessageMethod, onOtherMessageMethod, onCustomMessageMethod;
 	@SuppressWarnings("unused")	private Method onOpenMethod, onCloseMethod;
-	private WsClient wsClient;
-	private boolean connectionEstablished = false;
-	//*//private boolean connectionRequested = false;
-	//*//private Integer reconnectAttempt = 0;
-	private Integer reconnectInterval = 5000;
+	private volatile WsClient wsClient;
+	private volatile boolean connectionEstablished = false;
+	private final ReconnectScheduler reconnect = new ReconnectScheduler(new ReconnectScheduler.Endpoint() { //*// added, to handle automatic reconnection
+		@Override public boolean connected() { return connectionEstablished; }
+		@Override public void attemptConnection() { Spacebrew.this.attemptConnection(); }
+		@Override public void abandonConnection() { Spacebrew.this.abandonConnection(); }
+		@Override public boolean verbose() { return verbose; }
+	});
+	private final Heartbeat heartbeat = new Heartbeat("heartbeat"); // of the client's own websocket
+	private volatile SharedConnection shared; // null: the client has its own websocket
+	private volatile boolean compactRequested = false, compactActive = false; // compact wire mode asked for, acknowledged
 
 	private JSONObject tConfig = new JSONObject();
+	private String config; // tConfig rendered, null when the routes changed since
+	private String configName, configDescription; // name and description config was rendered with
+	private int routeBatch = 0; // nesting depth of beginRoutes
 	//*//private JSONObject nameConfig = new JSONObject(); // just unused
-	private ArrayList<SpacebrewMessage> publishes, subscribes;
-	private HashMap<String, HashMap<String, Method>> callbacks;
-	private Timer timer = new Timer(); //*// added, to handle automatic reconnection 
+	private volatile RouteTable routes = RouteTable.EMPTY; // swapped (under the lock) when routes change
+	private volatile HashMap<String, SpacebrewCodec<?>> codecs = new HashMap<String, SpacebrewCodec<?>>(); // by (lower case) type, copied on write
+	private FrameDecoder decoder = new FrameDecoder();
+	private volatile OutboundWriter writer; // started by the first coalescing route or by setAsyncSend
+	final AtomicBoolean writerQueued = new AtomicBoolean(); // send queue or journal waiting for the writer
+	private volatile SendQueue sendQueue; // null: synchronous send
+	private volatile OutboundJournal journal; // null: messages sent while disconnected are lost
+	private volatile Executor dispatchExecutor; // null: callbacks run on the websocket thread
+	private volatile int dispatchQueueLimit = 256;
+	private volatile DispatchQueue defaultDispatchQueue; // routes without subscription
+	private final AtomicLong dispatchDrops = new AtomicLong();
+	private volatile boolean tracing = false; // messages of publish routes carry tracing metadata
+	private volatile LatencyProbe probe; // null: no probe
+
+	// metrics (see SpacebrewMetrics); route counters are kept in PublishRoute and Subscription
+	final AtomicLong unroutedSent = new AtomicLong(), unroutedSentBytes = new AtomicLong(); // e.g., raw sends
+	final AtomicLong unroutedReceived = new AtomicLong(), unroutedReceivedBytes = new AtomicLong(); // routes not subscribed
+	final AtomicLong invokeFailures = new AtomicLong();
+	final AtomicLong connectionErrors = new AtomicLong();
+	final LatencyHistogram defaultLatency = new LatencyHistogram(), defaultCallbackTime = new LatencyHistogram(); // routes not subscribed
+	private long connectedSince = -1, connectedTotal = 0; // ms
+	private SpacebrewMetrics metrics;
+	private ObjectName mbeanName;
 
 	/**
 	 * Setup Spacebrew and try to set up default helper functions.
@@ -66,26 +107,10 @@ public class Spacebrew {
 	 */
 	public Spacebrew(SpacebrewClient client) {
 		this.client = client;
-		publishes = new ArrayList<SpacebrewMessage>();
-		subscribes = new ArrayList<SpacebrewMessage>();
-		callbacks = new HashMap<String, HashMap<String, Method>>();
-		//*//parent.registerMethod("pre", this); // substituted with the ReconnectTask below
-		ReconnectTask rt = new ReconnectTask(this);
-		timer.schedule(rt, 1000, reconnectInterval);
+		//*//parent.registerMethod("pre", this); // substituted with the ReconnectScheduler
 		setupMethods();   
 	}
 
-	//*// added: simple threaded task that tries reconnecting the client if required
-	class ReconnectTask extends TimerTask {
-		private Spacebrew sb;
-		
-		ReconnectTask(Spacebrew sb) { this.sb = sb; }
-		
-        @Override public void run() {
-        	if(!connected()) { sb.connect(sb.hostname, sb.port, sb.name, sb.description); }
-        }
-    }
-
 	/**
 	 * Ensure that the client attempts to reconnect to Spacebrew if the connection is lost.
 	 */
@@ -113,40 +138,22 @@ public class Spacebrew {
 			onCloseMethod = getClass().getMethod("onSbClose", new Class[]{});
 		} catch(Exception e) {
 			// System.out.println("no onSbClose method implemented");
-		}    
-		try {
-			onRangeMessageMethod = getClass().getMethod("onRangeMessage", new Class[]{String.class, int.class});
-		} catch(Exception e) {
-			//System.out.println("no onRangeMessage method implemented");
-		}
-		try {
-			onStringMessageMethod = getClass().getMethod("onStringMessage", new Class[]{String.class, String.class});
-		} catch(Exception e) {
-			//System.out.println("no onStringMessage method implemented");
-		}
-		try {
-			onBooleanMessageMethod = getClass().getMethod("onBooleanMessage", new Class[]{String.class, boolean.class});
-		} catch(Exception e) {
-			//System.out.println("no onBooleanMessage method implemented");
-		}
-		try {
-			onOtherMessageMethod = getClass().getMethod("onOtherMessage", new Class[]{String.class, String.class});
-		} catch(Exception e) {
-			//System.out.println("no onCustomMessage method implemented");
-		}
-		try {
-			onCustomMessageMethod = getClass().getMethod("onCustomMessage", new Class[]{String.class, String.class, String.class});
-		} catch(Exception e) {
-			//System.out.println("no onCustomMessage method implemented");
 		}
+		// default handlers are compiled once, here, and looked up on the client (they were looked up on this class)
+		onRangeMessageMethod = CompiledCallback.lookup(client, "onRangeMessage", String.class, int.class);
+		onStringMessageMethod = CompiledCallback.lookup(client, "onStringMessage", String.class, String.class);
+		onBooleanMessageMethod = CompiledCallback.lookup(client, "onBooleanMessage", String.class, boolean.class);
+		onOtherMessageMethod = CompiledCallback.lookup(client, "onOtherMessage", String.class, String.class, String.class);
+		onCustomMessageMethod = CompiledCallback.lookup(client, "onCustomMessage", String.class, String.class, String.class);
 	}
 
 	/**
 	 * Setup a Boolean publisher.
 	 * @param name {String}  name of route
 	 * @param _default {Boolean} default value
+	 * @return {PublishRoute} handle to send along the route
 	 */
-	public void addPublish(String name, boolean _default) {
+	public PublishRoute addPublish(String name, boolean _default) {
 		SpacebrewMessage m = new SpacebrewMessage();
 		m.name = name; 
 		m.type = "boolean"; 
@@ -155,36 +162,67 @@ public class Spacebrew {
 		} else {
 			m._default = "false";
 		}
-		publishes.add(m);
-		if(connectionEstablished) { updatePubSub(); }
+		return publish(m);
+	}
+
+	/**
+	 * Setup a Boolean publisher whose values are filtered, e.g. sending only changes.
+	 * @param name {String}  name of route
+	 * @param _default {Boolean} default value
+	 * @param filter {PublishFilter} which values are sent
+	 * @return {PublishRoute} handle to send along the route
+	 */
+	public PublishRoute addPublish(String name, boolean _default, PublishFilter filter) {
+		SpacebrewMessage m = new SpacebrewMessage();
+		m.name = name;
+		m.type = "boolean";
+		m._default = Boolean.toString(_default);
+		return publish(m, filter);
 	}
 
 	/**
 	 * Setup a range publisher.
 	 * @param name {String} name of route
 	 * @param _default {Integer} default starting value
+	 * @return {PublishRoute} handle to send along the route
 	 */
-	public void addPublish(String name, Integer _default) {
+	public PublishRoute addPublish(String name, Integer _default) {
 		SpacebrewMessage m = new SpacebrewMessage();
 		m.name = name; 
 		m.type = "range"; 
 		m._default = _default.toString();
-		publishes.add(m);
-		if(connectionEstablished) { updatePubSub(); }
+		return publish(m);
+	}
+
+	/**
+	 * Setup a range publisher whose values are filtered, e.g. by a deadband:
+	 * <br><code>cl.addPublish("level", 0, PublishFilter.changeOnly().withDeadband(3).withHeartbeat(1000));</code>
+	 * <br>Values sent with <code>send(String, int)</code> go through the filter too.
+	 * @param name {String} name of route
+	 * @param _default {Integer} default starting value
+	 * @param filter {PublishFilter} which values are sent
+	 * @return {PublishRoute} handle to send along the route
+	 */
+	public PublishRoute addPublish(String name, Integer _default, PublishFilter filter) {
+		SpacebrewMessage m = new SpacebrewMessage();
+		m.name = name;
+		m.type = "range";
+		m._default = _default.toString();
+		return publish(m, filter);
 	}
 
 	/**
 	 * Setup a string publisher.
 	 * @param name {String} name of route
 	 * @param _default {String} default starting value
+	 * @return {PublishRoute} handle to send along the route
 	 */
-	public void addPublish(String name, String _default) {
+	public PublishRoute addPublish(String name, String _default) {
 		SpacebrewMessage m = new SpacebrewMessage();
 		m.name = name; 
 		m.type = "string"; 
 		m._default = _default;
-		publishes.add(m);
-		if(connectionEstablished) { updatePubSub(); }
+		return publish(m);
 	}
 
 	/**
@@ -192,14 +230,14 @@ public class Spacebrew {
 	 * @param name {String} name of route
 	 * @param type {String} type of route ("range", "boolean", or "string")
 	 * @param _default {String} default starting value
+	 * @return {PublishRoute} handle to send along the route
 	 */
-	public void addPublish(String name, String type, String _default) {
+	public PublishRoute addPublish(String name, String type, String _default) {
 		SpacebrewMessage m = new SpacebrewMessage();
 		m.name = name;
 		m.type = type;
 		m._default = _default;
-		publishes.add(m);
-		if(connectionEstablished) { updatePubSub(); }
+		return publish(m);
 	}
 
 	/**
@@ -207,14 +245,14 @@ public class Spacebrew {
 	 * @param name {String} name of route
 	 * @param type {String} type of route ("range", "boolean", or "string")
 	 * @param _default {Boolean} default starting value
+	 * @return {PublishRoute} handle to send along the route
 	 */
-	public void addPublish(String name, String type, boolean _default) {
+	public PublishRoute addPublish(String name, String type, boolean _default) {
 		SpacebrewMessage m = new SpacebrewMessage();
 		m.name = name; 
 		m.type = type; 
 		m._default = Boolean.toString(_default);
-		publishes.add(m);
-		if(connectionEstablished) { updatePubSub(); }
+		return publish(m);
 	}
 
 	/**
@@ -222,14 +260,49 @@ public class Spacebrew {
 	 * @param name {String} name of route
 	 * @param type {String}  type of route ("range", "boolean", or "string")
 	 * @param _default {Boolean} default starting value
+	 * @return {PublishRoute} handle to send along the route
 	 */
-	public void addPublish(String name, String type, Integer _default) {
+	public PublishRoute addPublish(String name, String type, Integer _default) {
 		SpacebrewMessage m = new SpacebrewMessage();
 		m.name = name; 
 		m.type = type; 
 		m._default = _default.toString();
-		publishes.add(m);
-		if(connectionEstablished) { updatePubSub(); }
+		return publish(m);
+	}
+
+	/**
+	 * Start a batch of route registrations: until <code>commitRoutes</code>, adding
+	 * publishers and subscribers doesn't send the configuration to the server, e.g.:
+	 * <br><code>cl.beginRoutes();</code>
+	 * <br><code>for(int i = 0; i < 500; i++) { cl.addPublish("sensor " + i, 0); }</code>
+	 * <br><code>cl.commitRoutes(); // the configuration is sent once</code>
+	 * <br>Batches can be nested: the outermost commit sends the configuration.
+	 */
+	public synchronized void beginRoutes() { routeBatch++; }
+
+	/**
+	 * End a batch of route registrations (see <code>beginRoutes</code>), sending the
+	 * configuration if routes changed during the batch.
+	 */
+	public void commitRoutes() {
+		synchronized(this) {
+			if(routeBatch == 0) { return; }
+			if(--routeBatch > 0) { return; }
+		}
+		updatePubSub();
+	}
+
+	/**
+	 * Register a publish route and index its handle by name.
+	 */
+	private PublishRoute publish(SpacebrewMessage m) { return publish(m, null); }
+
+	private synchronized PublishRoute publish(SpacebrewMessage m, PublishFilter filter) {
+		PublishRoute route = new PublishRoute(this, routes.publishes.length, m.name, m.type, filter);
+		routes = routes.withPublish(m, route);
+		config = null;
+		updatePubSub();
+		return route;
 	}
 
 	/**
@@ -239,46 +312,18 @@ public class Spacebrew {
 	 * @param type {String} type of route ("range", "boolean", or "string")
 	 */
 	public void addSubscribe(String name, String type) {
-		String methodName;
-		SpacebrewMessage m = new SpacebrewMessage();
-		m.name = name;
-		m.type = type.toLowerCase();
-		subscribes.add(m);
-
+		type = type.toLowerCase();
 		//*// added handling
-		Method method = null;
 		if(type.equals("boolean")) {
-			methodName = "onBooleanMessage";
-			try {
-				method = client.getClass().getMethod(methodName, new Class[]{boolean.class});
-			} catch(Exception e) {
-				System.err.println("method " + methodName + "(boolean) doesn't exist in your client.");
-				System.err.println(e);
-			}
+			addSubscribe(name, type, "onBooleanMessage");
 		} else if(type.equals("range")) {
-			methodName = "onRangeMessage";
-			try {
-				method = client.getClass().getMethod(methodName, new Class[]{int.class});
-			} catch(Exception e) {
-				System.err.println("method " + methodName + "(int) doesn't exist in your client.");
-				System.err.println(e);
-			}
+			addSubscribe(name, type, "onRangeMessage");
 		} else if(type.equals("string")) {
-			methodName = "onStringMessage";
-			try {
-				method = client.getClass().getMethod(methodName, new Class[]{int.class});
-			} catch(Exception e) {
-				System.err.println("method " + methodName + "(String) doesn't exist in your client.");
-				System.err.println(e);
-			}
-		}
-
-		if(method != null) {
-			if(!callbacks.containsKey(name)) { callbacks.put(name, new HashMap<String, Method>()); }
-			callbacks.get(name).put(type, method);
+			addSubscribe(name, type, "onStringMessage");
+		} else {
+			subscription(name, type);
+			updatePubSub();
 		}
-
-		if(connectionEstablished) { updatePubSub(); }
 	}
 
 	/**
@@ -289,47 +334,183 @@ public class Spacebrew {
 	 * @param methodName {String} name of method
 	 */
 	public void addSubscribe(String name, String type, String methodName) {
-		SpacebrewMessage m = new SpacebrewMessage();
-		m.name = name;
-		m.type = type.toLowerCase();
-		subscribes.add(m);
+		type = type.toLowerCase();
 
 		//*// all client.getClass()... methods below were parent.client.getClass()
-		Method method = null;
-		if(type.equals("boolean")) {
-			try {
-				method = client.getClass().getMethod(methodName, new Class[]{boolean.class});
-			} catch(Exception e) {
-				System.err.println("method " + methodName + "(boolean) doesn't exist in your client.");
-			}
-		} else if(type.equals("range")) {
-			try {
-				method = client.getClass().getMethod(methodName, new Class[]{int.class});
-			} catch(Exception e) {
-				System.err.println("Error: method " + methodName + "(int) doesn't exist in your client.");
-			}
-		} else if(type.equals("string")) {
-			try {
-				method = client.getClass().getMethod(methodName, new Class[]{String.class});
-			} catch(Exception e) {
-				System.err.println("Error: method " + methodName + "(String) doesn't exist in your client.");
-			}
-		} else {
-			try {
-				method = client.getClass().getMethod(methodName, new Class[]{String.class});
-			} catch(Exception e) {
-				System.err.println("Error: method " + methodName + "(String) doesn't exist in your client.");
+		// methods are compiled once here and registered as typed callbacks (see subscribeXxx)
+		synchronized(this) {
+			Subscription s = subscription(name, type);
+			CompiledCallback method;
+			if(type.equals("boolean")) {
+				method = CompiledCallback.lookup(client, methodName, boolean.class);
+				if(method == null) { System.err.println("method " + methodName + "(boolean) doesn't exist in your client."); }
+				else { replace(s.withBoolean((BooleanCallback)method.countFailures(invokeFailures))); }
+			} else if(type.equals("range")) {
+				method = CompiledCallback.lookup(client, methodName, int.class);
+				if(method == null) { System.err.println("Error: method " + methodName + "(int) doesn't exist in your client."); }
+				else { replace(s.withRange((RangeCallback)method.countFailures(invokeFailures))); }
+			} else if(type.equals("string")) {
+				method = CompiledCallback.lookup(client, methodName, String.class);
+				if(method == null) { System.err.println("Error: method " + methodName + "(String) doesn't exist in your client."); }
+				else { replace(s.withString((StringCallback)method.countFailures(invokeFailures))); }
+			} else {
+				method = null;
+				SpacebrewCodec<?> codec = codecs.get(type);
+				try {
+					if(codec != null) { method = CompiledCallback.lookupObject(client, methodName, CompiledCallback.valueType(codec)); }
+					if(method != null) { replace(s.withObject(type, (ObjectCallback<?>)method.countFailures(invokeFailures))); } // values decoded by the codec of the type
+					else {
+						method = CompiledCallback.lookup(client, methodName, String.class);
+						if(method == null) { System.err.println("Error: method " + methodName + "(String) doesn't exist in your client."); }
+						else { replace(s.withCustom(type, (CustomCallback)method.countFailures(invokeFailures))); }
+					}
+				} catch(IllegalArgumentException e) { // overloads taking the values of the codec
+					System.err.println("Error: " + e.getMessage());
+				}
 			}
 		}
+		updatePubSub();
+	}
 
-		if(method != null) {
-			if(!callbacks.containsKey(name)) { callbacks.put(name, new HashMap<String, Method>()); }
-			callbacks.get(name).put(type, method);
-		}
+	/**
+	 * Add a range subscriber with a typed callback.
+	 * <br>Note: routes with a specific callback don't call the default methods (e.g. onRangeMessage, etc)
+	 * @param name {String} name of route
+	 * @param callback {RangeCallback} called with each value received
+	 */
+	public void subscribeRange(String name, RangeCallback callback) {
+		synchronized(this) { replace(subscription(name, "range").withRange(callback)); }
+		updatePubSub();
+	}
+
+	/**
+	 * Add a boolean subscriber with a typed callback.
+	 * <br>Note: routes with a specific callback don't call the default methods (e.g. onBooleanMessage, etc)
+	 * @param name {String} name of route
+	 * @param callback {BooleanCallback} called with each value received
+	 */
+	public void subscribeBoolean(String name, BooleanCallback callback) {
+		synchronized(this) { replace(subscription(name, "boolean").withBoolean(callback)); }
+		updatePubSub();
+	}
+
+	/**
+	 * Add a string subscriber with a typed callback.
+	 * <br>Note: routes with a specific callback don't call the default methods (e.g. onStringMessage, etc)
+	 * @param name {String} name of route
+	 * @param callback {StringCallback} called with each value received
+	 */
+	public void subscribeString(String name, StringCallback callback) {
+		synchronized(this) { replace(subscription(name, "string").withString(callback)); }
+		updatePubSub();
+	}
+
+	/**
+	 * Add a subscriber of custom type with a typed callback.
+	 * <br>Note: routes with a specific callback don't call the default methods (e.g. onCustomMessage, etc)
+	 * @param name {String} name of route
+	 * @param type {String} type of route (e.g., "x,y")
+	 * @param callback {CustomCallback} called with each value received
+	 */
+	public void subscribeCustom(String name, String type, CustomCallback callback) {
+		String t = type.toLowerCase();
+		synchronized(this) { replace(subscription(name, t).withCustom(t, callback)); }
+		updatePubSub();
+	}
+
+	/**
+	 * Register the codec of a custom type, for the routes of that type: values
+	 * received are decoded once per message for the callbacks added with
+	 * <code>subscribeObject</code> (or <code>addSubscribe</code> with a method
+	 * taking the decoded type), and values are encoded by <code>sendObject</code>.
+	 * @param type {String} type of route (e.g., "point")
+	 * @param codec {SpacebrewCodec} decoder and encoder of the values
+	 */
+	public synchronized void registerCodec(String type, SpacebrewCodec<?> codec) {
+		String t = type.toLowerCase();
+		if(t.equals("range") || t.equals("boolean") || t.equals("string")) { throw new IllegalArgumentException("codecs are for custom types, not " + type); }
+		HashMap<String, SpacebrewCodec<?>> c = new HashMap<String, SpacebrewCodec<?>>(codecs);
+		c.put(t, codec);
+		codecs = c;
+	}
+
+	/**
+	 * @return {SpacebrewCodec} the codec of a (lower case) type, or null if none was registered
+	 */
+	SpacebrewCodec<?> codec(String type) { return codecs.get(type); }
+
+	/**
+	 * Add a subscriber of custom type with a callback taking the values decoded
+	 * by the codec of the type (see <code>registerCodec</code>).
+	 * <br>Note: routes with a specific callback don't call the default methods (e.g. onCustomMessage, etc)
+	 * @param name {String} name of route
+	 * @param type {String} type of route, with a codec registered
+	 * @param callback {ObjectCallback} called with each value received, decoded
+	 * @throws IllegalArgumentException if no codec is registered for the type
+	 */
+	public <T> void subscribeObject(String name, String type, ObjectCallback<T> callback) {
+		String t = type.toLowerCase();
+		if(!codecs.containsKey(t)) { throw new IllegalArgumentException("no codec registered for type " + type); }
+		synchronized(this) { replace(subscription(name, t).withObject(t, callback)); }
+		updatePubSub();
+	}
+
+	/**
+	 * Add a subscriber of numeric vectors (e.g., "x,y" coordinates), with a typed callback:
+	 * values separated by commas are parsed into a float array reused from message to message.
+	 * <br>Note: routes with a specific callback don't call the default methods (e.g. onCustomMessage, etc)
+	 * @param name {String} name of route
+	 * @param type {String} type of route, a custom one (e.g., "x,y")
+	 * @param callback {FloatsCallback} called with the values of each message received
+	 */
+	public void subscribeFloats(String name, String type, FloatsCallback callback) {
+		subscribeCustom(name, vectorType(type), new Vectors.FloatsReader(callback));
+	}
+
+	/**
+	 * Add a subscriber of numeric vectors, parsed into a reused double array.
+	 * @param name {String} name of route
+	 * @param type {String} type of route, a custom one (e.g., "x,y")
+	 * @param callback {DoublesCallback} called with the values of each message received
+	 */
+	public void subscribeDoubles(String name, String type, DoublesCallback callback) {
+		subscribeCustom(name, vectorType(type), new Vectors.DoublesReader(callback));
+	}
+
+	/**
+	 * Add a subscriber of numeric vectors, parsed into a reused int array.
+	 * @param name {String} name of route
+	 * @param type {String} type of route, a custom one (e.g., "x,y")
+	 * @param callback {IntsCallback} called with the values of each message received
+	 */
+	public void subscribeInts(String name, String type, IntsCallback callback) {
+		subscribeCustom(name, vectorType(type), new Vectors.IntsReader(callback));
+	}
+
+	private static String vectorType(String type) {
+		String t = type.toLowerCase();
+		if(t.equals("range") || t.equals("boolean") || t.equals("string")) { throw new IllegalArgumentException("a vector route has a custom type (e.g., \"x,y\"), not " + type); }
+		return type;
+	}
 
-		if(connectionEstablished) { updatePubSub(); }
+	/**
+	 * Register a subscribed route (once per name and type) and get its dispatch table entry
+	 * (callers holding the lock swap a new entry in with <code>replace</code>).
+	 */
+	private synchronized Subscription subscription(String name, String type) {
+		RouteTable t = routes.withSubscribe(name, type);
+		if(t != routes) {
+			if(t.subscribes != routes.subscribes) { config = null; }
+			routes = t;
+		}
+		return t.subscriptions.get(name);
 	}
 
+	/**
+	 * Swap a dispatch entry in (holding the lock).
+	 */
+	private void replace(Subscription s) { routes = routes.with(s); }
+
 	/**
 	 * Connect to Spacebrew admin.
 	 * @param hostname {String} URL to Spacebrew host
@@ -366,20 +547,116 @@ public class Spacebrew {
 	 * @param description {String} What does client do?
 	 */
 	public void connect(String hostname, Integer port, String name, String description) {
+		leaveShared();
 		this.name = name;
 		this.description = description;
 		this.hostname = hostname;
 		this.port = port;
-		//*//this.connectionRequested = true;
+		for(PublishRoute route : routes.handles) { route.template(); }
+		updatePubSub();
+		reconnect.start(); //*// was: this.connectionRequested = true;
+	}
+
+	/**
+	 * Connect to Spacebrew admin through a websocket shared with other clients.
+	 * <br>The client gets no websocket (nor thread) of its own: it registers its
+	 * configuration on the shared websocket, and gets the messages addressed to it.
+	 * @param connection {SharedConnection} the shared websocket
+	 * @param name {String} Name of client as it will appear in the Spacebrew admin (unique on the connection)
+	 * @param description {String} What does client do?
+	 */
+	public void connect(SharedConnection connection, String name, String description) {
+		reconnect.stop();
+		WsClient c = wsClient;
+		wsClient = null;
+		if(c != null) { c.close(); }
+		connectionEstablished = false;
+		connectedTime(false);
+		leaveShared();
+		this.name = name;
+		this.description = description;
+		for(PublishRoute route : routes.handles) { route.template(); }
+		updatePubSub();
+		shared = connection;
+		connection.attach(this);
+	}
+
+	/**
+	 * Detach from the shared websocket, if any.
+	 */
+	private void leaveShared() {
+		SharedConnection sc = shared;
+		if(sc == null) { return; }
+		shared = null;
+		connectionEstablished = false;
+		connectedTime(false);
+		sc.detach(this);
+	}
+
+	/**
+	 * The shared websocket is open: send the configuration (shared connection only).
+	 */
+	void sharedOpened(SharedConnection sc) {
+		if(sc != shared) { return; }
+		if(verbose) { System.out.println("[onOpen] spacebrew connection open!"); }
+		String sent = config();
+		sc.send(sent); // the config goes before any message (e.g., of the journal)
+		OutboundJournal j = journal;
+		if(j != null) { j.connected(); } // what it holds now is replayed at the replay rate
+		connectionEstablished = true;
+		connectedTime(true);
+		if(config() != sent) { updatePubSub(); } // routes added meanwhile
+		LatencyProbe p = probe;
+		if(p != null) { p.opened(); }
+		wakeWriters();
+	}
+
+	/**
+	 * The shared websocket is closed (shared connection only).
+	 */
+	void sharedClosed(SharedConnection sc) {
+		if(sc != shared) { return; }
+		connectionEstablished = false;
+		connectedTime(false);
+		if(verbose) { System.out.println("[onClose] spacebrew connection closed."); }
+	}
+
+	/**
+	 * Open a new websocket (reconnection scheduler only: see ReconnectScheduler).
+	 * <br>A previous websocket, if any, is closed and its callbacks are ignored from then on.
+	 */
+	void attemptConnection() {
 		try {
 			if(verbose) { System.out.println("[connect] connecting to spacebrew "+ hostname); }
-			wsClient = new WsClient(this, ("ws://" + hostname + ":" + Integer.toString(port)));    
+			WsClient previous = wsClient;
+			wsClient = new WsClient(this, ("ws://" + hostname + ":" + Integer.toString(port)));
+			if(previous != null) {
+				connectionEstablished = false;
+				connectedTime(false);
+				heartbeat.unwatch(previous);
+				previous.close();
+			}
 			wsClient.connect();
-			updatePubSub();
 		}
 		catch(Exception e) {
 			connectionEstablished = false;
+			connectedTime(false);
 			System.err.println(e.getMessage());
+			reconnect.closed();
+		}
+	}
+
+	/**
+	 * Give up on the websocket attempting to connect (reconnection scheduler only).
+	 */
+	void abandonConnection() {
+		WsClient c = wsClient;
+		wsClient = null;
+		connectionEstablished = false;
+		connectedTime(false);
+		if(c != null) {
+			heartbeat.unwatch(c);
+			c.close();
 		}
 	}
 
@@ -387,17 +664,210 @@ public class Spacebrew {
 	 * Close the connection to Spacebrew.
 	 */
 	public void close() {
-		if(connectionEstablished) { wsClient.close(); }
-		//*//connectionRequested = false;
+		leaveShared();
+		reconnect.stop(); //*// was: connectionRequested = false;
+		WsClient c = wsClient;
+		if(c != null) {
+			heartbeat.unwatch(c);
+			c.close();
+		}
+	}
+
+	/**
+	 * Set the delays between reconnection attempts.
+	 * <br>When the connection is lost, the client tries to reconnect at once; then,
+	 * as long as attempts fail, it waits a random delay between the base delay and
+	 * three times the previous delay, up to the maximum (so that clients don't all
+	 * come back at the same time after a server restart).
+	 * @param baseMillis {long} minimum delay, in ms (default: 250)
+	 * @param maxMillis {long} maximum delay, in ms (default: 30000)
+	 */
+	public void setReconnectBackoff(long baseMillis, long maxMillis) { reconnect.setBackoff(baseMillis, maxMillis); }
+
+	/**
+	 * Set how long a connection attempt may take before it's abandoned and retried.
+	 * @param millis {long} timeout, in ms (default: 10000)
+	 */
+	public void setConnectTimeout(long millis) { reconnect.setConnectTimeout(millis); }
+
+	/**
+	 * Set how a dead connection (e.g., a NAT that forgot it, a pulled cable: TCP
+	 * may take minutes to tell, while sends are silently lost) is detected.
+	 * <br>When nothing was received for the interval, the client sends a ping
+	 * (a websocket control frame, which servers answer with a pong); if nothing
+	 * comes within the timeout, it closes the connection and reconnects. So a dead
+	 * connection is detected between timeout and interval + timeout after it died
+	 * (and up to an interval more when it was busy), while a busy connection sends
+	 * no pings, and an idle one a ping (of 6 bytes) per interval.
+	 * <br>Applies to the client's own websocket (see <code>SharedConnection.setHeartbeat</code>
+	 * otherwise), at once.
+	 * @param intervalMillis {long} time without receiving anything before a ping, in ms (default: 15000; 0: no heartbeat)
+	 * @param timeoutMillis {long} time to wait for an answer to the ping, in ms (default: 10000)
+	 * @throws IllegalArgumentException if negative, or the timeout is 0 while the interval isn't
+	 */
+	public void setHeartbeat(long intervalMillis, long timeoutMillis) {
+		heartbeat.set(intervalMillis, timeoutMillis);
+		WsClient c = wsClient;
+		if(c != null && connectionEstablished) { heartbeat.watch(c); }
+	}
+
+	/**
+	 * @return {long} pings sent (see <code>setHeartbeat</code>)
+	 */
+	public long getHeartbeatPings() { return heartbeat.pings(); }
+
+	/**
+	 * @return {long} number of times the connection was closed because pings went unanswered
+	 */
+	public long getHeartbeatTimeouts() { return heartbeat.timeouts(); }
+
+	/**
+	 * @return {long} time from when the connection last received something to when it was found dead, the last time, in ms
+	 */
+	public long getLastDeadConnectionMillis() { return heartbeat.lastDetectionMillis(); }
+
+	/**
+	 * @return {long} longest time it took to find the connection dead, in ms
+	 */
+	public long getMaxDeadConnectionMillis() { return heartbeat.maxDetectionMillis(); }
+
+	/**
+	 * @return {long} number of connection attempts made
+	 */
+	public long getConnectAttempts() { return reconnect.attempts(); }
+
+	/**
+	 * @return {long} number of times the client reconnected after losing the connection
+	 */
+	public long getReconnectCount() { return reconnect.reconnects(); }
+
+	/**
+	 * @return {long} time it took to reconnect, the last time, in ms
+	 */
+	public long getLastReconnectMillis() { return reconnect.lastReconnectMillis(); }
+
+	/**
+	 * Account for the time spent connected, when the connection opens or closes.
+	 */
+	private synchronized void connectedTime(boolean connected) {
+		long now = System.currentTimeMillis();
+		if(connectedSince >= 0) { connectedTotal += now - connectedSince; }
+		connectedSince = connected ? now : -1;
+	}
+
+	/**
+	 * @return {long} time spent connected, in ms
+	 */
+	synchronized long connectedMillis() {
+		return connectedTotal + (connectedSince >= 0 ? System.currentTimeMillis() - connectedSince : 0);
+	}
+
+	/**
+	 * Get the metrics of the client: messages and bytes of each route, latency of
+	 * delivery, time spent in callbacks, queues, reconnections...
+	 * <br>Counters are updated as messages go, without locks; the metrics only
+	 * read them (and add them up) when asked.
+	 * @return {SpacebrewMXBean} the metrics
+	 */
+	public synchronized SpacebrewMXBean getMetrics() {
+		if(metrics == null) { metrics = new SpacebrewMetrics(this); }
+		return metrics;
+	}
+
+	/**
+	 * Register the metrics of the client (see <code>getMetrics</code>) in the platform
+	 * MBean server, e.g. to watch them in JConsole or VisualVM, as
+	 * <code>lab.spacebrew:type=Spacebrew,name=&lt;client name&gt;</code>.
+	 * @return {ObjectName} name the metrics are registered under
+	 * @throws JMException if the metrics can't be registered (e.g., another client has the same name)
+	 */
+	public synchronized ObjectName registerMBean() throws JMException {
+		if(mbeanName != null) { return mbeanName; }
+		ObjectName on = new ObjectName("lab.spacebrew:type=Spacebrew,name=" + ObjectName.quote(name == null ? "" : name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(getMetrics(), on);
+		mbeanName = on;
+		return on;
+	}
+
+	/**
+	 * Unregister the metrics of the client from the platform MBean server, if registered.
+	 */
+	public synchronized void unregisterMBean() {
+		if(mbeanName == null) { return; }
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		} catch(JMException e) {
+			System.err.println("[unregisterMBean] " + e.getMessage());
+		}
+		mbeanName = null;
+	}
+
+	/**
+	 * @return {Iterable} all the publish route handles (a copy)
+	 */
+	Iterable<PublishRoute> publishRoutes() { return Arrays.asList(routes.handles); }
+
+	/**
+	 * @return {Iterable} the subscriptions, one per route name (a copy)
+	 */
+	Iterable<Subscription> subscriptions() {
+		ArrayList<Subscription> all = new ArrayList<Subscription>();
+		routes.subscriptions.addTo(all);
+		return all;
 	}
 
 	/**
-	 * Update publishers and subscribers.
+	 * @return {long} longest time it took to reconnect, in ms
+	 */
+	public long getMaxReconnectMillis() { return reconnect.maxReconnectMillis(); }
+
+	/**
+	 * @return {long} mean time it took to reconnect, in ms
+	 */
+	public long getMeanReconnectMillis() { return reconnect.meanReconnectMillis(); }
+
+	/**
+	 * Update publishers and subscribers: send the configuration, unless routes are being batched.
 	 */
 	private void updatePubSub() {
+		String text;
+		synchronized(this) {
+			if(routeBatch > 0 || !connectionEstablished) { return; }
+			text = config();
+		}
+		sendText(text);
+	}
+
+	/**
+	 * Send a text frame (e.g., the config, or a route message), if connected.
+	 */
+	void sendText(String text) {
+		if(!connectionEstablished) { return; }
+		SharedConnection sc = shared;
+		WsClient c = wsClient;
+		if(sc != null) { sc.send(text); }
+		else if(c != null) { c.send(text); }
+	}
+
+	/**
+	 * @return {String} address of this end of the websocket
+	 */
+	String localAddress() {
+		SharedConnection sc = shared;
+		WsClient c = wsClient;
+		if(sc != null) { return sc.localAddress(); }
+		return (c != null) ? c.localAddress() : "127.0.0.1";
+	}
+
+	/**
+	 * Get the configuration message, rendered again only if the routes (or the name) changed.
+	 */
+	private synchronized String config() {
+		if(config != null && configName == name && configDescription == description) { return config; }
 		JSONArray publishers = new JSONArray();
-		for(int i = 0, len = publishes.size(); i < len; i++) {
-			SpacebrewMessage m = publishes.get(i);
+		RouteTable t = routes;
+		for(int i = 0, len = t.publishes.length; i < len; i++) {
+			SpacebrewMessage m = t.publishes[i];
 			JSONObject pub = new JSONObject();
 			pub.put("name", m.name);
 			pub.put("type", m.type);
@@ -406,8 +876,8 @@ public class Spacebrew {
 		}
 
 		JSONArray subscribers = new JSONArray();
-		for(int i = 0; i < subscribes.size(); i++) {
-			SpacebrewMessage m = subscribes.get(i);
+		for(int i = 0; i < t.subscribes.length; i++) {
+			SpacebrewMessage m = t.subscribes[i];
 			JSONObject subs = new JSONObject();
 			subs.put("name", m.name);
 			subs.put("type", m.type);
@@ -423,82 +893,571 @@ public class Spacebrew {
 		mObj.put("description", description);
 		mObj.put("subscribe", tMs1);
 		mObj.put("publish", tMs2);
+		if(compactRequested) { mObj.put("compact", CompactCodec.VERSION); }
 		tConfig.put("config", mObj);    
-
-		if(connectionEstablished) { wsClient.send(tConfig.toString()); }
+		configName = name;
+		configDescription = description;
+		return config = tConfig.toString();
 	}
 
 	/**
 	 * Send a message along a specified route.
 	 * @param messageName {String} name of route
 	 * @param type {String} type of route ("boolean", "range", "string")
-	 * @param value {String} what you're sending
+	 * @param value {String} what you're sending (null is sent as an empty string)
+	 * @return {boolean} true if the message was sent (or queued)
 	 */
-	public void send(String messageName, String type, String value) {
-		JSONObject m = new JSONObject();
-		m.put("clientName", name);
-		m.put("name", messageName);
-		m.put("type", type);
-		m.put("value", value);
-
-		JSONObject sM = new JSONObject();
-		sM.put("message", m);
-
-		if(connectionEstablished) { wsClient.send( sM.toString()); }
-		else { System.err.println("[send] can't send message, not currently connected!"); }
+	public boolean send(String messageName, String type, String value) {
+		return write(FrameTemplate.encode(name, messageName, type, (value == null) ? "" : value));
 	}
 
 	/**
 	 * Send a Range message along a specified route.
 	 * @param messageName {String} name of route
 	 * @param value {Integer} what you're sending
+	 * @return {boolean} true if the message was sent (or queued)
 	 */
-	public void send(String messageName, int value) {    
-		String type = "range";
-		for(int i = 0, len = publishes.size(); i < len; i++) {
-			SpacebrewMessage m = publishes.get(i);
-			if(m.name.equals(messageName)) { 
-				type = m.type;
-				break;
-			}
-		}
-		this.send(messageName, type, Integer.toString(value));
+	public boolean send(String messageName, int value) {    
+		PublishRoute route = routes.publishRoutes.get(messageName);
+		if(route == null) { return this.send(messageName, "range", Integer.toString(value)); }
+		return route.send(value);
 	}
 
 	/**
 	 * Send a Boolean message along a specified route.
 	 * @param messageName {String} Name of route
 	 * @param value {boolean} What you're sending
+	 * @return {boolean} true if the message was sent (or queued)
 	 */
-	public void send(String messageName, boolean value) {
-		String type = "boolean";
-		for(int i = 0, len = publishes.size(); i < len; i++) {
-			SpacebrewMessage m = publishes.get(i);
-			if(m.name.equals(messageName)) { 
-				type = m.type;
-				break;
-			}
-		}
-		this.send(messageName, type, Boolean.toString(value));
+	public boolean send(String messageName, boolean value) {
+		PublishRoute route = routes.publishRoutes.get(messageName);
+		if(route == null) { return this.send(messageName, "boolean", Boolean.toString(value)); }
+		return route.send(value);
 	}
 
 	/**
 	 * Send a String message along a specified route.
 	 * @param messageName {String} Name of route
-	 * @param value {String} What you're sending
-	 */
-	public void send(String messageName, String value) {
-		String type = "string";
-		for(int i = 0, len = publishes.size(); i < len; i++) {
-			SpacebrewMessage m = publishes.get(i);
-			if(m.name.equals(messageName)) { 
-				type = m.type;
-				break;
+	 * @param value {String} What you're sending (null is sent as an empty string)
+	 * @return {boolean} true if the message was sent (or queued)
+	 */
+	public boolean send(String messageName, String value) {
+		PublishRoute route = routes.publishRoutes.get(messageName);
+		if(route == null) { return this.send(messageName, "string", value); }
+		return route.send(value);
+	}
+
+	/**
+	 * Send a numeric vector message (e.g., "x,y" coordinates) along a route registered with <code>addPublish</code>.
+	 * @param messageName {String} name of route
+	 * @param values {float[]} what you're sending
+	 * @return {boolean} true if the message was sent (or queued)
+	 */
+	public boolean send(String messageName, float... values) {
+		PublishRoute route = typedRoute(messageName);
+		return route != null && route.send(values);
+	}
+
+	/**
+	 * Send a numeric vector message along a route registered with <code>addPublish</code>.
+	 * @param messageName {String} name of route
+	 * @param values {double[]} what you're sending
+	 * @return {boolean} true if the message was sent (or queued)
+	 */
+	public boolean send(String messageName, double... values) {
+		PublishRoute route = typedRoute(messageName);
+		return route != null && route.send(values);
+	}
+
+	/**
+	 * Send a numeric vector message along a route registered with <code>addPublish</code>.
+	 * @param messageName {String} name of route
+	 * @param values {int[]} what you're sending
+	 * @return {boolean} true if the message was sent (or queued)
+	 */
+	public boolean send(String messageName, int... values) {
+		PublishRoute route = typedRoute(messageName);
+		return route != null && route.send(values);
+	}
+
+	/**
+	 * Send a value of custom type along a route registered with <code>addPublish</code>,
+	 * encoded by the codec of its type (see <code>registerCodec</code>).
+	 * @param messageName {String} name of route
+	 * @param value {Object} what you're sending
+	 * @return {boolean} true if the message was sent (or queued)
+	 */
+	public boolean sendObject(String messageName, Object value) {
+		PublishRoute route = typedRoute(messageName);
+		return route != null && route.sendObject(value);
+	}
+
+	private PublishRoute typedRoute(String messageName) {
+		PublishRoute route = routes.publishRoutes.get(messageName);
+		if(route == null) { System.err.println("[send] " + messageName + " isn't a publish route (its type is needed to encode the value)"); }
+		return route;
+	}
+
+	/**
+	 * Get the writer thread: the one of the shared connection, if any, or the
+	 * client's own, started on first use.
+	 */
+	OutboundWriter writer() {
+		OutboundWriter w = writer;
+		if(w != null) { return w; }
+		SharedConnection sc = shared;
+		if(sc != null) { return sc.writer(); }
+		synchronized(this) {
+			if(writer == null) { writer = new OutboundWriter(); }
+			return writer;
+		}
+	}
+
+	/**
+	 * Wake up the writer threads that may hold work for this client (connection established).
+	 */
+	private void wakeWriters() {
+		OutboundWriter w = writer;
+		if(w != null) { w.wake(); }
+		SharedConnection sc = shared;
+		if(sc != null) { sc.writer().wake(); }
+	}
+
+	/**
+	 * Send messages asynchronously: sending threads only queue the encoded
+	 * message, and the writer thread of the client writes it to the websocket.
+	 * <br>The queue is bounded and preallocated; when it's full the policy decides
+	 * whether senders wait, or which message is dropped.
+	 * <br>The writer thread writes the queued messages in batches, several frames
+	 * per socket write: the mode to use when many threads send through one client.
+	 * @param capacity {int} maximum number of queued messages (rounded up to a power of 2)
+	 * @param policy {OverflowPolicy} what to do when the queue is full
+	 */
+	public void setAsyncSend(int capacity, OverflowPolicy policy) {
+		sendQueue = new SendQueue(capacity, policy, this);
+	}
+
+	/**
+	 * Go back to sending messages synchronously, on the sending thread (the default).
+	 * <br>Messages still queued are sent by the calling thread before returning.
+	 */
+	public void setSyncSend() {
+		final SendQueue q = sendQueue;
+		sendQueue = null;
+		if(q != null) {
+			FrameEncoder e = FrameEncoder.get();
+			while(q.poll(e)) {
+				write(e);
+				e = FrameEncoder.get();
+			}
+		}
+	}
+
+	/**
+	 * @return {int} number of messages waiting in the asynchronous send queue
+	 */
+	public int getSendQueueDepth() {
+		SendQueue q = sendQueue;
+		return q == null ? 0 : q.depth();
+	}
+
+	/**
+	 * @return {long} messages dropped because the asynchronous send queue was full
+	 */
+	public long getSendDrops() {
+		SendQueue q = sendQueue;
+		return q == null ? 0 : q.drops();
+	}
+
+	/**
+	 * @return {long} messages refused because the asynchronous send queue was full (FAIL policy)
+	 */
+	public long getSendRejections() {
+		SendQueue q = sendQueue;
+		return q == null ? 0 : q.rejections();
+	}
+
+	SendQueue sendQueue() { return sendQueue; }
+
+	/**
+	 * Keep the messages sent while disconnected in a journal (in memory), and
+	 * replay them, in order, once the connection is established again and the
+	 * configuration sent.
+	 * <br>When the journal is full the oldest messages are dropped; messages older than
+	 * the age limit aren't replayed; routes can keep only their latest message in
+	 * the journal (see <code>PublishRoute.setJournalCompaction</code>).
+	 * @param capacityBytes {int} size of the journal, in bytes (a range message takes about 100)
+	 * @param maxAgeMillis {long} messages older than this, in ms, aren't replayed (0: no limit)
+	 */
+	public void setJournal(int capacityBytes, long maxAgeMillis) {
+		journal = new OutboundJournal(capacityBytes, maxAgeMillis);
+		writer();
+	}
+
+	/**
+	 * Keep the messages sent while disconnected in a journal in a memory-mapped file
+	 * (see <code>setJournal(int, long)</code>), so that they survive the process:
+	 * a client opening a journal file left by a previous run replays its messages.
+	 * @param file {File} the journal file (created if needed)
+	 * @param capacityBytes {int} size of the journal, in bytes (the same as the previous run, to resume it)
+	 * @param maxAgeMillis {long} messages older than this, in ms, aren't replayed (0: no limit)
+	 * @throws IOException if the file can't be mapped
+	 */
+	public void setJournal(File file, int capacityBytes, long maxAgeMillis) throws IOException {
+		OutboundJournal j = OutboundJournal.map(file, capacityBytes, maxAgeMillis);
+		if(connectionEstablished) { j.connected(); } // a previous run's messages are a backlog too
+		journal = j;
+		if(j.depth() > 0) { writer().markReady(this); }
+		else { writer(); }
+	}
+
+	/**
+	 * Stop journaling: messages sent while disconnected are lost (the default),
+	 * and the messages not replayed yet are discarded.
+	 */
+	public void setNoJournal() { journal = null; }
+
+	/**
+	 * Set how fast the journal is replayed, so that reconnecting doesn't flood the server.
+	 * <br>Only the messages journaled when the connection is established are
+	 * throttled: the messages sent while they're replayed go after them, but as
+	 * fast as the connection takes them.
+	 * @param messagesPerSecond {int} replay rate (default: 1000; 0: as fast as possible)
+	 */
+	public void setJournalReplayRate(int messagesPerSecond) {
+		OutboundJournal j = journal;
+		if(j != null) { j.setRate(messagesPerSecond); }
+	}
+
+	/**
+	 * @return {int} number of messages in the journal, waiting to be replayed
+	 */
+	public int getJournalDepth() {
+		OutboundJournal j = journal;
+		return j == null ? 0 : j.depth();
+	}
+
+	/**
+	 * @return {long} messages dropped because the journal was full
+	 */
+	public long getJournalDrops() {
+		OutboundJournal j = journal;
+		return j == null ? 0 : j.drops();
+	}
+
+	/**
+	 * @return {long} messages not replayed because older than the age limit
+	 */
+	public long getJournalExpired() {
+		OutboundJournal j = journal;
+		return j == null ? 0 : j.expired();
+	}
+
+	/**
+	 * @return {long} messages superseded by a later message of the same (compacting) route
+	 */
+	public long getJournalCompacted() {
+		OutboundJournal j = journal;
+		return j == null ? 0 : j.compacted();
+	}
+
+	OutboundJournal journal() { return journal; }
+
+	/**
+	 * Send (or queue, if sending asynchronously) the frame encoded in the calling thread's buffer.
+	 * @return {boolean} true if sent or queued
+	 */
+	boolean write(FrameEncoder e) { return write(e, null); }
+
+	/**
+	 * Send (or queue, or journal) the frame of a route encoded in the calling thread's buffer.
+	 * @param route {PublishRoute} the route, if the frame is subject to its journal compaction, or null
+	 * @return {boolean} true if sent, queued or journaled
+	 */
+	boolean write(FrameEncoder e, PublishRoute route) {
+		if(tracing && route != null) { route.stamp(e); }
+		OutboundJournal j = journal;
+		boolean journaled = j != null && (!connectionEstablished || j.depth() > 0); // disconnected, or replaying: after the journaled messages
+		if(journaled && route != null && CompactCodec.isCompact(e.bytes())) { e = route.json(e.bytes()); } // the journal outlives the connection (and the process): JSON only
+		int length = e.length();
+		boolean written;
+		if(journaled) {
+			written = j.append(e, (route != null && route.isJournalCompaction()) ? route : null);
+			writer().markReady(this);
+		} else if(!connectionEstablished) {
+			System.err.println("[send] can't send message, not currently connected!");
+			return false;
+		} else {
+			SendQueue q = sendQueue;
+			if(q != null) { written = q.offer(e); }
+			else {
+				transmit(e);
+				written = true;
+			}
+		}
+		if(!written) { return false; }
+		if(route != null) { route.counted(length); }
+		else {
+			unroutedSent.incrementAndGet();
+			unroutedSentBytes.addAndGet(length);
+		}
+		return true;
+	}
+
+	/**
+	 * Encode again as JSON a compact frame queued for a connection that doesn't
+	 * use the compact mode (e.g., queued before a reconnection, the new connection
+	 * not having acknowledged the mode yet).
+	 * @param e {FrameEncoder} the frame, in the calling thread's buffer
+	 * @return {FrameEncoder} the frame to send (in the calling thread's buffer), or null if it's a compact frame of no route
+	 */
+	FrameEncoder json(FrameEncoder e) { return compactActive ? e : toJson(e); }
+
+	/**
+	 * Encode again as JSON a compact frame (e.g., to be journaled), whatever the mode of the connection.
+	 * @param e {FrameEncoder} the frame, in the calling thread's buffer
+	 * @return {FrameEncoder} the JSON frame (in the calling thread's buffer), or null if it's a compact frame of no route
+	 */
+	private FrameEncoder toJson(FrameEncoder e) {
+		ByteBuffer frame = e.bytes();
+		if(!CompactCodec.isCompact(frame)) { return e; }
+		try {
+			ByteBuffer b = frame.duplicate();
+			b.get();
+			int id = CompactCodec.varint(b);
+			PublishRoute[] handles = routes.handles;
+			return (id < handles.length) ? handles[id].json(frame) : null;
+		} catch(IllegalArgumentException x) { // truncated
+			return null;
+		}
+	}
+
+	/**
+	 * Journal again, ahead of the messages journaled, the frames of a batch that
+	 * couldn't be sent (writer thread); without a journal, they're lost.
+	 * @param b {FrameBatch} the batch, emptied
+	 */
+	void unsent(FrameBatch b) {
+		OutboundJournal j = journal;
+		if(j == null) {
+			System.err.println("[send] " + b.count() + " messages lost, the connection failed while writing them");
+			b.clear();
+			return;
+		}
+		for(int i = b.count() - 1; i >= 0; i--) { // the last first, so they end up in order
+			FrameEncoder e = toJson(b.frame(i, FrameEncoder.get())); // the journal outlives the connection: JSON only
+			if(e != null && !j.requeue(e)) { j.append(e, null); }
+		}
+		b.clear();
+	}
+
+	/**
+	 * Write a frame to the websocket, on the calling thread.
+	 */
+	void transmit(FrameEncoder e) {
+		SharedConnection sc = shared;
+		if(sc != null) {
+			sc.transmit(e);
+			return;
+		}
+		WsClient c = wsClient;
+		if(c != null) { c.sendFrame(e.frame()); }
+	}
+
+	/**
+	 * @return {boolean} true if the websocket is open (not closing), so frames can be written
+	 */
+	boolean writable() {
+		SharedConnection sc = shared;
+		if(sc != null) { return sc.writable(); }
+		WsClient c = wsClient;
+		return c != null && c.writable();
+	}
+
+	/**
+	 * @return {boolean} true if the websocket takes batches of frames (see WsClient.batches)
+	 */
+	boolean batches() {
+		SharedConnection sc = shared;
+		if(sc != null) { return sc.batches(); }
+		WsClient c = wsClient;
+		return c != null && c.batches();
+	}
+
+	/**
+	 * Write a batch of frames to the websocket, in one write (writer thread).
+	 * @return {boolean} false if the frames weren't sent (they're still in the batch)
+	 */
+	boolean transmit(FrameBatch b) {
+		if(b.count() == 0) { return true; }
+		SharedConnection sc = shared;
+		if(sc != null) { return sc.transmit(b); }
+		WsClient c = wsClient;
+		if(c == null || !c.sendFrames(b.frames())) { return false; }
+		b.clear();
+		return true;
+	}
+
+	/**
+	 * Run subscription callbacks on an executor instead of the websocket thread,
+	 * so that a slow callback doesn't hold up the reception of other routes.
+	 * <br>Messages of the same route are delivered in order, one at a time;
+	 * different routes run in parallel, as far as the executor allows.
+	 * Any executor can be used, e.g. <code>Executors.newFixedThreadPool(4)</code>,
+	 * or a virtual thread per task executor on Java 21.
+	 * @param executor {Executor} the executor, or null to run callbacks on the websocket thread (the default)
+	 */
+	public void setDispatchExecutor(Executor executor) { dispatchExecutor = executor; }
+
+	/**
+	 * Run subscription callbacks on an executor (see <code>setDispatchExecutor(Executor)</code>),
+	 * with a limit on the messages waiting for each route.
+	 * <br>Messages received on a route whose queue is full are dropped.
+	 * The limit applies to routes receiving their first message after this call.
+	 * @param executor {Executor} the executor, or null to run callbacks on the websocket thread
+	 * @param routeQueueLimit {int} maximum number of messages waiting per route (default: 256)
+	 */
+	public void setDispatchExecutor(Executor executor, int routeQueueLimit) {
+		dispatchQueueLimit = routeQueueLimit;
+		dispatchExecutor = executor;
+	}
+
+	/**
+	 * @return {long} messages dropped because the queue of their route was full
+	 */
+	public long getDispatchDrops() { return dispatchDrops.get(); }
+
+	Executor dispatchExecutor() { return dispatchExecutor; }
+
+	void dispatchDropped() { dispatchDrops.incrementAndGet(); }
+
+	/**
+	 * Get the dispatch queue of a route, creating it on first use.
+	 */
+	private DispatchQueue dispatchQueue(Subscription s) {
+		DispatchQueue q = (s != null) ? s.stats.queue : defaultDispatchQueue;
+		if(q != null) { return q; }
+		synchronized(this) {
+			if(s == null) {
+				if(defaultDispatchQueue == null) { defaultDispatchQueue = new DispatchQueue(this, null, dispatchQueueLimit); }
+				return defaultDispatchQueue;
 			}
+			if(s.stats.queue == null) { s.stats.queue = new DispatchQueue(this, s, dispatchQueueLimit); }
+			return s.stats.queue;
+		}
+	}
+
+	/**
+	 * Ask the server for the compact wire mode: once the server acknowledges it,
+	 * messages go in binary frames referring to routes by their index in the
+	 * config, instead of JSON envelopes (a range message takes a few bytes
+	 * instead of about a hundred).
+	 * <br>The request goes with the config, and servers that don't know it just
+	 * ignore it: the client then keeps sending JSON. It's asked again on each
+	 * connection, and doesn't apply to clients on a SharedConnection.
+	 * @param compact {boolean} true to ask for the compact mode (default: false)
+	 */
+	public void setCompact(boolean compact) {
+		synchronized(this) {
+			compactRequested = compact;
+			config = null;
 		}
-		this.send(messageName, type, value);
+		if(!compact) { compactActive = false; }
+		updatePubSub();
+	}
+
+	/**
+	 * @return {boolean} true if messages are being sent in the compact wire mode (see <code>setCompact</code>)
+	 */
+	public boolean isCompact() { return compactActive; }
+
+	/**
+	 * Add tracing metadata to the messages of the publish routes of this client:
+	 * a sequence number per route and the send time.
+	 * <br>Subscribers using this library take it off the message (callbacks get
+	 * the value as usual) and record, per subscribed route, the one-way latency
+	 * and the messages missing or out of order (see <code>getTraceStatistics</code>).
+	 * The embedded server (SpacebrewServer) forwards the metadata; a server that
+	 * rebuilds messages without it only makes it disappear. One-way latencies between
+	 * hosts are as accurate as their clocks are in sync.
+	 * <br>Messages sent without a publish route (<code>send(name, type, value)</code>
+	 * for a route not added) and values delivered in-process carry no metadata.
+	 * @param tracing {boolean} true to trace (default: false)
+	 */
+	public void setTracing(boolean tracing) { this.tracing = tracing; }
+
+	/**
+	 * @return {boolean} true if the messages of the publish routes carry tracing metadata
+	 */
+	public boolean isTracing() { return tracing; }
+
+	/**
+	 * @return {List} tracing statistics of the subscribed routes that received traced messages
+	 */
+	public List<TraceStatistics> getTraceStatistics() {
+		List<TraceStatistics> traces = new ArrayList<TraceStatistics>();
+		for(Subscription s : subscriptions()) {
+			RouteTrace t = s.stats.trace;
+			if(t != null) { traces.add(t.statistics(s.name)); }
+		}
+		return traces;
+	}
+
+	/**
+	 * Measure the round trip time to the server continuously: a message goes to
+	 * the server and back, along a route from this client to itself, at a fixed interval.
+	 * <br>The probe adds a publish and a subscribe route of type "probe", named
+	 * "spacebrew probe", and asks the server to route them (on each connection).
+	 * Routes can't be removed: stopping the probe only stops the messages.
+	 * @param intervalMillis {long} time between probes, in ms
+	 */
+	public void startProbe(long intervalMillis) {
+		if(intervalMillis <= 0) { throw new IllegalArgumentException("invalid interval: " + intervalMillis + " ms"); }
+		LatencyProbe p;
+		synchronized(this) {
+			stopProbe();
+			PublishRoute route = routes.publishRoutes.get(LatencyProbe.ROUTE);
+			if(route == null) { route = addPublish(LatencyProbe.ROUTE, LatencyProbe.TYPE, ""); }
+			Subscription s = routes.subscriptions.get(LatencyProbe.ROUTE);
+			if(s == null || s.customs(LatencyProbe.TYPE).length == 0) {
+				subscribeCustom(LatencyProbe.ROUTE, LatencyProbe.TYPE, new CustomCallback() { // to the current probe
+					@Override public void accept(CharSequence value) {
+						LatencyProbe p = probe;
+						if(p != null) { p.accept(value); }
+					}
+				});
+			}
+			probe = p = new LatencyProbe(this, route, intervalMillis);
+		}
+		p.opened();
+	}
+
+	/**
+	 * Stop sending probes (see <code>startProbe</code>); statistics are kept until the next start.
+	 */
+	public synchronized void stopProbe() {
+		LatencyProbe p = probe;
+		if(p != null) { p.stop(); }
+	}
+
+	/**
+	 * @return {LatencyStatistics} round trip times of the probes (see <code>startProbe</code>)
+	 */
+	public LatencyStatistics getProbeRoundTrip() {
+		LatencyProbe p = probe;
+		return (p != null) ? p.statistics() : new LatencyStatistics(0, 0, 0, 0, 0, 0);
+	}
+
+	/**
+	 * @return {long} probes sent (those that didn't come back are lost, or in flight)
+	 */
+	public long getProbesSent() {
+		LatencyProbe p = probe;
+		return (p != null) ? p.sent() : 0;
 	}
 
+	boolean compact() { return compactActive; }
+
 	/**
 	 * Get whether the client is connected.
 	 * @return {boolean} is connected?
@@ -508,11 +1467,28 @@ public class Spacebrew {
 	/**
 	 * Websocket callback (don't call this please!).
 	 */
-	public void onOpen() {
-		connectionEstablished = true;
+	public void onOpen() { onOpen(wsClient); }
+
+	/**
+	 * Websocket callback, from a given websocket (ignored if not the current one).
+	 */
+	void onOpen(WsClient c) {
+		if(c != wsClient) { return; }
+		reconnect.opened();
+		heartbeat.watch(c);
+		compactActive = false; // until the server acknowledges it on this connection
 		if(verbose) { System.out.println("[onOpen] spacebrew connection open!"); }
 
-		wsClient.send(tConfig.toString()); // send config
+		String sent = config();
+		c.send(sent); // send config, before any message (e.g., of the journal)
+		OutboundJournal j = journal;
+		if(j != null) { j.connected(); } // what it holds now is replayed at the replay rate
+		connectionEstablished = true;
+		connectedTime(true);
+		if(config() != sent) { updatePubSub(); } // routes added meanwhile
+		LatencyProbe p = probe;
+		if(p != null) { p.opened(); }
+		wakeWriters(); // values coalesced or journaled while disconnected
 
 		//*//
 		/*
@@ -530,7 +1506,14 @@ public class Spacebrew {
 	/**
 	 * Websocket callback (don't call this please!).
 	 */
-	public void onClose() {
+	public void onClose() { onClose(wsClient); }
+
+	/**
+	 * Websocket callback, from a given websocket (ignored if not the current one).
+	 */
+	void onClose(WsClient c) {
+		heartbeat.unwatch(c);
+		if(c != wsClient) { return; }
 		//*//
 		/*
 		if ( onCloseMethod != null ){
@@ -544,99 +1527,346 @@ public class Spacebrew {
 		*/
 
 		connectionEstablished = false;
+		connectedTime(false);
+		compactActive = false;
 		if(verbose) { System.out.println("[onClose] spacebrew connection closed."); }
+		reconnect.closed();
+	}
+
+	/**
+	 * Websocket callback, for an error on a given websocket (counted if it's the current one).
+	 */
+	void onError(WsClient c, Exception e) {
+		if(c != wsClient) { return; }
+		connectionErrors.incrementAndGet();
+		if(verbose) { System.out.println("[onError] " + e); }
 	}
 
 	/**
 	 * Websocket callback (don't call this please!).
 	 */
 	public void onMessage(String message) {
-		JSONObject m = new JSONObject(message).getJSONObject("message");
+		FrameDecoder f = decoder; // only used by the websocket thread
+		try {
+			if(!f.decodeLenient(message)) {
+				if(compactRequested && shared == null && compactAck(new JSONObject(message))) {
+					compactActive = true;
+					if(verbose) { System.out.println("[onMessage] compact wire mode acknowledged"); }
+				} else if(verbose) {
+					System.out.println("[onMessage] ignoring unknown message " + message);
+				}
+				return;
+			}
+		} catch(RuntimeException e) {
+			System.err.println("[onMessage] can't parse message: " + message);
+			return;
+		}
+		dispatch(f);
+	}
+
+	/**
+	 * Websocket callback, for binary frames: messages in the compact wire mode (see CompactCodec).
+	 */
+	void onMessage(ByteBuffer frame) {
+		long now = System.nanoTime();
+		int length = frame.remaining();
+		try {
+			byte kind = frame.get();
+			boolean traced = (kind & Trace.TRACED) != 0;
+			int source = 0;
+			long seq = 0, micros = 0;
+			if(traced) {
+				int at = Trace.trailer(frame);
+				source = Trace.source(frame, at);
+				seq = Trace.seq(frame, at);
+				micros = Trace.micros(frame, at);
+				frame.limit(at);
+				kind &= ~Trace.TRACED;
+			}
+			int id = CompactCodec.varint(frame);
+			RouteTable t = routes;
+			SpacebrewMessage m = (id < t.subscribes.length) ? t.subscribes[id] : null;
+			if(m == null) {
+				if(verbose) { System.out.println("[onMessage] ignoring message of unknown route " + id); }
+				return;
+			}
+			Subscription s = t.subscriptions.get(m.name);
+			received(s, length);
+			if(traced) { traced(s, source, seq, micros); }
+			if(kind == CompactCodec.RANGE) { receive(s, m.name, "range", FrameDecoder.RANGE, CompactCodec.range(frame), null, now); }
+			else if(kind == CompactCodec.BOOLEAN) { receive(s, m.name, "boolean", FrameDecoder.BOOLEAN, frame.get() != 0 ? 1 : 0, null, now); }
+			else if(kind == CompactCodec.STRING) {
+				int type = m.type.equals("string") ? FrameDecoder.STRING : FrameDecoder.OTHER;
+				receive(s, m.name, m.type, type, 0, CompactCodec.string(frame), now);
+			} else if(verbose) {
+				System.out.println("[onMessage] ignoring binary message of kind " + kind);
+			}
+		} catch(RuntimeException e) { // truncated frame
+			System.err.println("[onMessage] can't parse binary message: " + e.getMessage());
+		}
+	}
 
-		String name = m.getString("name");
-		String type = m.getString("type");
-		Method method = null;
+	private static boolean compactAck(JSONObject o) {
+		return o.has("compact") && o.optInt("compact", 0) == CompactCodec.VERSION; // (optInt complains about missing keys)
+	}
 
-		if(callbacks.containsKey(name)) {
-			if(callbacks.get(name).containsKey(type)) {
-				try {
-					method = callbacks.get(name).get(type);
-				} catch(Exception e) {}
+	/**
+	 * Deliver a value already decoded (range and boolean values in intValue, others in value).
+	 */
+	private void receive(Subscription s, String name, String type, int kind, int intValue, String value, long receivedAt) {
+		if(dispatchExecutor != null) { dispatchQueue(s).offer(kind, intValue, name, type, value, receivedAt); }
+		else if(kind == FrameDecoder.RANGE) { deliverRange(s, name, intValue, receivedAt); }
+		else if(kind == FrameDecoder.BOOLEAN) { deliverBoolean(s, name, intValue != 0, receivedAt); }
+		else if(kind == FrameDecoder.STRING) { deliverString(s, name, value, receivedAt); }
+		else { deliverCustom(s, name, type, value, receivedAt); }
+	}
+
+	/**
+	 * Deliver a value published by a client in the JVM (see <code>SharedConnection.setLoopback</code>),
+	 * on the publishing thread.
+	 */
+	void deliverLocal(String name, String type, int kind, int intValue, String value) {
+		long now = System.nanoTime();
+		Subscription s = routes.subscriptions.get(name);
+		received(s, 0);
+		receive(s, name, type, kind, intValue, value, now);
+	}
+
+	/**
+	 * @return {Loopback} routes to clients in the JVM, if this client is on a connection delivering in-process, or null
+	 */
+	Loopback loopback() {
+		SharedConnection sc = shared;
+		return (sc != null && connectionEstablished) ? sc.loopback() : null;
+	}
+
+	/**
+	 * @return {boolean} true if the client subscribes to a route
+	 */
+	boolean subscribes(CharSequence name) { return routes.subscriptions.get(name) != null; }
+
+	/**
+	 * @return {Subscription} the current dispatch entry of a route, or null if it isn't subscribed
+	 */
+	Subscription subscribed(CharSequence name) { return routes.subscriptions.get(name); }
+
+	/**
+	 * Deliver a decoded message (websocket thread only).
+	 */
+	void dispatch(FrameDecoder f) {
+		CharSequence name = null;
+		try {
+			name = f.name();
+			int type = f.typeCode();
+			Subscription s = routes.subscriptions.get(name);
+			Executor executor = dispatchExecutor;
+			long now = System.nanoTime();
+			received(s, f.length());
+			if(f.traced()) { traced(s, f.traceSource(), f.traceSeq(), f.traceMicros()); }
+
+			if(executor != null) { // values are materialized and queued, in order, for the route
+				DispatchQueue q = dispatchQueue(s);
+				String routeName = (s != null) ? s.name : name.toString();
+				if(type == FrameDecoder.RANGE) { q.offer(type, f.rangeValue(), routeName, "range", null, now); }
+				else if(type == FrameDecoder.BOOLEAN) { q.offer(type, f.booleanValue() ? 1 : 0, routeName, "boolean", null, now); }
+				else if(type == FrameDecoder.STRING) { q.offer(type, 0, routeName, "string", f.stringValue(), now); }
+				else { q.offer(type, 0, routeName, f.type(), f.stringValue(), now); }
+			} else {
+				if(type == FrameDecoder.RANGE) { deliverRange(s, name, f.rangeValue(), now); }
+				else if(type == FrameDecoder.BOOLEAN) { deliverBoolean(s, name, f.booleanValue(), now); }
+				else if(type == FrameDecoder.STRING) { deliverString(s, name, f.stringValue(), now); }
+				else { deliverCustom(s, name, f.type(), f.value(), now); }
 			}
+		} catch(RuntimeException e) { // e.g., value not of the route type (NumberFormatException included): not for the websocket thread
+			System.err.println("[onMessage] bad message for route " + name + ": " + e);
 		}
+	}
 
-		//*// all method.invoke(client, ...) methods below were method.invoke(this, ...)  
-		if(type.equals("string")) {
-			if(method != null) {
-				try {
-					method.invoke(client, m.getString("value"));
-				} catch(Exception e) {
-					System.err.println("[" + method.getName() + "] invoke failed.");
+	/**
+	 * Count a message received on a route.
+	 */
+	private void received(Subscription s, int bytes) {
+		if(s != null) {
+			s.stats.received.incrementAndGet();
+			s.stats.receivedBytes.addAndGet(bytes);
+		} else {
+			unroutedReceived.incrementAndGet();
+			unroutedReceivedBytes.addAndGet(bytes);
+		}
+	}
+
+	/**
+	 * Record the tracing metadata of a message received on a route (when it's received).
+	 */
+	private void traced(Subscription s, int source, long seq, long micros) {
+		if(s == null) { return; }
+		RouteTrace t = s.stats.trace;
+		if(t == null) {
+			synchronized(s.stats) {
+				if((t = s.stats.trace) == null) { s.stats.trace = t = new RouteTrace(); }
+			}
+		}
+		t.record(source, seq, micros, Trace.now());
+	}
+
+	/**
+	 * Record how long a message waited before delivery (since its reception), and
+	 * how long its callbacks took (since start).
+	 */
+	private void delivered(Subscription s, long receivedAt, long start) {
+		long end = System.nanoTime();
+		LatencyHistogram latency = defaultLatency, callbackTime = defaultCallbackTime;
+		if(s != null) {
+			Subscription.Stats stats = s.stats;
+			if(stats.callbackTime == null) {
+				synchronized(stats) {
+					if(stats.callbackTime == null) {
+						stats.latency = new LatencyHistogram();
+						stats.callbackTime = new LatencyHistogram();
+					}
 				}
-			} else if(onStringMessageMethod != null) {
+			}
+			latency = stats.latency;
+			callbackTime = stats.callbackTime;
+		}
+		latency.record(start - receivedAt);
+		callbackTime.record(end - start);
+	}
+
+	//*// all method.invoke(client, ...) methods below were method.invoke(this, ...)
+	// (route callbacks are now typed callbacks, see Subscription)
+
+	void deliverString(Subscription s, CharSequence name, String value, long receivedAt) {
+		long start = System.nanoTime();
+		StringCallback[] callbacks = (s != null) ? s.strings : null;
+		if(callbacks != null && callbacks.length > 0) {
+			for(int i = 0; i < callbacks.length; i++) {
 				try {
-					onStringMessageMethod.invoke(client, name, m.getString("value"));
-				} catch(Exception e) {
-					System.err.println("[onStringMessageMethod] invoke failed, disabling :(");
-					onStringMessageMethod = null;
+					callbacks[i].accept(value);
+				} catch(RuntimeException e) {
+					System.err.println("[" + s.name + "] callback failed.");
+					invokeFailures.incrementAndGet();
 				}
 			}
-		} else if(type.equals("boolean")) {
-			if(method != null) {
+		} else if(onStringMessageMethod != null) {
+			try {
+				onStringMessageMethod.invoke(name.toString(), value);
+			} catch(Throwable e) {
+				System.err.println("[onStringMessageMethod] invoke failed, disabling :(");
+				invokeFailures.incrementAndGet();
+				onStringMessageMethod = null;
+			}
+		}
+		delivered(s, receivedAt, start);
+	}
+
+	void deliverBoolean(Subscription s, CharSequence name, boolean value, long receivedAt) {
+		long start = System.nanoTime();
+		BooleanCallback[] callbacks = (s != null) ? s.booleans : null;
+		if(callbacks != null && callbacks.length > 0) {
+			for(int i = 0; i < callbacks.length; i++) {
 				try {
-					method.invoke(client, m.getBoolean("value"));
-				} catch(Exception e) {
-					System.err.println("[" + method.getName() + "] invoke failed.");
+					callbacks[i].accept(value);
+				} catch(RuntimeException e) {
+					System.err.println("[" + s.name + "] callback failed.");
+					invokeFailures.incrementAndGet();
 				}
-			} else if(onBooleanMessageMethod != null) {
+			}
+		} else if(onBooleanMessageMethod != null) {
+			try {
+				onBooleanMessageMethod.invoke(name.toString(), value);
+			} catch(Throwable e) {
+				System.err.println("[onBooleanMessageMethod] invoke failed, disabling :(");
+				invokeFailures.incrementAndGet();
+				onBooleanMessageMethod = null;
+			}
+		}
+		delivered(s, receivedAt, start);
+	}
+
+	void deliverRange(Subscription s, CharSequence name, int value, long receivedAt) {
+		long start = System.nanoTime();
+		RangeCallback[] callbacks = (s != null) ? s.ranges : null;
+		if(callbacks != null && callbacks.length > 0) {
+			for(int i = 0; i < callbacks.length; i++) {
 				try {
-					onBooleanMessageMethod.invoke(client, name, m.getBoolean("value"));
-				} catch(Exception e) {
-					System.err.println("[onBooleanMessageMethod] invoke failed, disabling :(");
-					onBooleanMessageMethod = null;
+					callbacks[i].accept(value);
+				} catch(RuntimeException e) {
+					System.err.println("[" + s.name + "] callback failed.");
+					invokeFailures.incrementAndGet();
 				}
 			}
-		} else if(type.equals("range")) {
-			if(method != null) {
+		} else if(onRangeMessageMethod != null) {
+			try {
+				onRangeMessageMethod.invoke(name.toString(), value);
+			} catch(Throwable e) {
+				System.err.println("[onRangeMessageMethod] invoke failed, disabling :(");
+				invokeFailures.incrementAndGet();
+				onRangeMessageMethod = null;
+			}
+		}
+		delivered(s, receivedAt, start);
+	}
+
+	void deliverCustom(Subscription s, CharSequence name, String type, CharSequence value, long receivedAt) {
+		long start = System.nanoTime();
+		CustomCallback[] callbacks = (s != null) ? s.customs(type) : null;
+		ObjectCallback<?>[] objects = (s != null) ? s.objects(type) : null;
+		if(objects != null && objects.length > 0) { deliverObject(s, type, value, objects); }
+		if(callbacks != null && callbacks.length > 0) {
+			for(int i = 0; i < callbacks.length; i++) {
 				try {
-					method.invoke(client, m.getInt("value"));
-				} catch(Exception e) {
-					System.err.println("[" + method.getName() + "] invoke failed.");
+					callbacks[i].accept(value);
+				} catch(RuntimeException e) {
+					System.err.println("[" + s.name + "] callback failed.");
+					invokeFailures.incrementAndGet();
 				}
-			} else if(onRangeMessageMethod != null) {
+			}
+		} else if(objects == null || objects.length == 0) {
+			if(onCustomMessageMethod != null) {
 				try {
-					onRangeMessageMethod.invoke(client, name, m.getInt("value"));
-				} catch(Exception e) {
-					System.err.println("[onRangeMessageMethod] invoke failed, disabling :(");
-					onRangeMessageMethod = null;
+					onCustomMessageMethod.invoke(name.toString(), type, value.toString());
+				} catch(Throwable e) {
+					System.err.println("[onCustomMessageMethod] invoke failed, disabling :(");
+					invokeFailures.incrementAndGet();
+					onCustomMessageMethod = null;
 				}
 			}
-		} else {
-			if(method != null) {
+			if(onOtherMessageMethod != null) {
 				try {
-					method.invoke(client, m.getString("value"));
-				} catch(Exception e) {
-					System.err.println("[" + method.getName() + "] invoke failed.");
-				}
-			} else {
-				if(onCustomMessageMethod != null) {
-					try {
-						onCustomMessageMethod.invoke(client, name, type, m.getString("value"));
-					} catch(Exception e) {
-						System.err.println("[onCustomMessageMethod] invoke failed, disabling :(");
-						onCustomMessageMethod = null;
-					}
-				}
-				if(onOtherMessageMethod != null) {
-					try {
-						onOtherMessageMethod.invoke(client, name, type, m.getString("value"));
-						System.err.println("[onOtherMessageMethod] will be deprecated in future version of Spacebrew lib");
-					} catch(Exception e) {
-						System.err.println("[onOtherMessageMethod] invoke failed, disabling :(");
-						onOtherMessageMethod = null;
-					}
+					onOtherMessageMethod.invoke(name.toString(), type, value.toString());
+					System.err.println("[onOtherMessageMethod] will be deprecated in future version of Spacebrew lib");
+				} catch(Throwable e) {
+					System.err.println("[onOtherMessageMethod] invoke failed, disabling :(");
+					invokeFailures.incrementAndGet();
+					onOtherMessageMethod = null;
 				}
 			}
 		}
+		delivered(s, receivedAt, start);
+	}
+
+	/**
+	 * Decode a value with the codec of its type, once, and pass it to the callbacks.
+	 */
+	@SuppressWarnings("unchecked")
+	private void deliverObject(Subscription s, String type, CharSequence value, ObjectCallback<?>[] callbacks) {
+		SpacebrewCodec<?> codec = codecs.get(type);
+		Object decoded;
+		try {
+			decoded = codec.decode(value);
+		} catch(RuntimeException e) {
+			System.err.println("[" + s.name + "] can't decode value of type " + type + ": " + e.getMessage());
+			invokeFailures.incrementAndGet();
+			return;
+		}
+		for(int i = 0; i < callbacks.length; i++) {
+			try {
+				((ObjectCallback<Object>)callbacks[i]).accept(decoded);
+			} catch(RuntimeException e) {
+				System.err.println("[" + s.name + "] callback failed.");
+				invokeFailures.incrementAndGet();
+			}
+		}
 	}
 }
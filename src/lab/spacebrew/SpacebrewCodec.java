@@ -0,0 +1,33 @@
+package lab.spacebrew;
+
+/**
+ * Decoder and encoder of the values of a custom route type, registered once per
+ * type (see <code>Spacebrew.registerCodec</code>), e.g. for a "point" type:
+ * <br><code>cl.registerCodec("point", new SpacebrewCodec&lt;Point&gt;() {...});</code>
+ * <br><code>cl.subscribeObject("cursor", "point", new ObjectCallback&lt;Point&gt;() {...});</code>
+ * <br><code>cursorRoute.sendObject(new Point(320, 240));</code>
+ * <p>Each message is decoded once, whatever the number of callbacks of the route.
+ * A codec may be called from several threads at a time (websocket, dispatch
+ * executor, publishers), so it shouldn't keep state between calls.
+ * @param <T> type of the values
+ */
+public interface SpacebrewCodec<T> {
+
+	/**
+	 * Decode a value.
+	 * <br>The chars are a view on the frame received (or on a reused buffer):
+	 * they're only valid during the call, and needn't be turned into a String
+	 * to be parsed.
+	 * @param value {CharSequence} the value received
+	 * @return {T} the value decoded
+	 * @throws RuntimeException (e.g., IllegalArgumentException) if the value can't be decoded
+	 */
+	T decode(CharSequence value);
+
+	/**
+	 * Encode a value, as the text sent on the route.
+	 * @param value {T} the value to send
+	 * @param out {StringBuilder} where to append the text (reused from send to send)
+	 */
+	void encode(T value, StringBuilder out);
+}
@@ -0,0 +1,108 @@
+package lab.spacebrew;
+
+import java.util.List;
+
+/**
+ * Management interface of a Spacebrew client, as registered in JMX by
+ * <code>Spacebrew.registerMBean</code> (or read in-process through
+ * <code>Spacebrew.getMetrics</code>).
+ * <br>Counters are cumulative since the client was created.
+ */
+public interface SpacebrewMXBean {
+
+	/**
+	 * @return {String} name of client
+	 */
+	String getClientName();
+
+	boolean isConnected();
+
+	/**
+	 * @return {long} time spent connected, in ms
+	 */
+	long getConnectedMillis();
+
+	long getConnectAttempts();
+
+	long getReconnectCount();
+
+	/**
+	 * @return {long} connections closed because pings went unanswered (see Spacebrew.setHeartbeat)
+	 */
+	long getHeartbeatTimeouts();
+
+	/**
+	 * @return {long} errors reported by the websocket (I/O errors close it)
+	 */
+	long getConnectionErrors();
+
+	/**
+	 * @return {long} longest time it took to find a connection dead, in ms
+	 */
+	long getMaxDeadConnectionMillis();
+
+	/**
+	 * @return {long} messages sent (or queued, or journaled)
+	 */
+	long getMessagesSent();
+
+	long getBytesSent();
+
+	/**
+	 * @return {long} messages suppressed by the filters of the publish routes (see PublishFilter)
+	 */
+	long getMessagesSuppressed();
+
+	long getMessagesReceived();
+
+	long getBytesReceived();
+
+	int getSendQueueDepth();
+
+	/**
+	 * @return {long} messages dropped by the asynchronous send queue
+	 */
+	long getSendDrops();
+
+	/**
+	 * @return {long} messages refused by the asynchronous send queue
+	 */
+	long getSendRejections();
+
+	/**
+	 * @return {long} messages dropped by the dispatch queues
+	 */
+	long getDispatchDrops();
+
+	/**
+	 * @return {long} callbacks that threw an exception
+	 */
+	long getInvokeFailures();
+
+	int getJournalDepth();
+
+	/**
+	 * @return {LatencyStatistics} time from reception to delivery, all routes
+	 */
+	LatencyStatistics getDispatchLatency();
+
+	/**
+	 * @return {LatencyStatistics} time spent in callbacks, all routes
+	 */
+	LatencyStatistics getCallbackTime();
+
+	/**
+	 * @return {List} counters of each route
+	 */
+	List<RouteStatistics> getRoutes();
+
+	/**
+	 * @return {List} tracing statistics of the subscribed routes that received traced messages
+	 */
+	List<TraceStatistics> getTraces();
+
+	/**
+	 * @return {LatencyStatistics} round trip times measured by the probe (see Spacebrew.startProbe)
+	 */
+	LatencyStatistics getProbeRoundTrip();
+}
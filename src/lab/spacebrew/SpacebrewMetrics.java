@@ -0,0 +1,110 @@
+package lab.spacebrew;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The SpacebrewMXBean of a client: reads its counters, which are kept where
+ * they're updated (publish routes, subscriptions, queues), and aggregates them.
+ */
+final class SpacebrewMetrics implements SpacebrewMXBean {
+
+	private static final LatencyStatistics NONE = new LatencyStatistics(0, 0, 0, 0, 0, 0);
+
+	private final Spacebrew sb;
+
+	SpacebrewMetrics(Spacebrew sb) { this.sb = sb; }
+
+	@Override public String getClientName() { return sb.name; }
+
+	@Override public boolean isConnected() { return sb.connected(); }
+
+	@Override public long getConnectedMillis() { return sb.connectedMillis(); }
+
+	@Override public long getConnectAttempts() { return sb.getConnectAttempts(); }
+
+	@Override public long getReconnectCount() { return sb.getReconnectCount(); }
+
+	@Override public long getHeartbeatTimeouts() { return sb.getHeartbeatTimeouts(); }
+
+	@Override public long getConnectionErrors() { return sb.connectionErrors.get(); }
+
+	@Override public long getMaxDeadConnectionMillis() { return sb.getMaxDeadConnectionMillis(); }
+
+	@Override public long getMessagesSent() {
+		long n = sb.unroutedSent.get();
+		for(PublishRoute r : sb.publishRoutes()) { n += r.sent.get(); }
+		return n;
+	}
+
+	@Override public long getBytesSent() {
+		long n = sb.unroutedSentBytes.get();
+		for(PublishRoute r : sb.publishRoutes()) { n += r.sentBytes.get(); }
+		return n;
+	}
+
+	@Override public long getMessagesSuppressed() {
+		long n = 0;
+		for(PublishRoute r : sb.publishRoutes()) { n += r.getSuppressed(); }
+		return n;
+	}
+
+	@Override public long getMessagesReceived() {
+		long n = sb.unroutedReceived.get();
+		for(Subscription s : sb.subscriptions()) { n += s.stats.received.get(); }
+		return n;
+	}
+
+	@Override public long getBytesReceived() {
+		long n = sb.unroutedReceivedBytes.get();
+		for(Subscription s : sb.subscriptions()) { n += s.stats.receivedBytes.get(); }
+		return n;
+	}
+
+	@Override public int getSendQueueDepth() { return sb.getSendQueueDepth(); }
+
+	@Override public long getSendDrops() { return sb.getSendDrops(); }
+
+	@Override public long getSendRejections() { return sb.getSendRejections(); }
+
+	@Override public long getDispatchDrops() { return sb.getDispatchDrops(); }
+
+	@Override public long getInvokeFailures() { return sb.invokeFailures.get(); }
+
+	@Override public int getJournalDepth() { return sb.getJournalDepth(); }
+
+	@Override public LatencyStatistics getDispatchLatency() {
+		long[] totals = new long[LatencyHistogram.BUCKETS + 2];
+		sb.defaultLatency.addTo(totals);
+		for(Subscription s : sb.subscriptions()) {
+			if(s.stats.latency != null) { s.stats.latency.addTo(totals); }
+		}
+		return LatencyHistogram.statistics(totals);
+	}
+
+	@Override public LatencyStatistics getCallbackTime() {
+		long[] totals = new long[LatencyHistogram.BUCKETS + 2];
+		sb.defaultCallbackTime.addTo(totals);
+		for(Subscription s : sb.subscriptions()) {
+			if(s.stats.callbackTime != null) { s.stats.callbackTime.addTo(totals); }
+		}
+		return LatencyHistogram.statistics(totals);
+	}
+
+	@Override public List<RouteStatistics> getRoutes() {
+		List<RouteStatistics> routes = new ArrayList<RouteStatistics>();
+		for(PublishRoute r : sb.publishRoutes()) {
+			routes.add(new RouteStatistics(r.getName(), "publish", r.sent.get(), r.sentBytes.get(), NONE, NONE));
+		}
+		for(Subscription s : sb.subscriptions()) {
+			routes.add(new RouteStatistics(s.name, "subscribe", s.stats.received.get(), s.stats.receivedBytes.get(),
+					s.stats.latency != null ? s.stats.latency.statistics() : NONE,
+					s.stats.callbackTime != null ? s.stats.callbackTime.statistics() : NONE));
+		}
+		return routes;
+	}
+
+	@Override public List<TraceStatistics> getTraces() { return sb.getTraceStatistics(); }
+
+	@Override public LatencyStatistics getProbeRoundTrip() { return sb.getProbeRoundTrip(); }
+}
@@ -0,0 +1,661 @@
+package lab.spacebrew;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketAdapter;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.framing.CloseFrame;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Embeddable Spacebrew server: clients connect to it as to the Node.js server,
+ * send their config, and the messages of their publish routes are forwarded to
+ * the subscribe routes they're routed to, e.g.:
+ * <br><code>SpacebrewServer server = new SpacebrewServer(9000);</code>
+ * <br><code>server.addRoute("sensor", "level", "display", "level", "range");</code>
+ * <br><code>server.start();</code>
+ * <p>Routes are set with <code>addRoute</code>, or by the route messages of
+ * the Spacebrew protocol (<code>{"route":{"type":"add","publisher":{...},"subscriber":{...}}}</code>);
+ * they're kept when clients disconnect, and apply again when they come back.
+ * With <code>setAutoRoute(true)</code>, every publish route is also routed to
+ * the subscribe routes of the same name and type, which is handy for tests.
+ * <br>Several clients can share one websocket (see SharedConnection), and the
+ * compact wire mode (see <code>Spacebrew.setCompact</code>) is acknowledged.
+ * Tracing metadata of messages (see <code>Spacebrew.setTracing</code>) is forwarded.
+ * Of the admin protocol, only route messages are pushed to admin connections
+ * (e.g., for SharedConnection.setLoopback): one per publish route and
+ * subscribe route linked, as links come and go, configs aren't.
+ * <p>The websocket server runs a selector thread and a pool of worker threads;
+ * messages are routed on the worker thread of their connection: the route is
+ * resolved from the frame without allocating (by client and route name), its
+ * subscribers are read from an array swapped when routes change (no lock), and
+ * each subscriber's frame is encoded from a template rendered when it registered.
+ */
+public class SpacebrewServer {
+
+	/**
+	 * How loud to be (mute debug messages)
+	 * @type {Boolean}
+	 */
+	public boolean verbose = false;
+
+	private static final Route[] NO_ROUTES = new Route[0];
+
+	private static final ThreadLocal<Inbound> INBOUND = new ThreadLocal<Inbound>() {
+		@Override protected Inbound initialValue() { return new Inbound(); }
+	};
+
+	private final WsServer wsServer;
+	private boolean started = false;
+	private boolean autoRoute = false;
+
+	// route table (guarded by this): live routes by "client\nname\ntype" and by "name\ntype", routes between keys
+	private final HashMap<String, ArrayList<Route>> publishers = new HashMap<String, ArrayList<Route>>();
+	private final HashMap<String, ArrayList<Route>> subscribers = new HashMap<String, ArrayList<Route>>();
+	private final HashMap<String, ArrayList<Route>> publishersByName = new HashMap<String, ArrayList<Route>>();
+	private final HashMap<String, ArrayList<Route>> subscribersByName = new HashMap<String, ArrayList<Route>>();
+	private final HashMap<String, HashSet<String>> routes = new HashMap<String, HashSet<String>>(); // subscriber keys of each publisher key
+	private final HashMap<String, HashSet<String>> routedFrom = new HashMap<String, HashSet<String>>(); // publisher keys of each subscriber key
+	private int clientCount = 0;
+	private final ArrayList<Connection> admins = new ArrayList<Connection>();
+
+	private final AtomicLong received = new AtomicLong(), delivered = new AtomicLong();
+
+	/**
+	 * Setup a server listening on all interfaces (started by <code>start</code>).
+	 * @param port {int} port to listen to (Spacebrew's default: 9000)
+	 */
+	public SpacebrewServer(int port) { this(new InetSocketAddress(port)); }
+
+	/**
+	 * Setup a server (started by <code>start</code>).
+	 * @param address {InetSocketAddress} address to listen to
+	 */
+	public SpacebrewServer(InetSocketAddress address) { wsServer = new WsServer(this, address); }
+
+	/**
+	 * Start listening, on a thread of its own.
+	 */
+	public synchronized void start() {
+		if(started) { return; }
+		started = true;
+		wsServer.start();
+		if(verbose) { System.out.println("[server] listening on port " + wsServer.getPort()); }
+	}
+
+	/**
+	 * Close the connections and stop listening.
+	 */
+	public void stop() {
+		try {
+			wsServer.stop();
+		} catch(Exception e) {
+			System.err.println("[server] " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return {int} port the server listens to
+	 */
+	public int getPort() { return wsServer.getPort(); }
+
+	/**
+	 * Route each publish route to the subscribe routes of the same name and type,
+	 * of any client (including its own), besides the routes added.
+	 * @param auto {boolean} true to route by name (default: false)
+	 */
+	public synchronized void setAutoRoute(boolean auto) {
+		autoRoute = auto;
+		for(ArrayList<Route> list : publishers.values()) {
+			for(Route p : list) { relink(p); }
+		}
+	}
+
+	public synchronized boolean isAutoRoute() { return autoRoute; }
+
+	/**
+	 * Route a publish route to a subscribe route (the clients needn't be connected yet).
+	 * @param publisherClient {String} name of the publishing client
+	 * @param publisherName {String} name of its publish route
+	 * @param subscriberClient {String} name of the subscribing client
+	 * @param subscriberName {String} name of its subscribe route
+	 * @param type {String} type of both routes
+	 */
+	public synchronized void addRoute(String publisherClient, String publisherName, String subscriberClient, String subscriberName, String type) {
+		String pk = key(publisherClient, publisherName, type), sk = key(subscriberClient, subscriberName, type);
+		if(!keys(routes, pk).add(sk)) { return; }
+		keys(routedFrom, sk).add(pk);
+		relink(publishers.get(pk));
+		if(verbose) { System.out.println("[server] route added: " + publisherClient + "/" + publisherName + " -> " + subscriberClient + "/" + subscriberName); }
+	}
+
+	/**
+	 * Remove a route added by <code>addRoute</code> (or a route message).
+	 */
+	public synchronized void removeRoute(String publisherClient, String publisherName, String subscriberClient, String subscriberName, String type) {
+		String pk = key(publisherClient, publisherName, type), sk = key(subscriberClient, subscriberName, type);
+		HashSet<String> s = routes.get(pk);
+		if(s == null || !s.remove(sk)) { return; }
+		if(s.isEmpty()) { routes.remove(pk); }
+		HashSet<String> p = routedFrom.get(sk);
+		p.remove(pk);
+		if(p.isEmpty()) { routedFrom.remove(sk); }
+		relink(publishers.get(pk));
+		if(verbose) { System.out.println("[server] route removed: " + publisherClient + "/" + publisherName + " -> " + subscriberClient + "/" + subscriberName); }
+	}
+
+	/**
+	 * @return {int} number of clients registered (clients sharing a websocket count one each)
+	 */
+	public synchronized int getClientCount() { return clientCount; }
+
+	/**
+	 * @return {long} messages received from publishers
+	 */
+	public long getMessagesReceived() { return received.get(); }
+
+	/**
+	 * @return {long} messages forwarded to subscribers
+	 */
+	public long getMessagesDelivered() { return delivered.get(); }
+
+	/**
+	 * Close the connections, and keep listening: clients reconnect as after a
+	 * network failure (e.g., to test reconnection under load).
+	 */
+	void closeConnections() {
+		WebSocket[] connections;
+		synchronized(wsServer.connections()) { connections = wsServer.connections().toArray(new WebSocket[0]); }
+		for(WebSocket c : connections) { c.close(CloseFrame.GOING_AWAY); }
+	}
+
+	// --- websocket callbacks (WsServer)
+
+	void onClose(Connection c) {
+		synchronized(this) {
+			for(Client client : c.all) {
+				unregister(client);
+				clientCount--;
+			}
+			c.all.clear();
+			admins.remove(c);
+			c.clients = NameIndex.empty();
+			c.single = null;
+		}
+		if(verbose) { System.out.println("[server] connection closed " + c.getRemoteSocketAddress()); }
+	}
+
+	void onMessage(Connection c, String message) {
+		Inbound in = INBOUND.get();
+		FrameDecoder f = in.decoder;
+		if(f.decode(message)) {
+			publish(c, f, in);
+			return;
+		}
+		try {
+			JSONObject o = new JSONObject(message);
+			if(o.has("config")) { configure(c, o.getJSONObject("config")); }
+			else if(o.has("route")) { route(o.getJSONObject("route")); }
+			else if(o.has("admin")) { admin(c); }
+			else if(o.has("message") && f.decode(o.toString())) { publish(c, f, in); }
+			else if(verbose) { System.out.println("[server] ignoring message " + message); }
+		} catch(RuntimeException e) {
+			System.err.println("[server] can't handle message: " + message);
+		}
+	}
+
+	void onMessage(Connection c, ByteBuffer frame) {
+		Client client = c.single;
+		if(client == null || !c.compact) { return; }
+		Inbound in = INBOUND.get();
+		try {
+			byte kind = frame.get();
+			in.traced = false;
+			if((kind & Trace.TRACED) != 0) {
+				int at = Trace.trailer(frame);
+				in.trace(Trace.source(frame, at), Trace.seq(frame, at), Trace.micros(frame, at));
+				frame.limit(at);
+				kind &= ~Trace.TRACED;
+			}
+			int id = CompactCodec.varint(frame);
+			Route[] p = client.publishes;
+			if(id >= p.length) { return; }
+			if(kind == CompactCodec.RANGE) { in.set(CompactCodec.range(frame)); }
+			else if(kind == CompactCodec.BOOLEAN) { in.set(frame.get() != 0); }
+			else if(kind == CompactCodec.STRING) { in.set(CompactCodec.string(frame)); }
+			else { return; }
+			fanOut(p[id], in);
+		} catch(RuntimeException e) { // truncated frame
+			System.err.println("[server] can't parse binary message: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Forward a message decoded from JSON.
+	 */
+	private void publish(Connection c, FrameDecoder f, Inbound in) {
+		Client client = c.clients.get(f.clientName());
+		if(client == null) { client = c.single; }
+		Route r = (client != null) ? client.publisher(f) : null;
+		if(r == null) {
+			if(verbose) { System.out.println("[server] ignoring message of unknown route " + f.name()); }
+			return;
+		}
+		in.setJson();
+		in.traced = f.traced();
+		if(in.traced) { in.trace(f.traceSource(), f.traceSeq(), f.traceMicros()); }
+		fanOut(r, in);
+	}
+
+	private void fanOut(Route from, Inbound in) {
+		received.incrementAndGet();
+		Route[] targets = from.targets;
+		int n = 0;
+		for(int i = 0; i < targets.length; i++) {
+			Route t = targets[i];
+			Connection c = t.client.connection;
+			try {
+				FrameEncoder e;
+				if(c.compact) {
+					if(t.typeCode == FrameDecoder.RANGE) { e = CompactCodec.encode(t.index, in.range()); }
+					else if(t.typeCode == FrameDecoder.BOOLEAN) { e = CompactCodec.encode(t.index, in.bool()); }
+					else { e = CompactCodec.encode(t.index, in.text()); }
+				} else if(in.json) {
+					e = t.template.encode(in.decoder.value());
+				} else {
+					if(t.typeCode == FrameDecoder.RANGE) { e = t.template.encode(in.range()); }
+					else if(t.typeCode == FrameDecoder.BOOLEAN) { e = t.template.encode(in.bool()); }
+					else { e = t.template.encode(in.text()); }
+				}
+				if(in.traced) { Trace.stamp(e, in.traceSource, in.traceSeq, in.traceMicros); }
+				c.sendFrame(e.frame());
+				n++;
+			} catch(RuntimeException e) { // bad value for the type (compact), or connection closed meanwhile
+				if(verbose) { System.out.println("[server] can't forward to " + t.client.name + "/" + t.name + ": " + e); }
+			}
+		}
+		if(n > 0) { delivered.addAndGet(n); }
+	}
+
+	/**
+	 * Register (or register again) a client from its config.
+	 */
+	private void configure(Connection c, JSONObject config) {
+		String name = config.getString("name");
+		Client client = new Client(c, name);
+		client.publishes = routes(client, config, "publish", false);
+		client.subscribes = routes(client, config, "subscribe", true);
+		NameIndex<Route> byName = NameIndex.empty();
+		for(int i = client.publishes.length - 1; i >= 0; i--) { // chained by name, first registration first
+			Route r = client.publishes[i];
+			r.next = byName.get(r.name);
+			byName = byName.with(r.name, r);
+		}
+		client.byName = byName;
+
+		boolean compact;
+		synchronized(this) {
+			Client previous = c.clients.get(name);
+			if(previous != null) {
+				unregister(previous);
+				c.all.remove(previous);
+			} else {
+				clientCount++;
+			}
+			c.all.add(client);
+			c.clients = c.clients.with(name, client);
+			c.single = (c.all.size() == 1) ? client : null;
+			compact = c.single != null && config.has("compact") && config.optInt("compact", 0) == CompactCodec.VERSION;
+			c.compact = compact;
+			register(client);
+		}
+		if(compact) { c.send("{\"compact\":" + CompactCodec.VERSION + "}"); }
+		if(verbose) { System.out.println("[server] client configured: " + name); }
+	}
+
+	private static Route[] routes(Client client, JSONObject config, String direction, boolean subscribe) {
+		// (json4processing's opt methods complain about missing keys)
+		JSONObject list = config.has(direction) ? config.optJSONObject(direction) : null;
+		JSONArray messages = (list != null && list.has("messages")) ? list.optJSONArray("messages") : null;
+		if(messages == null) { return NO_ROUTES; }
+		Route[] r = new Route[messages.length()];
+		for(int i = 0; i < r.length; i++) {
+			JSONObject m = messages.optJSONObject(i);
+			if(m == null) { throw new IllegalArgumentException("bad route in config"); }
+			r[i] = new Route(client, m.getString("name"), m.getString("type").toLowerCase(), i, subscribe);
+		}
+		return r;
+	}
+
+	/**
+	 * Handle a route message: <code>{"type":"add"|"remove","publisher":{...},"subscriber":{...}}</code>.
+	 */
+	private void route(JSONObject route) {
+		JSONObject p = route.getJSONObject("publisher"), s = route.getJSONObject("subscriber");
+		String type = p.getString("type").toLowerCase();
+		if(!type.equals(s.getString("type").toLowerCase())) {
+			System.err.println("[server] can't route " + p.getString("name") + " to a route of another type");
+			return;
+		}
+		String op = route.getString("type");
+		if(op.equals("add")) { addRoute(p.getString("clientName"), p.getString("name"), s.getString("clientName"), s.getString("name"), type); }
+		else if(op.equals("remove")) { removeRoute(p.getString("clientName"), p.getString("name"), s.getString("clientName"), s.getString("name"), type); }
+	}
+
+	// --- route table (synchronized)
+
+	private void register(Client client) {
+		LinkedHashSet<Route> stale = new LinkedHashSet<Route>();
+		for(Route r : client.publishes) {
+			list(publishers, r.key).add(r);
+			list(publishersByName, r.nameKey).add(r);
+			stale.add(r);
+		}
+		for(Route r : client.subscribes) {
+			list(subscribers, r.key).add(r);
+			list(subscribersByName, r.nameKey).add(r);
+			publishersOf(r, stale);
+		}
+		for(Route p : stale) { relink(p); }
+	}
+
+	private void unregister(Client client) {
+		LinkedHashSet<Route> stale = new LinkedHashSet<Route>();
+		for(Route r : client.publishes) {
+			unlist(publishers, r.key, r);
+			unlist(publishersByName, r.nameKey, r);
+			link(r, NO_ROUTES);
+		}
+		for(Route r : client.subscribes) {
+			unlist(subscribers, r.key, r);
+			unlist(subscribersByName, r.nameKey, r);
+			publishersOf(r, stale);
+		}
+		for(Route p : stale) { relink(p); }
+	}
+
+	/**
+	 * Add the live publish routes that may be routed to a subscribe route.
+	 */
+	private void publishersOf(Route subscriber, LinkedHashSet<Route> result) {
+		HashSet<String> keys = routedFrom.get(subscriber.key);
+		if(keys != null) {
+			for(String k : keys) {
+				ArrayList<Route> p = publishers.get(k);
+				if(p != null) { result.addAll(p); }
+			}
+		}
+		if(autoRoute) {
+			ArrayList<Route> p = publishersByName.get(subscriber.nameKey);
+			if(p != null) { result.addAll(p); }
+		}
+	}
+
+	private void relink(ArrayList<Route> list) {
+		if(list == null) { return; }
+		for(Route p : list) { relink(p); }
+	}
+
+	/**
+	 * Compute the subscribers of a publish route (read without lock by fanOut).
+	 */
+	private void relink(Route publisher) {
+		LinkedHashSet<Route> targets = new LinkedHashSet<Route>();
+		HashSet<String> keys = routes.get(publisher.key);
+		if(keys != null) {
+			for(String k : keys) {
+				ArrayList<Route> s = subscribers.get(k);
+				if(s != null) { targets.addAll(s); }
+			}
+		}
+		if(autoRoute) {
+			ArrayList<Route> s = subscribersByName.get(publisher.nameKey);
+			if(s != null) { targets.addAll(s); }
+		}
+		link(publisher, targets.isEmpty() ? NO_ROUTES : targets.toArray(new Route[targets.size()]));
+	}
+
+	/**
+	 * Set the subscribers of a publish route, and tell the admins about the links added and removed.
+	 */
+	private void link(Route publisher, Route[] targets) {
+		Route[] previous = publisher.targets;
+		publisher.targets = targets;
+		if(admins.isEmpty()) { return; }
+		for(Route t : previous) {
+			if(!contains(targets, t)) { tellAdmins(linkMessage("remove", publisher, t)); }
+		}
+		for(Route t : targets) {
+			if(!contains(previous, t)) { tellAdmins(linkMessage("add", publisher, t)); }
+		}
+	}
+
+	/**
+	 * Register an admin connection, and send it the links of the publish routes.
+	 */
+	private synchronized void admin(Connection c) {
+		if(admins.contains(c)) { return; }
+		admins.add(c);
+		for(ArrayList<Route> list : publishers.values()) {
+			for(Route p : list) {
+				for(Route t : p.targets) { c.send(linkMessage("add", p, t)); }
+			}
+		}
+		if(verbose) { System.out.println("[server] admin connected " + c.getRemoteSocketAddress()); }
+	}
+
+	private void tellAdmins(String message) {
+		for(int i = 0; i < admins.size(); i++) {
+			try {
+				admins.get(i).send(message);
+			} catch(RuntimeException e) {} // closing: removed by onClose
+		}
+	}
+
+	private static String linkMessage(String op, Route publisher, Route subscriber) {
+		JSONObject route = new JSONObject();
+		route.put("type", op);
+		route.put("publisher", endpoint(publisher));
+		route.put("subscriber", endpoint(subscriber));
+		JSONObject m = new JSONObject();
+		m.put("route", route);
+		return m.toString();
+	}
+
+	private static JSONObject endpoint(Route r) {
+		JSONObject o = new JSONObject();
+		o.put("clientName", r.client.name);
+		o.put("name", r.name);
+		o.put("type", r.type);
+		InetSocketAddress a = r.client.connection.getRemoteSocketAddress();
+		o.put("remoteAddress", (a != null && a.getAddress() != null) ? a.getAddress().getHostAddress() : "");
+		return o;
+	}
+
+	private static boolean contains(Route[] a, Route r) {
+		for(int i = 0; i < a.length; i++) {
+			if(a[i] == r) { return true; }
+		}
+		return false;
+	}
+
+	private static String key(String client, String name, String type) { return client + "\n" + name + "\n" + type; }
+
+	private static ArrayList<Route> list(HashMap<String, ArrayList<Route>> m, String key) {
+		ArrayList<Route> l = m.get(key);
+		if(l == null) { m.put(key, l = new ArrayList<Route>(1)); }
+		return l;
+	}
+
+	private static void unlist(HashMap<String, ArrayList<Route>> m, String key, Route r) {
+		ArrayList<Route> l = m.get(key);
+		if(l == null) { return; }
+		l.remove(r);
+		if(l.isEmpty()) { m.remove(key); }
+	}
+
+	private static HashSet<String> keys(HashMap<String, HashSet<String>> m, String key) {
+		HashSet<String> s = m.get(key);
+		if(s == null) { m.put(key, s = new HashSet<String>()); }
+		return s;
+	}
+
+	/**
+	 * A websocket accepted by the server, with the clients registered on it.
+	 */
+	static final class Connection extends WebSocketImpl {
+		volatile NameIndex<Client> clients = NameIndex.empty(); // by client name
+		volatile Client single; // the client, when it's alone on the websocket
+		volatile boolean compact; // messages to the single client go in the compact wire mode
+		final ArrayList<Client> all = new ArrayList<Client>(1); // guarded by the server
+
+		Connection(WebSocketAdapter listener, Draft draft, Socket socket) { super(listener, draft, socket); }
+
+		Connection(WebSocketAdapter listener, List<Draft> drafts, Socket socket) { super(listener, drafts, socket); }
+	}
+
+	/**
+	 * A client, as registered by its config.
+	 */
+	static final class Client {
+		final Connection connection;
+		final String name;
+		Route[] publishes, subscribes; // in config order (the ids of the compact mode)
+		NameIndex<Route> byName; // publish routes, chained by name
+
+		Client(Connection connection, String name) {
+			this.connection = connection;
+			this.name = name;
+		}
+
+		/**
+		 * @return {Route} the publish route of a message, or null
+		 */
+		Route publisher(FrameDecoder f) {
+			Route r = byName.get(f.name());
+			if(r == null || r.next == null) { return (r != null && r.accepts(f)) ? r : null; }
+			for(; r != null; r = r.next) {
+				if(r.accepts(f)) { return r; }
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * A publish or subscribe route of a client.
+	 */
+	static final class Route {
+		final Client client;
+		final String name, type, key, nameKey;
+		final int index, typeCode;
+		final FrameTemplate template; // subscribe routes: frame of the messages forwarded to it
+		Route next; // publish route of the same name (and another type)
+		volatile Route[] targets = NO_ROUTES; // publish routes: subscribers
+
+		Route(Client client, String name, String type, int index, boolean subscribe) {
+			this.client = client;
+			this.name = name;
+			this.type = type;
+			this.index = index;
+			key = key(client.name, name, type);
+			nameKey = name + "\n" + type;
+			typeCode = type.equals("range") ? FrameDecoder.RANGE : type.equals("boolean") ? FrameDecoder.BOOLEAN
+					: type.equals("string") ? FrameDecoder.STRING : FrameDecoder.OTHER;
+			template = subscribe ? new FrameTemplate(client.name, name, type) : null;
+		}
+
+		boolean accepts(FrameDecoder f) {
+			int code = f.typeCode();
+			if(typeCode != FrameDecoder.OTHER) { return code == typeCode; }
+			return code == FrameDecoder.OTHER && type.equals(f.type());
+		}
+	}
+
+	/**
+	 * The value of the message being routed, on a worker thread: in the frame
+	 * decoder (JSON), or decoded from a compact frame; converted on demand.
+	 */
+	private static final class Inbound {
+		final FrameDecoder decoder = new FrameDecoder();
+		boolean json;
+		boolean traced; // tracing metadata, forwarded as is
+		int traceSource;
+		long traceSeq, traceMicros;
+		private boolean parsed; // range holds the value (JSON and string values are parsed when a target needs a number)
+		private int range;
+		private boolean bool; // range holds a boolean
+		private String text; // string value of a compact message, or null
+
+		void trace(int source, long seq, long micros) {
+			traced = true;
+			traceSource = source;
+			traceSeq = seq;
+			traceMicros = micros;
+		}
+
+		void setJson() {
+			json = true;
+			parsed = false;
+			text = null;
+		}
+
+		void set(int value) {
+			json = false;
+			parsed = true;
+			range = value;
+			bool = false;
+			text = null;
+		}
+
+		void set(boolean value) {
+			set(value ? 1 : 0);
+			bool = true;
+		}
+
+		void set(String value) {
+			json = false;
+			parsed = false;
+			text = value;
+		}
+
+		/**
+		 * @throws NumberFormatException if the value isn't a number
+		 */
+		int range() {
+			if(!parsed) {
+				range = json ? decoder.rangeValue() : (int)Double.parseDouble(text.trim());
+				parsed = true;
+			}
+			return range;
+		}
+
+		/**
+		 * @throws IllegalArgumentException if the value isn't a boolean
+		 */
+		boolean bool() {
+			if(json) { return decoder.booleanValue(); }
+			if(text == null) { return range != 0; }
+			String v = text.trim();
+			if(v.equalsIgnoreCase("true")) { return true; }
+			if(v.equalsIgnoreCase("false")) { return false; }
+			throw new IllegalArgumentException("not a boolean: " + text);
+		}
+
+		CharSequence text() {
+			if(json) { return decoder.value(); }
+			if(text != null) { return text; }
+			return bool ? Boolean.toString(range != 0) : Integer.toString(range);
+		}
+	}
+}
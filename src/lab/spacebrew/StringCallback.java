@@ -0,0 +1,13 @@
+package lab.spacebrew;
+
+/**
+ * Callback for a string subscription (see <code>Spacebrew.subscribeString</code>).
+ */
+public interface StringCallback {
+
+	/**
+	 * Called for each string message received on the route.
+	 * @param value {String} the value received
+	 */
+	void accept(String value);
+}
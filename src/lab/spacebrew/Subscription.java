@@ -0,0 +1,115 @@
+package lab.spacebrew;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatch table entry of a subscribed route: the callbacks registered
+ * for each type, kept in primitive-specialized arrays so that dispatching
+ * a range or boolean value never boxes it.
+ * <br>An entry is immutable: adding a callback makes a new entry (sharing the
+ * statistics of the route), swapped into the RouteTable of the client.
+ */
+final class Subscription {
+
+	private static final RangeCallback[] NO_RANGE = new RangeCallback[0];
+	private static final BooleanCallback[] NO_BOOLEAN = new BooleanCallback[0];
+	private static final StringCallback[] NO_STRING = new StringCallback[0];
+	private static final CustomCallback[] NO_CUSTOM = new CustomCallback[0];
+	private static final ObjectCallback<?>[] NO_OBJECT = new ObjectCallback<?>[0];
+
+	/**
+	 * Counters and queue of a route, shared by all the versions of its entry.
+	 */
+	static final class Stats {
+		final AtomicLong received = new AtomicLong(), receivedBytes = new AtomicLong();
+		volatile LatencyHistogram latency, callbackTime; // created on first delivery
+		volatile RouteTrace trace; // created on the first traced message (see Spacebrew.setTracing)
+
+		/**
+		 * Messages waiting for the dispatch executor (created on first use)
+		 * @type {DispatchQueue}
+		 */
+		volatile DispatchQueue queue;
+	}
+
+	/**
+	 * Name of route
+	 * @type {String}
+	 */
+	final String name;
+
+	final RangeCallback[] ranges;
+	final BooleanCallback[] booleans;
+	final StringCallback[] strings;
+	private final HashMap<String, CustomCallback[]> customs; // not modified once the entry is built
+	private final HashMap<String, ObjectCallback<?>[]> objects; // values decoded by a codec, idem
+
+	final Stats stats;
+
+	Subscription(String name) {
+		this(name, NO_RANGE, NO_BOOLEAN, NO_STRING, new HashMap<String, CustomCallback[]>(), new HashMap<String, ObjectCallback<?>[]>(), new Stats());
+	}
+
+	private Subscription(String name, RangeCallback[] ranges, BooleanCallback[] booleans, StringCallback[] strings,
+			HashMap<String, CustomCallback[]> customs, HashMap<String, ObjectCallback<?>[]> objects, Stats stats) {
+		this.name = name;
+		this.ranges = ranges;
+		this.booleans = booleans;
+		this.strings = strings;
+		this.customs = customs;
+		this.objects = objects;
+		this.stats = stats;
+	}
+
+	Subscription withRange(RangeCallback callback) {
+		return new Subscription(name, append(ranges, callback), booleans, strings, customs, objects, stats);
+	}
+
+	Subscription withBoolean(BooleanCallback callback) {
+		return new Subscription(name, ranges, append(booleans, callback), strings, customs, objects, stats);
+	}
+
+	Subscription withString(StringCallback callback) {
+		return new Subscription(name, ranges, booleans, append(strings, callback), customs, objects, stats);
+	}
+
+	Subscription withCustom(String type, CustomCallback callback) {
+		HashMap<String, CustomCallback[]> c = new HashMap<String, CustomCallback[]>(customs);
+		c.put(type, append(customs(type), callback));
+		return new Subscription(name, ranges, booleans, strings, c, objects, stats);
+	}
+
+	Subscription withObject(String type, ObjectCallback<?> callback) {
+		HashMap<String, ObjectCallback<?>[]> o = new HashMap<String, ObjectCallback<?>[]>(objects);
+		o.put(type, append(objects(type), callback));
+		return new Subscription(name, ranges, booleans, strings, customs, o, stats);
+	}
+
+	private static <T> T[] append(T[] a, T callback) {
+		T[] b = Arrays.copyOf(a, a.length + 1);
+		b[a.length] = callback;
+		return b;
+	}
+
+	/**
+	 * Get the callbacks of a custom type.
+	 * @param type {String} type of route
+	 * @return {CustomCallback[]} the callbacks (possibly empty, never null)
+	 */
+	CustomCallback[] customs(String type) {
+		CustomCallback[] a = customs.get(type);
+		return a == null ? NO_CUSTOM : a;
+	}
+
+	/**
+	 * Get the callbacks of a custom type taking decoded values.
+	 * @param type {String} type of route
+	 * @return {ObjectCallback[]} the callbacks (possibly empty, never null)
+	 */
+	ObjectCallback<?>[] objects(String type) {
+		ObjectCallback<?>[] a = objects.get(type);
+		return a == null ? NO_OBJECT : a;
+	}
+}
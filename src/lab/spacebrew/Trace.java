@@ -0,0 +1,68 @@
+package lab.spacebrew;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tracing metadata of a message (see <code>Spacebrew.setTracing</code>): the
+ * source (a random id of the publish route), the sequence number of the message
+ * on its route, and the time it was sent, in microseconds.
+ * <br>In JSON, it's a member of the message, after the value:
+ * <br><code>{"message":{...,"value":"512","trace":[source,seq,micros]}}</code>
+ * <br>which servers and clients that don't know it skip (or drop, when they
+ * rebuild the message). In the compact encoding, the kind byte has the TRACED
+ * bit set and the frame ends with a fixed size trailer: 4 bytes of source, 8 of
+ * sequence number and 8 of time.
+ * <br>Times come from a clock that is monotonic within a JVM and anchored to
+ * the wall clock when the JVM loads this class, so one-way latencies between
+ * processes are as accurate as their clocks are in sync (and to the
+ * millisecond at best).
+ */
+final class Trace {
+
+	static final int TRACED = 0x40; // bit of the kind byte of a compact frame
+	static final int TRAILER = 20; // bytes
+
+	private static final byte[] JSON = { ',', '"', 't', 'r', 'a', 'c', 'e', '"', ':', '[' };
+	private static final long WALL = System.currentTimeMillis() * 1000, MONOTONIC = System.nanoTime();
+
+	private Trace() {}
+
+	/**
+	 * @return {long} the current time, in microseconds since the epoch (see above)
+	 */
+	static long now() { return WALL + (System.nanoTime() - MONOTONIC) / 1000; }
+
+	/**
+	 * Add tracing metadata to the message encoded in a buffer, JSON or compact.
+	 */
+	static void stamp(FrameEncoder e, int source, long seq, long micros) {
+		int n = e.length();
+		if(n == 0) { return; }
+		if(e.byteAt(0) != '{') { // compact
+			e.setByte(0, e.byteAt(0) | TRACED);
+			e.putFixed(source, 4).putFixed(seq, 8).putFixed(micros, 8);
+		} else if(n >= 2 && e.byteAt(n - 1) == '}' && e.byteAt(n - 2) == '}') {
+			e.truncate(n - 2).put(JSON).put((long)source).putByte(',').put(seq).putByte(',').put(micros).putByte(']').putByte('}').putByte('}');
+		}
+	}
+
+	/**
+	 * Find the trailer of a compact frame whose kind byte has the TRACED bit, to
+	 * be read with <code>source</code>, <code>seq</code> and <code>micros</code>,
+	 * and then taken off the frame (setting its limit), so the value ends where it should.
+	 * @param frame {ByteBuffer} the frame, positioned anywhere before the trailer
+	 * @return {int} position of the trailer
+	 * @throws IllegalArgumentException if the frame is too short
+	 */
+	static int trailer(ByteBuffer frame) {
+		int at = frame.limit() - TRAILER;
+		if(at < frame.position()) { throw new IllegalArgumentException("truncated frame"); }
+		return at;
+	}
+
+	static int source(ByteBuffer frame, int at) { return frame.getInt(at); }
+
+	static long seq(ByteBuffer frame, int at) { return frame.getLong(at + 4); }
+
+	static long micros(ByteBuffer frame, int at) { return frame.getLong(at + 12); }
+}
@@ -0,0 +1,54 @@
+package lab.spacebrew;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Snapshot of the tracing statistics of a subscribed route (see
+ * <code>Spacebrew.setTracing</code>): traced messages received, their one-way
+ * latency from the publisher, and the messages missing or out of order
+ * according to the sequence numbers of their routes.
+ */
+public final class TraceStatistics {
+
+	private final String name;
+	private final long messages, gaps, reordered;
+	private final LatencyStatistics latency;
+
+	@ConstructorProperties({ "name", "messages", "latency", "gaps", "reordered" })
+	public TraceStatistics(String name, long messages, LatencyStatistics latency, long gaps, long reordered) {
+		this.name = name;
+		this.messages = messages;
+		this.latency = latency;
+		this.gaps = gaps;
+		this.reordered = reordered;
+	}
+
+	/**
+	 * @return {String} name of route
+	 */
+	public String getName() { return name; }
+
+	/**
+	 * @return {long} traced messages received
+	 */
+	public long getMessages() { return messages; }
+
+	/**
+	 * @return {LatencyStatistics} time from send (by the publisher) to reception
+	 */
+	public LatencyStatistics getLatency() { return latency; }
+
+	/**
+	 * @return {long} messages missing: skipped by the sequence numbers, and not received late
+	 */
+	public long getGaps() { return gaps; }
+
+	/**
+	 * @return {long} messages received after a later message of their route
+	 */
+	public long getReordered() { return reordered; }
+
+	@Override public String toString() {
+		return name + ": " + messages + " traced, " + gaps + " missing, " + reordered + " reordered; latency " + latency;
+	}
+}
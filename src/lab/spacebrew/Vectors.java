@@ -0,0 +1,196 @@
+package lab.spacebrew;
+
+/**
+ * Numeric vector values: numbers separated by commas, e.g. "320,240" on a
+ * route of type "x,y", which is how custom types usually carry coordinates
+ * and sensor readings.
+ * <br>Values are parsed straight from the chars of the frame into arrays that
+ * are reused from message to message (see the readers), so streaming vectors
+ * allocates nothing; they're encoded by FrameEncoder.putList.
+ */
+final class Vectors {
+
+	private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 }; // exact doubles
+
+	private Vectors() {}
+
+	/**
+	 * @return {int} number of values: commas + 1, or 0 if the value is blank
+	 */
+	static int count(CharSequence s) {
+		int n = 1;
+		boolean blank = true;
+		for(int i = 0, len = s.length(); i < len; i++) {
+			char c = s.charAt(i);
+			if(c == ',') { n++; }
+			else if(c != ' ') { blank = false; }
+		}
+		return (blank && n == 1) ? 0 : n;
+	}
+
+	/**
+	 * @return {int} end of the value starting at start (the next comma, or the end of s)
+	 */
+	static int end(CharSequence s, int start) {
+		int len = s.length();
+		while(start < len && s.charAt(start) != ',') { start++; }
+		return start;
+	}
+
+	/**
+	 * Parse a number, without allocating when it has at most 18 significant
+	 * digits and a power of ten up to 22 (else Double.parseDouble does it).
+	 * @throws NumberFormatException if it isn't a number
+	 */
+	static double parse(CharSequence s, int start, int end) {
+		while(start < end && s.charAt(start) == ' ') { start++; }
+		while(end > start && s.charAt(end - 1) == ' ') { end--; }
+		int i = start;
+		boolean negative = false;
+		if(i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) { negative = s.charAt(i++) == '-'; }
+		long mantissa = 0;
+		int digits = 0, exponent = 0;
+		boolean any = false;
+		for(; i < end; i++) {
+			char c = s.charAt(i);
+			if(c == '.') { break; }
+			if(c < '0' || c > '9') { break; }
+			any = true;
+			if(mantissa != 0 || c != '0') { digits++; }
+			if(digits > 18) { return slow(s, start, end); }
+			mantissa = mantissa * 10 + (c - '0');
+		}
+		if(i < end && s.charAt(i) == '.') {
+			for(i++; i < end; i++) {
+				char c = s.charAt(i);
+				if(c < '0' || c > '9') { break; }
+				any = true;
+				if(mantissa != 0 || c != '0') { digits++; }
+				if(digits > 18) { return slow(s, start, end); }
+				mantissa = mantissa * 10 + (c - '0');
+				exponent--;
+			}
+		}
+		if(!any) { return slow(s, start, end); } // e.g., NaN, or not a number
+		if(i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+			boolean negativeExponent = false;
+			if(++i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) { negativeExponent = s.charAt(i++) == '-'; }
+			if(i == end) { return slow(s, start, end); }
+			int e = 0;
+			for(; i < end; i++) {
+				char c = s.charAt(i);
+				if(c < '0' || c > '9' || e > 10000) { return slow(s, start, end); }
+				e = e * 10 + (c - '0');
+			}
+			exponent += negativeExponent ? -e : e;
+		}
+		if(i != end) { return slow(s, start, end); }
+		double v;
+		if(mantissa == 0) { v = 0; }
+		else if(mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) { v = (exponent < 0) ? mantissa / POW10[-exponent] : mantissa * POW10[exponent]; }
+		else { return slow(s, start, end); }
+		return negative ? -v : v;
+	}
+
+	private static double slow(CharSequence s, int start, int end) {
+		return Double.parseDouble(s.subSequence(start, end).toString());
+	}
+
+	/**
+	 * Parse an integer (a number with decimals is truncated, as range values are).
+	 * @throws NumberFormatException if it isn't a number
+	 */
+	static int parseInt(CharSequence s, int start, int end) {
+		while(start < end && s.charAt(start) == ' ') { start++; }
+		while(end > start && s.charAt(end - 1) == ' ') { end--; }
+		int i = start;
+		boolean negative = false;
+		if(i < end && s.charAt(i) == '-') {
+			negative = true;
+			i++;
+		}
+		if(i == end || end - i > 9) { return (int)parse(s, start, end); }
+		int v = 0;
+		for(; i < end; i++) {
+			char c = s.charAt(i);
+			if(c < '0' || c > '9') { return (int)parse(s, start, end); }
+			v = v * 10 + (c - '0');
+		}
+		return negative ? -v : v;
+	}
+
+	/**
+	 * @return {String} the values, as sent on a route (for paths that carry Strings)
+	 */
+	static String toString(float[] values) { return FrameEncoder.get().putList(values, values.length).toString(); }
+
+	static String toString(double[] values) { return FrameEncoder.get().putList(values, values.length).toString(); }
+
+	static String toString(int[] values) { return FrameEncoder.get().putList(values, values.length).toString(); }
+
+	/**
+	 * Custom callback parsing values into a reused float array.
+	 * <br>Deliveries are serialized (they may come from the websocket thread and
+	 * from publishers in the JVM), so the array is only written by one at a time.
+	 */
+	static final class FloatsReader implements CustomCallback {
+		private final FloatsCallback callback;
+		private float[] values = new float[4];
+
+		FloatsReader(FloatsCallback callback) { this.callback = callback; }
+
+		@Override public synchronized void accept(CharSequence value) {
+			int n = count(value);
+			if(n > values.length) { values = new float[Math.max(n, values.length * 2)]; }
+			for(int i = 0, start = 0; i < n; i++) {
+				int end = end(value, start);
+				values[i] = (float)parse(value, start, end);
+				start = end + 1;
+			}
+			callback.accept(values, n);
+		}
+	}
+
+	/**
+	 * Custom callback parsing values into a reused double array.
+	 */
+	static final class DoublesReader implements CustomCallback {
+		private final DoublesCallback callback;
+		private double[] values = new double[4];
+
+		DoublesReader(DoublesCallback callback) { this.callback = callback; }
+
+		@Override public synchronized void accept(CharSequence value) {
+			int n = count(value);
+			if(n > values.length) { values = new double[Math.max(n, values.length * 2)]; }
+			for(int i = 0, start = 0; i < n; i++) {
+				int end = end(value, start);
+				values[i] = parse(value, start, end);
+				start = end + 1;
+			}
+			callback.accept(values, n);
+		}
+	}
+
+	/**
+	 * Custom callback parsing values into a reused int array.
+	 */
+	static final class IntsReader implements CustomCallback {
+		private final IntsCallback callback;
+		private int[] values = new int[4];
+
+		IntsReader(IntsCallback callback) { this.callback = callback; }
+
+		@Override public synchronized void accept(CharSequence value) {
+			int n = count(value);
+			if(n > values.length) { values = new int[Math.max(n, values.length * 2)]; }
+			for(int i = 0, start = 0; i < n; i++) {
+				int end = end(value, start);
+				values[i] = parseInt(value, start, end);
+				start = end + 1;
+			}
+			callback.accept(values, n);
+		}
+	}
+}
@@ -1,17 +1,27 @@
 package lab.spacebrew;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
 import org.java_websocket.client.WebSocketClient;
 import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_10;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.FramedataImpl1;
 import org.java_websocket.handshake.ServerHandshake;
 import java.lang.reflect.Method;
 
 public class WsClient extends WebSocketClient {
 
   private Object parent;
+  private Spacebrew sb; // parent, when it's a Spacebrew client: called directly, with no reflection
+  private SharedConnection shared; // parent, when it's a connection shared by Spacebrew clients: idem
   private Method onOpenMethod, onCloseMethod, onMessageMethod;
+  private volatile long received; // frames received (incremented by the websocket thread only), see Heartbeat
 
   public WsClient( Object app, URI serverUri, Draft draft ) {
     super( serverUri, draft );
@@ -38,6 +48,15 @@ public class WsClient extends WebSocketClient {
   }
 
   private void setupMethods() {
+    if ( parent instanceof Spacebrew ) {
+      sb = (Spacebrew)parent;
+      return;
+    }
+    if ( parent instanceof SharedConnection ) {
+      shared = (SharedConnection)parent;
+      return;
+    }
+
     try {
       onOpenMethod = parent.getClass().getMethod("onOpen", new Class[] {
       }
@@ -64,8 +83,122 @@ public class WsClient extends WebSocketClient {
     }
   }
 
+  /**
+   * Send a frame built by the caller (e.g., a text frame encoded in place).
+   * The payload is copied before returning, so its buffer can be reused.
+   */
+  public void sendFrame( Framedata frame ) {
+    getConnection().sendFrame( frame );
+  }
+
+  /**
+   * @return true if the connection is open (not closing), so frames can be sent
+   */
+  boolean writable() {
+    WebSocket conn = getConnection();
+    return conn != null && conn.isOpen();
+  }
+
+  /**
+   * @return true if frames framed by the caller (see FrameBatch) can be sent:
+   * the draft of the connection frames as RFC 6455 does (Draft_10 and later)
+   */
+  boolean batches() {
+    WebSocket conn = getConnection();
+    return conn instanceof WebSocketImpl && ((WebSocketImpl)conn).getDraft() instanceof Draft_10;
+  }
+
+  /**
+   * Send frames already framed for the wire (see FrameBatch), in one write:
+   * the buffer is queued as is, and the websocket thread woken up once.
+   * @return false if the frames weren't sent: the connection isn't open (or
+   * is closing, and the frames would follow the close frame), or failed
+   */
+  boolean sendFrames( ByteBuffer frames ) {
+    if ( !batches() || !writable() ) {
+      return false;
+    }
+    WebSocketImpl conn = (WebSocketImpl)getConnection();
+    try {
+      conn.outQueue.add( frames );
+      if ( !conn.isOpen() ) { // closed meanwhile: take the frames back, unless they're written already
+        return !conn.outQueue.remove( frames );
+      }
+      onWriteDemand( conn );
+      return true;
+    }
+    catch( RuntimeException e ) { // e.g., selection key cancelled by a close
+      return !conn.outQueue.remove( frames );
+    }
+  }
+
+  /**
+   * @return number of frames received (messages, pings and pongs)
+   */
+  long received() {
+    return received;
+  }
+
+  /**
+   * Send a ping frame (the other end answers with a pong).
+   * @return false if the connection isn't open
+   */
+  boolean ping() {
+    WebSocket conn = getConnection();
+    if ( conn == null || !conn.isOpen() ) {
+      return false;
+    }
+    FramedataImpl1 ping = new FramedataImpl1( Framedata.Opcode.PING );
+    ping.setFin( true );
+    conn.sendFrame( ping );
+    return true;
+  }
+
+  /**
+   * Close the connection at once, without a closing handshake (the other end
+   * may be gone): the socket is closed, and onClose called, before returning.
+   */
+  void kill() {
+    WebSocket conn = getConnection();
+    if ( conn != null ) {
+      ((WebSocketImpl)conn).eot( null );
+    }
+  }
+
+  /**
+   * Close the connection, with a closing handshake, unless it's closed already (e.g., killed).
+   */
+  @Override
+    public void close() {
+    WebSocket conn = getConnection();
+    if ( conn != null && conn.isClosed() ) {
+      return;
+    }
+    super.close();
+  }
+
+  /**
+   * @return address of this end of the connection (as the server sees it, unless there's a NAT)
+   */
+  String localAddress() {
+    try {
+      return getConnection().getLocalSocketAddress().getAddress().getHostAddress();
+    }
+    catch( RuntimeException e ) {
+      return "127.0.0.1";
+    }
+  }
+
   @Override
     public void onOpen( ServerHandshake handshakedata ) {
+    if ( sb != null ) {
+      sb.onOpen( this );
+      return;
+    }
+    if ( shared != null ) {
+      shared.onOpen( this );
+      return;
+    }
     if ( onOpenMethod != null ) {
       try {
         onOpenMethod.invoke( parent );
@@ -79,6 +212,15 @@ public class WsClient extends WebSocketClient {
 
   @Override
     public void onMessage( String message ) {
+    received++;
+    if ( sb != null ) {
+      sb.onMessage( message );
+      return;
+    }
+    if ( shared != null ) {
+      shared.onMessage( message );
+      return;
+    }
     if ( onMessageMethod != null ) {
       try {
         onMessageMethod.invoke( parent, message);
@@ -90,8 +232,35 @@ public class WsClient extends WebSocketClient {
     }
   }
 
+  @Override
+    public void onMessage( ByteBuffer bytes ) {
+    received++;
+    if ( sb != null ) {
+      sb.onMessage( bytes );
+    }
+  }
+
+  @Override
+    public void onWebsocketPing( WebSocket conn, Framedata f ) {
+    received++;
+    super.onWebsocketPing( conn, f ); // answers with a pong
+  }
+
+  @Override
+    public void onWebsocketPong( WebSocket conn, Framedata f ) {
+    received++;
+  }
+
   @Override
     public void onClose( int code, String reason, boolean remote ) {
+    if ( sb != null ) {
+      sb.onClose( this );
+      return;
+    }
+    if ( shared != null ) {
+      shared.onClose( this );
+      return;
+    }
     if ( onCloseMethod != null ) {
       try {
         onCloseMethod.invoke( parent );
@@ -103,9 +272,22 @@ public class WsClient extends WebSocketClient {
     }
   }
 
+  /**
+   * An error on the websocket: reported to the parent, and, if it's an I/O
+   * error, the connection is closed at once (onClose, then reconnection) rather
+   * than left for the heartbeat to find dead.
+   */
   @Override
     public void onError( Exception ex ) {
-      // System.err.println("on error :(");
+    if ( sb != null ) {
+      sb.onError( this, ex );
     }
+    else if ( shared != null ) {
+      shared.onError( this, ex );
+    }
+    if ( ex instanceof IOException ) {
+      kill(); // (no-op if closed already, or closing)
+    }
+  }
 }
 
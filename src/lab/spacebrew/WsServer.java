@@ -0,0 +1,52 @@
+package lab.spacebrew;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketAdapter;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+/**
+ * Websocket server of a SpacebrewServer: its websockets are SpacebrewServer.Connections,
+ * which carry the clients registered on them, so a message finds its route
+ * without a lookup by websocket.
+ */
+final class WsServer extends WebSocketServer {
+
+	private final SpacebrewServer server;
+
+	WsServer(SpacebrewServer server, InetSocketAddress address) {
+		super(address);
+		this.server = server;
+		setWebSocketFactory(new WebSocketServerFactory() {
+			@Override public WebSocketImpl createWebSocket(WebSocketAdapter a, Draft d, Socket s) { return new SpacebrewServer.Connection(a, d, s); }
+
+			@Override public WebSocketImpl createWebSocket(WebSocketAdapter a, List<Draft> d, Socket s) { return new SpacebrewServer.Connection(a, d, s); }
+
+			@Override public ByteChannel wrapChannel(SelectionKey key) { return (SocketChannel)key.channel(); }
+		});
+	}
+
+	@Override public void onOpen(WebSocket conn, ClientHandshake handshake) {
+		if(server.verbose) { System.out.println("[server] connection open " + conn.getRemoteSocketAddress()); }
+	}
+
+	@Override public void onClose(WebSocket conn, int code, String reason, boolean remote) { server.onClose((SpacebrewServer.Connection)conn); }
+
+	@Override public void onMessage(WebSocket conn, String message) { server.onMessage((SpacebrewServer.Connection)conn, message); }
+
+	@Override public void onMessage(WebSocket conn, ByteBuffer message) { server.onMessage((SpacebrewServer.Connection)conn, message); }
+
+	@Override public void onError(WebSocket conn, Exception e) {
+		if(server.verbose || conn == null) { System.err.println("[server] " + e); }
+	}
+}